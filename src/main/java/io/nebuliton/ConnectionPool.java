@@ -0,0 +1,240 @@
+package io.nebuliton;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Begrenzter Pool für SQLite-Verbindungen.
+ *
+ * Verbindungen werden beim Erstellen einmal konfiguriert (PRAGMAs) und danach nur noch
+ * ausgeliehen. {@link Connection#close()} auf einer ausgeliehenen Verbindung gibt sie an den Pool zurück.
+ */
+final class ConnectionPool implements AutoCloseable {
+    private static final long VALIDATE_AFTER_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long timeoutNanos;
+    private final BlockingQueue<PooledConnection> idle;
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private volatile boolean closed;
+
+    ConnectionPool(ConnectionFactory factory, int maxSize, long timeoutMillis) {
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, timeoutMillis));
+        this.idle = new ArrayBlockingQueue<>(this.maxSize);
+    }
+
+    Connection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long startedAt = System.nanoTime();
+        PooledConnection pooled = take(startedAt + timeoutNanos);
+        long waited = System.nanoTime() - startedAt;
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        acquired.incrementAndGet();
+        active.incrementAndGet();
+        return pooled.lease();
+    }
+
+    Database.PoolStats stats() {
+        long acquisitions = acquired.get();
+        int activeCount = active.get();
+        return new Database.PoolStats(
+                maxSize,
+                size.get(),
+                activeCount,
+                idle.size(),
+                created.get(),
+                acquisitions,
+                timeouts.get(),
+                acquisitions <= 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / acquisitions),
+                TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get())
+        );
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.poll()) != null) {
+            discard(pooled);
+        }
+    }
+
+    private PooledConnection take(long deadline) throws SQLException {
+        while (true) {
+            PooledConnection pooled = idle.poll();
+            if (pooled == null) {
+                pooled = tryCreate();
+            }
+            if (pooled == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new SQLException("Timed out after "
+                            + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms waiting for a database connection");
+                }
+                try {
+                    pooled = idle.poll(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a database connection", e);
+                }
+                if (pooled == null) {
+                    continue;
+                }
+            }
+            if (isHealthy(pooled)) {
+                return pooled;
+            }
+            discard(pooled);
+        }
+    }
+
+    private PooledConnection tryCreate() throws SQLException {
+        while (true) {
+            int current = size.get();
+            if (current >= maxSize) {
+                return null;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        try {
+            PooledConnection pooled = new PooledConnection(factory.create());
+            created.incrementAndGet();
+            return pooled;
+        } catch (SQLException | RuntimeException e) {
+            size.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean isHealthy(PooledConnection pooled) {
+        try {
+            if (pooled.raw.isClosed()) {
+                return false;
+            }
+            if (System.nanoTime() - pooled.lastUsedAt < VALIDATE_AFTER_IDLE_NANOS) {
+                return true;
+            }
+            return pooled.raw.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        try {
+            if (!pooled.raw.getAutoCommit()) {
+                pooled.raw.rollback();
+                pooled.raw.setAutoCommit(true);
+            }
+            pooled.raw.clearWarnings();
+        } catch (SQLException e) {
+            discard(pooled);
+            return;
+        }
+        pooled.lastUsedAt = System.nanoTime();
+        if (closed || !idle.offer(pooled)) {
+            discard(pooled);
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        size.decrementAndGet();
+        try {
+            pooled.raw.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    @FunctionalInterface
+    interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final class PooledConnection {
+        private final Connection raw;
+        private volatile long lastUsedAt = System.nanoTime();
+
+        private PooledConnection(Connection raw) {
+            this.raw = raw;
+        }
+
+        private Connection lease() {
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new Lease(this)
+            );
+        }
+    }
+
+    private final class Lease implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean returned;
+
+        private Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    if (!returned) {
+                        returned = true;
+                        release(pooled);
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return returned || pooled.raw.isClosed();
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "toString" -> {
+                    return "PooledConnection[" + pooled.raw + "]";
+                }
+                default -> {
+                }
+            }
+            if (returned) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            try {
+                return method.invoke(pooled.raw, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
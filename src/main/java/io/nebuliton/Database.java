@@ -1,19 +1,44 @@
 package io.nebuliton;
 
+import io.nebuliton.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sqlite.SQLiteDataSource;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * SQLite-Zugriff mit getrennten Wegen für Lesen und Schreiben.
+ *
+ * Alle Schreiboperationen laufen über genau eine Writer-Verbindung ({@link #write(SqlWork)}),
+ * Lesezugriffe über einen Pool von {@code query_only}-Verbindungen ({@link #getReadConnection()}).
+ * Im WAL-Modus lesen die Reader einen eigenen Snapshot und warten nie auf den Writer.
+ */
+public final class Database implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(Database.class);
+    private static final int MIGRATION_STEP_RETRIES = 5;
 
-public final class Database {
     private final SQLiteDataSource dataSource;
+    private final long readerMmapBytes;
+    private final ConnectionPool readers;
+    private final DatabaseWriter writer;
+    private volatile int schemaVersion;
+    /** Verschobene Migrationen, die noch im Hintergrund laufen */
+    private final Set<Integer> pendingMigrations = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
 
-    public Database(String path) {
-        Path dbPath = Path.of(path);
+    public Database(Config.Database config) {
+        Path dbPath = Path.of(config.path);
         Path parent = dbPath.getParent();
         if (parent != null) {
             try {
@@ -26,155 +51,243 @@ public final class Database {
         SQLiteDataSource source = new SQLiteDataSource();
         source.setUrl("jdbc:sqlite:" + dbPath);
         this.dataSource = source;
-        initSchema();
+        this.readerMmapBytes = Math.max(0L, config.readerMmapSizeMb) * 1024L * 1024L;
+
+        Connection writerConnection;
+        try {
+            writerConnection = openWriteConnection();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to open database writer connection", e);
+        }
+        List<Migrations.Migration> deferred = migrate(writerConnection, config.onlineMigrationRows);
+        this.writer = new DatabaseWriter(
+                writerConnection,
+                config.writeBatchSize,
+                config.writeBatchWindowMillis,
+                config.writeQueueCapacity
+        );
+        this.readers = new ConnectionPool(this::openReadConnection, config.poolSize, config.poolTimeoutMillis);
+        runDeferred(deferred);
     }
 
-    public Connection getConnection() throws SQLException {
-        Connection connection = dataSource.getConnection();
-        applyPragmas(connection);
-        return connection;
+    /**
+     * Leiht eine Read-only-Verbindung aus dem Reader-Pool aus. Schreibversuche darauf schlagen fehl,
+     * Änderungen gehen immer über {@link #write(SqlWork)}.
+     */
+    public Connection getReadConnection() throws SQLException {
+        return readers.acquire();
     }
 
-    private void applyPragmas(Connection connection) {
-        try (Statement statement = connection.createStatement()) {
-            statement.execute("PRAGMA journal_mode=WAL;");
-            statement.execute("PRAGMA synchronous=NORMAL;");
-            statement.execute("PRAGMA busy_timeout=5000;");
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to apply SQLite pragmas", e);
-        }
+    /**
+     * Reiht eine Schreiboperation beim Writer-Thread ein. Das Future wird erst nach dem Commit
+     * des Batches abgeschlossen, in dem die Operation gelaufen ist.
+     */
+    public <T> CompletableFuture<T> write(SqlWork<T> work) {
+        return writer.submit(work, null);
+    }
+
+    /**
+     * Wie {@link #write(SqlWork)}, {@code afterCommit} läuft aber noch auf dem Writer-Thread direkt nach dem
+     * Commit, vor dem Future und vor den Hooks späterer Operationen. So sehen Caches Änderungen garantiert in
+     * Commit-Reihenfolge; der Hook muss schnell sein und darf nicht auf den Writer warten.
+     */
+    public <T> CompletableFuture<T> write(SqlWork<T> work, Consumer<? super T> afterCommit) {
+        return writer.submit(work, afterCommit);
+    }
+
+    public int schemaVersion() {
+        return schemaVersion;
+    }
+
+    /**
+     * {@code true}, sobald der FTS5-Index für {@code knowledge_entries} angelegt und befüllt ist.
+     */
+    public boolean hasKnowledgeSearchIndex() {
+        return applied(Migrations.KNOWLEDGE_FTS);
+    }
+
+    /**
+     * {@code true}, sobald {@code knowledge_entries.text_hash} befüllt und eindeutig indiziert ist.
+     */
+    public boolean hasKnowledgeTextHash() {
+        return applied(Migrations.KNOWLEDGE_TEXT_HASH);
+    }
+
+    public boolean hasReplyAuditScores() {
+        return applied(Migrations.REPLY_AUDIT_SCORES);
+    }
+
+    public boolean hasReplyAuditTokens() {
+        return applied(Migrations.REPLY_AUDIT_TOKENS);
+    }
+
+    public boolean hasConversationSummaries() {
+        return applied(Migrations.CONVERSATION_SUMMARIES);
+    }
+
+    public boolean hasKnowledgeEmbeddings() {
+        return applied(Migrations.KNOWLEDGE_EMBEDDINGS);
+    }
+
+    private boolean applied(int version) {
+        return schemaVersion >= version && !pendingMigrations.contains(version);
+    }
+
+    public PoolStats poolStats() {
+        return readers.stats();
+    }
+
+    public WriterStats writerStats() {
+        return writer.stats();
     }
 
-    private void initSchema() {
-        try (Connection connection = getConnection();
-             Statement statement = connection.createStatement()) {
-            statement.execute("""
-                    CREATE TABLE IF NOT EXISTS user_contexts (
-                        guild_id INTEGER NOT NULL,
-                        user_id INTEGER NOT NULL,
-                        context TEXT NOT NULL,
-                        updated_at INTEGER NOT NULL,
-                        PRIMARY KEY (guild_id, user_id)
-                    );
-                    """);
-            statement.execute("""
-                    CREATE TABLE IF NOT EXISTS knowledge_entries (
-                        id INTEGER PRIMARY KEY AUTOINCREMENT,
-                        guild_id INTEGER NOT NULL,
-                        text TEXT NOT NULL,
-                        confidence REAL NOT NULL DEFAULT 1.0,
-                        source TEXT NOT NULL DEFAULT 'manual',
-                        added_by INTEGER NOT NULL,
-                        created_at INTEGER NOT NULL
-                    );
-                    """);
-            statement.execute("""
-                    CREATE TABLE IF NOT EXISTS ai_blacklist (
-                        guild_id INTEGER NOT NULL,
-                        user_id INTEGER NOT NULL,
-                        reason TEXT,
-                        added_by INTEGER NOT NULL,
-                        created_at INTEGER NOT NULL,
-                        PRIMARY KEY (guild_id, user_id)
-                    );
-                    """);
-            statement.execute("""
-                    CREATE TABLE IF NOT EXISTS conversation_messages (
-                        id INTEGER PRIMARY KEY AUTOINCREMENT,
-                        guild_id INTEGER NOT NULL,
-                        user_id INTEGER NOT NULL,
-                        role TEXT NOT NULL,
-                        content TEXT NOT NULL,
-                        created_at INTEGER NOT NULL
-                    );
-                    """);
-            statement.execute("""
-                    CREATE INDEX IF NOT EXISTS idx_conversation_user
-                    ON conversation_messages (guild_id, user_id, id);
-                    """);
-            statement.execute("""
-                    CREATE TABLE IF NOT EXISTS response_feedback (
-                        id INTEGER PRIMARY KEY AUTOINCREMENT,
-                        guild_id INTEGER NOT NULL,
-                        user_id INTEGER NOT NULL,
-                        rating TEXT NOT NULL,
-                        reason TEXT,
-                        created_at INTEGER NOT NULL
-                    );
-                    """);
-            statement.execute("""
-                    CREATE TABLE IF NOT EXISTS ai_reply_audit (
-                        id INTEGER PRIMARY KEY AUTOINCREMENT,
-                        guild_id INTEGER NOT NULL,
-                        user_id INTEGER NOT NULL,
-                        model TEXT NOT NULL,
-                        used_user_context INTEGER NOT NULL,
-                        history_count INTEGER NOT NULL,
-                        knowledge_ids TEXT,
-                        knowledge_preview TEXT,
-                        prompt_excerpt TEXT,
-                        response_excerpt TEXT,
-                        latency_ms INTEGER NOT NULL,
-                        created_at INTEGER NOT NULL
-                    );
-                    """);
-            statement.execute("""
-                    CREATE TABLE IF NOT EXISTS voice_notes (
-                        id INTEGER PRIMARY KEY AUTOINCREMENT,
-                        guild_id INTEGER NOT NULL,
-                        user_id INTEGER NOT NULL,
-                        title TEXT,
-                        content TEXT NOT NULL,
-                        created_at INTEGER NOT NULL
-                    );
-                    """);
-            statement.execute("""
-                    CREATE TABLE IF NOT EXISTS voice_recordings (
-                        id INTEGER PRIMARY KEY AUTOINCREMENT,
-                        guild_id INTEGER NOT NULL,
-                        user_id INTEGER NOT NULL,
-                        title TEXT,
-                        file_name TEXT NOT NULL,
-                        file_url TEXT NOT NULL,
-                        created_at INTEGER NOT NULL
-                    );
-                    """);
-            statement.execute("""
-                    CREATE TABLE IF NOT EXISTS user_privacy (
-                        guild_id INTEGER NOT NULL,
-                        user_id INTEGER NOT NULL,
-                        allow_storage INTEGER NOT NULL DEFAULT 1,
-                        allow_recording INTEGER NOT NULL DEFAULT 1,
-                        updated_at INTEGER NOT NULL,
-                        PRIMARY KEY (guild_id, user_id)
-                    );
-                    """);
-            addColumnIfMissing(connection, "knowledge_entries", "confidence", "REAL NOT NULL DEFAULT 1.0");
-            addColumnIfMissing(connection, "knowledge_entries", "source", "TEXT NOT NULL DEFAULT 'manual'");
+    @Override
+    public void close() {
+        closed = true;
+        writer.close();
+        readers.close();
+    }
+
+    private List<Migrations.Migration> migrate(Connection connection, long onlineRowThreshold) {
+        try {
+            List<Migrations.Migration> deferred = Migrations.applyStartup(connection, onlineRowThreshold);
+            deferred.forEach(migration -> pendingMigrations.add(migration.version()));
+            schemaVersion = Migrations.currentVersion(connection);
+            return deferred;
         } catch (SQLException e) {
-            throw new IllegalStateException("Failed to initialize database schema", e);
+            throw new IllegalStateException("Failed to migrate database schema", e);
         }
     }
 
-    private void addColumnIfMissing(Connection connection, String table, String column, String definition)
-            throws SQLException {
-        if (hasColumn(connection, table, column)) {
+    /**
+     * Holt verschobene Migrationen nacheinander über den Writer nach, damit der Start nicht
+     * minutenlang an einem Index-Build auf einer großen Tabelle hängt. Jeder Schritt ist eine eigene,
+     * kleine Schreiboperation; normale Writes laufen dazwischen weiter.
+     */
+    private void runDeferred(List<Migrations.Migration> deferred) {
+        if (deferred.isEmpty()) {
             return;
         }
-        try (Statement statement = connection.createStatement()) {
-            statement.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition + ";");
-        }
+        LOG.info("{} Migration(en) laufen wegen großer Tabellen im Hintergrund", deferred.size());
+        Thread thread = new Thread(() -> {
+            for (Migrations.Migration migration : deferred) {
+                if (!runOnline(migration)) {
+                    return;
+                }
+            }
+        }, "db-migrate");
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    private boolean hasColumn(Connection connection, String table, String column) throws SQLException {
-        try (Statement statement = connection.createStatement();
-             ResultSet resultSet = statement.executeQuery("PRAGMA table_info(" + table + ");")) {
-            while (resultSet.next()) {
-                if (column.equalsIgnoreCase(resultSet.getString("name"))) {
-                    return true;
+    /**
+     * Wartet auf jeden Schritt, bevor der nächste eingereiht wird. Fehlgeschlagene Schritte, z.B. bei voller
+     * Write-Queue, werden mit Pause wiederholt; danach bleibt die Migration bis zum nächsten Start offen.
+     */
+    private boolean runOnline(Migrations.Migration migration) {
+        long startedAt = System.currentTimeMillis();
+        long cursor = 0L;
+        long steps = 0L;
+        int failures = 0;
+        while (cursor != Migrations.DONE) {
+            if (closed) {
+                return false;
+            }
+            long current = cursor;
+            try {
+                cursor = write(connection -> {
+                    long next = Migrations.applyOnline(connection, migration, current);
+                    if (next == Migrations.DONE) {
+                        // Schon im selben Batch freigeben, damit Writes danach den neuen Weg nehmen
+                        pendingMigrations.remove(migration.version());
+                    }
+                    return next;
+                }).join();
+                steps++;
+                failures = 0;
+            } catch (CompletionException e) {
+                // Wurde sie im Batch schon freigegeben, ist der Commit danach gescheitert
+                pendingMigrations.add(migration.version());
+                if (closed) {
+                    return false;
                 }
+                if (++failures > MIGRATION_STEP_RETRIES) {
+                    LOG.error("Hintergrund-Migration {} ({}) fehlgeschlagen: {}",
+                            migration.version(), migration.description(), e.getCause().getMessage());
+                    return false;
+                }
+                LOG.warn("Schritt von Migration {} fehlgeschlagen, neuer Versuch: {}",
+                        migration.version(), e.getCause().getMessage());
+                try {
+                    Thread.sleep(1000L * failures);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        LOG.info("Migration {} ({}) im Hintergrund abgeschlossen ({} Schritte, {}ms)",
+                migration.version(), migration.description(), steps, System.currentTimeMillis() - startedAt);
+        return true;
+    }
+
+    private Connection openWriteConnection() throws SQLException {
+        return openConnection(
+                "PRAGMA journal_mode=WAL;",
+                "PRAGMA synchronous=NORMAL;",
+                "PRAGMA busy_timeout=5000;"
+        );
+    }
+
+    private Connection openReadConnection() throws SQLException {
+        // mmap teilt die Seiten über den OS-Page-Cache zwischen allen Readern. SQLites eigener
+        // Shared-Cache-Modus wird bewusst nicht genutzt, weil er WAL-Snapshots durch Tabellen-Locks ersetzt.
+        return openConnection(
+                "PRAGMA busy_timeout=5000;",
+                "PRAGMA query_only=1;",
+                "PRAGMA mmap_size=" + readerMmapBytes + ";"
+        );
+    }
+
+    private Connection openConnection(String... pragmas) throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            applyPragmas(connection, pragmas);
+        } catch (RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    private void applyPragmas(Connection connection, String... pragmas) {
+        try (Statement statement = connection.createStatement()) {
+            for (String pragma : pragmas) {
+                statement.execute(pragma);
             }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to apply SQLite pragmas", e);
         }
-        return false;
+    }
+
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T apply(Connection connection) throws SQLException;
+    }
+
+    public record PoolStats(
+            int maxSize,
+            int size,
+            int active,
+            int idle,
+            long created,
+            long acquired,
+            long timeouts,
+            long avgWaitMicros,
+            long maxWaitMicros
+    ) {
+    }
+
+    public record WriterStats(int queueDepth, long batches, long operations, long failures, double avgBatchSize) {
     }
 }
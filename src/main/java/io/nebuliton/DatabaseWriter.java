@@ -0,0 +1,209 @@
+package io.nebuliton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Einzelner Writer-Thread mit Group-Commit.
+ *
+ * Schreiboperationen landen in einer Queue und werden gesammelt in einer Transaktion committed,
+ * sobald das Batch voll ist oder das Zeitfenster abläuft. Jede Operation läuft in einem eigenen
+ * Savepoint, damit ein Fehler nicht das ganze Batch zurückrollt. After-Commit-Hooks laufen nach dem
+ * Commit auf diesem Thread, in der Reihenfolge der Operationen.
+ */
+final class DatabaseWriter implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(DatabaseWriter.class);
+
+    private final Connection connection;
+    private final BlockingQueue<WriteOp<?>> queue;
+    private final int batchSize;
+    private final long windowNanos;
+    private final Thread thread;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean running = true;
+
+    DatabaseWriter(Connection connection, int batchSize, long windowMillis, int queueCapacity) {
+        this.connection = connection;
+        this.batchSize = Math.max(1, batchSize);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, windowMillis));
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, queueCapacity));
+        this.thread = new Thread(this::run, "db-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    <T> CompletableFuture<T> submit(Database.SqlWork<T> work, Consumer<? super T> afterCommit) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new SQLException("Database writer is closed"));
+            return future;
+        }
+        WriteOp<T> op = new WriteOp<>(work, afterCommit, future);
+        if (!queue.offer(op)) {
+            failures.incrementAndGet();
+            future.completeExceptionally(new SQLException("Database write queue is full"));
+        } else if (!running && queue.remove(op)) {
+            // close() lief parallel; was danach noch in der Queue liegt, verarbeitet niemand mehr
+            future.completeExceptionally(new SQLException("Database writer is closed"));
+        }
+        return future;
+    }
+
+    Database.WriterStats stats() {
+        long batchCount = batches.get();
+        long operationCount = operations.get();
+        return new Database.WriterStats(
+                queue.size(),
+                batchCount,
+                operationCount,
+                failures.get(),
+                batchCount <= 0 ? 0.0 : (double) operationCount / batchCount
+        );
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failPending();
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private void run() {
+        List<WriteOp<?>> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                WriteOp<?> first = running ? queue.poll(1, TimeUnit.SECONDS) : queue.poll();
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collect(batch);
+            } catch (InterruptedException e) {
+                // close() weckt den Thread auf; schon Gesammeltes wird committed, die Queue danach noch geleert
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Lässt alles fehlschlagen, was nach dem Ende des Writer-Threads noch in der Queue liegt.
+     */
+    private void failPending() {
+        List<WriteOp<?>> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        for (WriteOp<?> op : pending) {
+            failures.incrementAndGet();
+            op.future().completeExceptionally(new SQLException("Database writer is closed"));
+        }
+    }
+
+    private void collect(List<WriteOp<?>> batch) throws InterruptedException {
+        queue.drainTo(batch, batchSize - batch.size());
+        long deadline = System.nanoTime() + windowNanos;
+        while (running && batch.size() < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            WriteOp<?> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+            queue.drainTo(batch, batchSize - batch.size());
+        }
+    }
+
+    private void commit(List<WriteOp<?>> batch) {
+        Object[] results = new Object[batch.size()];
+        Throwable[] errors = new Throwable[batch.size()];
+        try {
+            connection.setAutoCommit(false);
+            for (int i = 0; i < batch.size(); i++) {
+                Savepoint savepoint = connection.setSavepoint();
+                try {
+                    results[i] = batch.get(i).work().apply(connection);
+                    connection.releaseSavepoint(savepoint);
+                } catch (SQLException | RuntimeException e) {
+                    connection.rollback(savepoint);
+                    errors[i] = e;
+                }
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            LOG.error("Schreib-Batch mit {} Operationen fehlgeschlagen: {}", batch.size(), e.getMessage());
+            rollbackQuietly();
+            for (int i = 0; i < batch.size(); i++) {
+                if (errors[i] == null) {
+                    errors[i] = e;
+                }
+            }
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException ignored) {
+            }
+        }
+
+        batches.incrementAndGet();
+        operations.addAndGet(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (errors[i] != null) {
+                failures.incrementAndGet();
+                batch.get(i).future().completeExceptionally(errors[i]);
+            } else {
+                complete(batch.get(i), results[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void complete(WriteOp<T> op, Object result) {
+        T value = (T) result;
+        if (op.afterCommit() != null) {
+            try {
+                op.afterCommit().accept(value);
+            } catch (RuntimeException e) {
+                LOG.warn("After-Commit-Hook fehlgeschlagen: {}", e.getMessage());
+            }
+        }
+        op.future().complete(value);
+    }
+
+    private void rollbackQuietly() {
+        try {
+            connection.rollback();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private record WriteOp<T>(Database.SqlWork<T> work, Consumer<? super T> afterCommit, CompletableFuture<T> future) {
+    }
+}
@@ -67,10 +67,14 @@ public final class Main {
         }
 
         printInfo("Status", "Starting Discord connection...");
-        Database database = new Database(config.database.path);
+        Database database = new Database(config.database);
         ContextStore contextStore = new ContextStore(database);
         OpenAIClient openAIClient = new OpenAIClient(config.openai);
         AIManager aiManager = new AIManager(openAIClient, contextStore, config);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            aiManager.close();
+            database.close();
+        }, "db-shutdown"));
         RateLimiter rateLimiter = new RateLimiter(Duration.ofSeconds(config.ux.cooldownSeconds));
 
         JDABuilder builder = JDABuilder.createDefault(config.discord.token)
@@ -0,0 +1,738 @@
+package io.nebuliton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versionierte Schema-Migrationen.
+ *
+ * Der aktuelle Stand steht in {@code PRAGMA user_version}. Jede Migration läuft in einer eigenen
+ * Transaktion und setzt die Version erst mit ihrem Commit. Migrationen, die große Tabellen anfassen,
+ * dürfen beim Start verschoben werden: sie landen in {@code deferred_migrations}, alle anderen laufen
+ * trotzdem sofort. Verschobene Migrationen werden danach in kleinen Schritten über den Writer
+ * nachgeholt ({@link OnlineStep}), damit normale Writes dazwischen weiterlaufen. Eine Migration darf
+ * deshalb nicht von einer früheren mit {@code largeTables} abhängen, ohne dieselben Tabellen anzugeben.
+ */
+final class Migrations {
+    private static final Logger LOG = LoggerFactory.getLogger(Migrations.class);
+
+    static final int BASELINE = 1;
+    static final int HOT_PATH_INDEXES = 2;
+    static final int KNOWLEDGE_FTS = 3;
+    static final int KNOWLEDGE_TEXT_HASH = 4;
+    static final int REPLY_AUDIT_SCORES = 5;
+    static final int KNOWLEDGE_EMBEDDINGS = 6;
+    static final int REPLY_AUDIT_TOKENS = 7;
+    static final int CONVERSATION_SUMMARIES = 8;
+
+    /** Rückgabe eines {@link OnlineStep}, wenn die Migration fertig ist */
+    static final long DONE = -1L;
+    /** Zeilen pro Schritt einer verschobenen Migration */
+    private static final int ONLINE_BATCH_ROWS = 1000;
+
+    private static final String FTS_TABLE = """
+            CREATE VIRTUAL TABLE IF NOT EXISTS knowledge_fts USING fts5(
+                text,
+                content = 'knowledge_entries',
+                content_rowid = 'id',
+                tokenize = 'unicode61 remove_diacritics 2',
+                prefix = '2 3'
+            );
+            """;
+    private static final String FTS_INSERT_TRIGGER = """
+            CREATE TRIGGER IF NOT EXISTS knowledge_fts_insert AFTER INSERT ON knowledge_entries BEGIN
+                INSERT INTO knowledge_fts (rowid, text) VALUES (new.id, new.text);
+            END;
+            """;
+    private static final String FTS_DELETE_TRIGGER = """
+            CREATE TRIGGER IF NOT EXISTS knowledge_fts_delete AFTER DELETE ON knowledge_entries BEGIN
+                INSERT INTO knowledge_fts (knowledge_fts, rowid, text) VALUES ('delete', old.id, old.text);
+            END;
+            """;
+    private static final String FTS_UPDATE_TRIGGER = """
+            CREATE TRIGGER IF NOT EXISTS knowledge_fts_update AFTER UPDATE OF text ON knowledge_entries BEGIN
+                INSERT INTO knowledge_fts (knowledge_fts, rowid, text) VALUES ('delete', old.id, old.text);
+                INSERT INTO knowledge_fts (rowid, text) VALUES (new.id, new.text);
+            END;
+            """;
+    // Während des Backfills nur Zeilen austragen, die schon im Index stehen; ein 'delete' für eine
+    // fehlende Zeile würde den External-Content-Index beschädigen.
+    private static final String FTS_BACKFILL_GUARD = """
+            WHEN old.id <= (SELECT indexed_until FROM knowledge_fts_backfill)
+                OR old.id > (SELECT start_max FROM knowledge_fts_backfill)
+            """;
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(BASELINE, "baseline schema", List.of(), Migrations::baseline),
+            new Migration(HOT_PATH_INDEXES, "hot-path indexes", List.of(
+                    "conversation_messages",
+                    "ai_reply_audit",
+                    "response_feedback",
+                    "knowledge_entries"
+            ),
+                    """
+                    CREATE INDEX IF NOT EXISTS idx_knowledge_guild
+                    ON knowledge_entries (guild_id, id);
+                    """,
+                    """
+                    CREATE INDEX IF NOT EXISTS idx_knowledge_review
+                    ON knowledge_entries (guild_id, source, confidence);
+                    """,
+                    """
+                    CREATE INDEX IF NOT EXISTS idx_knowledge_text
+                    ON knowledge_entries (guild_id, lower(trim(text)));
+                    """,
+                    """
+                    CREATE INDEX IF NOT EXISTS idx_blacklist_guild_created
+                    ON ai_blacklist (guild_id, created_at);
+                    """,
+                    """
+                    CREATE INDEX IF NOT EXISTS idx_conversation_role
+                    ON conversation_messages (guild_id, role, user_id);
+                    """,
+                    """
+                    CREATE INDEX IF NOT EXISTS idx_feedback_guild_created
+                    ON response_feedback (guild_id, created_at, rating);
+                    """,
+                    """
+                    CREATE INDEX IF NOT EXISTS idx_reply_audit_user
+                    ON ai_reply_audit (guild_id, user_id, id);
+                    """,
+                    """
+                    CREATE INDEX IF NOT EXISTS idx_voice_notes_guild
+                    ON voice_notes (guild_id, id);
+                    """,
+                    """
+                    CREATE INDEX IF NOT EXISTS idx_voice_recordings_guild
+                    ON voice_recordings (guild_id, id);
+                    """
+            ),
+            new Migration(KNOWLEDGE_FTS, "knowledge full-text index", List.of("knowledge_entries"), statements(
+                    FTS_TABLE,
+                    FTS_INSERT_TRIGGER,
+                    FTS_DELETE_TRIGGER,
+                    FTS_UPDATE_TRIGGER,
+                    // Bestehende Einträge einmalig in den Index übernehmen
+                    "INSERT INTO knowledge_fts (knowledge_fts) VALUES ('rebuild');"
+            ), Migrations::knowledgeFtsOnline),
+            new Migration(KNOWLEDGE_TEXT_HASH, "knowledge text hash", List.of("knowledge_entries"),
+                    Migrations::knowledgeTextHash, Migrations::knowledgeTextHashOnline),
+            new Migration(REPLY_AUDIT_SCORES, "reply audit knowledge scores", List.of(),
+                    connection -> addColumnIfMissing(connection, "ai_reply_audit", "knowledge_scores", "TEXT")),
+            new Migration(KNOWLEDGE_EMBEDDINGS, "knowledge embeddings", List.of(), statements(
+                    // float16 little-endian, ein Vektor pro Eintrag und Modell
+                    """
+                    CREATE TABLE IF NOT EXISTS knowledge_embeddings (
+                        entry_id INTEGER PRIMARY KEY,
+                        model TEXT NOT NULL,
+                        dimensions INTEGER NOT NULL,
+                        vector BLOB NOT NULL
+                    );
+                    """,
+                    """
+                    CREATE TRIGGER IF NOT EXISTS knowledge_embeddings_delete AFTER DELETE ON knowledge_entries BEGIN
+                        DELETE FROM knowledge_embeddings WHERE entry_id = old.id;
+                    END;
+                    """
+            )),
+            new Migration(REPLY_AUDIT_TOKENS, "reply audit token breakdown", List.of(), Migrations::replyAuditTokens),
+            new Migration(CONVERSATION_SUMMARIES, "conversation summaries", List.of(), Migrations::conversationSummaries)
+    );
+
+    private Migrations() {
+    }
+
+    static int currentVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA user_version;")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Wendet alle ausstehenden Migrationen an. Würde eine Migration eine Tabelle mit mehr als
+     * {@code onlineRowThreshold} Zeilen anfassen, wird nur sie verschoben, ebenso spätere Migrationen auf
+     * denselben Tabellen. Zurück kommen alle verschobenen, auch die von früheren Starts, in Versionsreihenfolge.
+     */
+    static List<Migration> applyStartup(Connection connection, long onlineRowThreshold) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS deferred_migrations (version INTEGER PRIMARY KEY);");
+        }
+        int current = currentVersion(connection);
+        Set<Integer> deferred = deferredVersions(connection);
+        Set<String> busyTables = new HashSet<>();
+        for (Migration migration : MIGRATIONS) {
+            if (deferred.contains(migration.version())) {
+                busyTables.addAll(migration.largeTables());
+            }
+        }
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version() <= current) {
+                continue;
+            }
+            boolean defer = current >= BASELINE
+                    && (!Collections.disjoint(busyTables, migration.largeTables())
+                    || estimateRows(connection, migration.largeTables()) > onlineRowThreshold);
+            long startedAt = System.currentTimeMillis();
+            connection.setAutoCommit(false);
+            try {
+                if (defer) {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "INSERT OR IGNORE INTO deferred_migrations (version) VALUES (?);")) {
+                        statement.setInt(1, migration.version());
+                        statement.executeUpdate();
+                    }
+                    setVersion(connection, migration.version());
+                } else {
+                    apply(connection, migration);
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            if (defer) {
+                deferred.add(migration.version());
+                busyTables.addAll(migration.largeTables());
+                LOG.info("Migration {} ({}) wegen großer Tabellen verschoben", migration.version(), migration.description());
+            } else {
+                LOG.info("Migration {} ({}) angewendet ({}ms)",
+                        migration.version(), migration.description(), System.currentTimeMillis() - startedAt);
+            }
+            current = migration.version();
+        }
+        return MIGRATIONS.stream().filter(migration -> deferred.contains(migration.version())).toList();
+    }
+
+    /**
+     * Ein Schritt einer verschobenen Migration als eigene Schreiboperation. {@code cursor} ist beim ersten
+     * Schritt 0, danach der Rückgabewert des vorigen. Mit {@link #DONE} gilt die Migration als angewendet.
+     */
+    static long applyOnline(Connection connection, Migration migration, long cursor) throws SQLException {
+        long next;
+        if (migration.online() == null) {
+            migration.step().apply(connection);
+            next = DONE;
+        } else {
+            next = migration.online().apply(connection, cursor);
+        }
+        if (next == DONE) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM deferred_migrations WHERE version = ?;")) {
+                statement.setInt(1, migration.version());
+                statement.executeUpdate();
+            }
+        }
+        return next;
+    }
+
+    private static Set<Integer> deferredVersions(Connection connection) throws SQLException {
+        Set<Integer> versions = new HashSet<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT version FROM deferred_migrations;")) {
+            while (resultSet.next()) {
+                versions.add(resultSet.getInt(1));
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Führt eine Migration in der laufenden Transaktion aus und setzt {@code user_version}.
+     */
+    static void apply(Connection connection, Migration migration) throws SQLException {
+        migration.step().apply(connection);
+        setVersion(connection, migration.version());
+    }
+
+    private static void setVersion(Connection connection, int version) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA user_version = " + version + ";");
+        }
+    }
+
+    private static long estimateRows(Connection connection, List<String> tables) throws SQLException {
+        long max = 0L;
+        for (String table : tables) {
+            // max(rowid) kommt direkt aus dem B-Tree, COUNT(*) würde die ganze Tabelle lesen
+            try (PreparedStatement statement = connection.prepareStatement("SELECT max(rowid) FROM " + table + ";");
+                 ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    max = Math.max(max, resultSet.getLong(1));
+                }
+            }
+        }
+        return max;
+    }
+
+    private static Step statements(String... sql) {
+        return connection -> {
+            try (Statement statement = connection.createStatement()) {
+                for (String part : sql) {
+                    statement.execute(part);
+                }
+            }
+        };
+    }
+
+    /**
+     * Ein Statement pro Schritt, z.B. ein Index-Build pro Schreiboperation.
+     */
+    private static OnlineStep statementsOnline(String... sql) {
+        return (connection, cursor) -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(sql[(int) cursor]);
+            }
+            return cursor + 1 < sql.length ? cursor + 1 : DONE;
+        };
+    }
+
+    private static void baseline(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("""
+                    CREATE TABLE IF NOT EXISTS user_contexts (
+                        guild_id INTEGER NOT NULL,
+                        user_id INTEGER NOT NULL,
+                        context TEXT NOT NULL,
+                        updated_at INTEGER NOT NULL,
+                        PRIMARY KEY (guild_id, user_id)
+                    );
+                    """);
+            statement.execute("""
+                    CREATE TABLE IF NOT EXISTS knowledge_entries (
+                        id INTEGER PRIMARY KEY AUTOINCREMENT,
+                        guild_id INTEGER NOT NULL,
+                        text TEXT NOT NULL,
+                        confidence REAL NOT NULL DEFAULT 1.0,
+                        source TEXT NOT NULL DEFAULT 'manual',
+                        added_by INTEGER NOT NULL,
+                        created_at INTEGER NOT NULL
+                    );
+                    """);
+            statement.execute("""
+                    CREATE TABLE IF NOT EXISTS ai_blacklist (
+                        guild_id INTEGER NOT NULL,
+                        user_id INTEGER NOT NULL,
+                        reason TEXT,
+                        added_by INTEGER NOT NULL,
+                        created_at INTEGER NOT NULL,
+                        PRIMARY KEY (guild_id, user_id)
+                    );
+                    """);
+            statement.execute("""
+                    CREATE TABLE IF NOT EXISTS conversation_messages (
+                        id INTEGER PRIMARY KEY AUTOINCREMENT,
+                        guild_id INTEGER NOT NULL,
+                        user_id INTEGER NOT NULL,
+                        role TEXT NOT NULL,
+                        content TEXT NOT NULL,
+                        created_at INTEGER NOT NULL
+                    );
+                    """);
+            statement.execute("""
+                    CREATE INDEX IF NOT EXISTS idx_conversation_user
+                    ON conversation_messages (guild_id, user_id, id);
+                    """);
+            statement.execute("""
+                    CREATE TABLE IF NOT EXISTS response_feedback (
+                        id INTEGER PRIMARY KEY AUTOINCREMENT,
+                        guild_id INTEGER NOT NULL,
+                        user_id INTEGER NOT NULL,
+                        rating TEXT NOT NULL,
+                        reason TEXT,
+                        created_at INTEGER NOT NULL
+                    );
+                    """);
+            statement.execute("""
+                    CREATE TABLE IF NOT EXISTS ai_reply_audit (
+                        id INTEGER PRIMARY KEY AUTOINCREMENT,
+                        guild_id INTEGER NOT NULL,
+                        user_id INTEGER NOT NULL,
+                        model TEXT NOT NULL,
+                        used_user_context INTEGER NOT NULL,
+                        history_count INTEGER NOT NULL,
+                        knowledge_ids TEXT,
+                        knowledge_preview TEXT,
+                        prompt_excerpt TEXT,
+                        response_excerpt TEXT,
+                        latency_ms INTEGER NOT NULL,
+                        created_at INTEGER NOT NULL
+                    );
+                    """);
+            statement.execute("""
+                    CREATE TABLE IF NOT EXISTS voice_notes (
+                        id INTEGER PRIMARY KEY AUTOINCREMENT,
+                        guild_id INTEGER NOT NULL,
+                        user_id INTEGER NOT NULL,
+                        title TEXT,
+                        content TEXT NOT NULL,
+                        created_at INTEGER NOT NULL
+                    );
+                    """);
+            statement.execute("""
+                    CREATE TABLE IF NOT EXISTS voice_recordings (
+                        id INTEGER PRIMARY KEY AUTOINCREMENT,
+                        guild_id INTEGER NOT NULL,
+                        user_id INTEGER NOT NULL,
+                        title TEXT,
+                        file_name TEXT NOT NULL,
+                        file_url TEXT NOT NULL,
+                        created_at INTEGER NOT NULL
+                    );
+                    """);
+            statement.execute("""
+                    CREATE TABLE IF NOT EXISTS user_privacy (
+                        guild_id INTEGER NOT NULL,
+                        user_id INTEGER NOT NULL,
+                        allow_storage INTEGER NOT NULL DEFAULT 1,
+                        allow_recording INTEGER NOT NULL DEFAULT 1,
+                        updated_at INTEGER NOT NULL,
+                        PRIMARY KEY (guild_id, user_id)
+                    );
+                    """);
+        }
+        addColumnIfMissing(connection, "knowledge_entries", "confidence", "REAL NOT NULL DEFAULT 1.0");
+        addColumnIfMissing(connection, "knowledge_entries", "source", "TEXT NOT NULL DEFAULT 'manual'");
+    }
+
+    /**
+     * Token-Aufteilung des Prompts; bei Zusammenfassungen und alten Zeilen bleibt alles NULL.
+     */
+    private static void replyAuditTokens(Connection connection) throws SQLException {
+        for (String column : List.of(
+                "token_budget",
+                "prompt_tokens",
+                "system_tokens",
+                "user_tokens",
+                "knowledge_tokens",
+                "context_tokens",
+                "history_tokens"
+        )) {
+            addColumnIfMissing(connection, "ai_reply_audit", column, "INTEGER");
+        }
+    }
+
+    /**
+     * Eine Zusammenfassung pro User ersetzt die Nachrichten bis {@code covered_until}.
+     */
+    private static void conversationSummaries(Connection connection) throws SQLException {
+        statements("""
+                CREATE TABLE IF NOT EXISTS conversation_summaries (
+                    guild_id INTEGER NOT NULL,
+                    user_id INTEGER NOT NULL,
+                    summary TEXT NOT NULL,
+                    covered_until INTEGER NOT NULL,
+                    updated_at INTEGER NOT NULL,
+                    PRIMARY KEY (guild_id, user_id)
+                );
+                """).apply(connection);
+        addColumnIfMissing(connection, "ai_reply_audit", "summary_tokens", "INTEGER");
+    }
+
+    /**
+     * Füllt {@code text_hash} für alle Einträge und führt dabei bestehende Duplikate mit denselben
+     * Regeln wie der Upsert zusammen (höchste Confidence, {@code manual} gewinnt), bevor der
+     * Unique-Index angelegt wird.
+     */
+    private static void knowledgeTextHash(Connection connection) throws SQLException {
+        addColumnIfMissing(connection, "knowledge_entries", "text_hash", "INTEGER");
+        hashKnowledge(connection, 0L, -1);
+        mergeKnowledgeDuplicates(connection);
+        createTextHashIndex(connection);
+    }
+
+    /**
+     * Wie {@link #knowledgeTextHash}, aber {@value #ONLINE_BATCH_ROWS} Einträge pro Schritt; der Cursor ist die
+     * nächste id. Neue Einträge bekommen bis zum Ende noch keinen Hash und werden vom Cursor mitgenommen.
+     */
+    private static long knowledgeTextHashOnline(Connection connection, long cursor) throws SQLException {
+        if (cursor == 0) {
+            addColumnIfMissing(connection, "knowledge_entries", "text_hash", "INTEGER");
+            return 1;
+        }
+        long last = hashKnowledge(connection, cursor, ONLINE_BATCH_ROWS);
+        if (last > 0) {
+            return last + 1;
+        }
+        mergeKnowledgeDuplicates(connection);
+        createTextHashIndex(connection);
+        return DONE;
+    }
+
+    /**
+     * Setzt {@code text_hash} ab {@code fromId} für höchstens {@code limit} Einträge (-1 = alle) und liefert die
+     * letzte id, 0 wenn es keine mehr gab.
+     */
+    private static long hashKnowledge(Connection connection, long fromId, int limit) throws SQLException {
+        long last = 0L;
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT id, text, text_hash FROM knowledge_entries WHERE id >= ? ORDER BY id LIMIT ?;");
+             PreparedStatement setHash = connection.prepareStatement(
+                     "UPDATE knowledge_entries SET text_hash = ? WHERE id = ?;")) {
+            select.setLong(1, fromId);
+            select.setInt(2, limit);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    last = resultSet.getLong("id");
+                    long hash = TextHash.of(resultSet.getString("text"));
+                    long existing = resultSet.getLong("text_hash");
+                    if (!resultSet.wasNull() && existing == hash) {
+                        continue;
+                    }
+                    setHash.setLong(1, hash);
+                    setHash.setLong(2, last);
+                    setHash.addBatch();
+                }
+            }
+            setHash.executeBatch();
+        }
+        return last;
+    }
+
+    private static void mergeKnowledgeDuplicates(Connection connection) throws SQLException {
+        Map<String, KeptEntry> kept = new HashMap<>();
+        String selectSql = """
+                SELECT id, guild_id, text_hash, confidence, source, created_at
+                FROM knowledge_entries
+                WHERE (guild_id, text_hash) IN (
+                    SELECT guild_id, text_hash FROM knowledge_entries
+                    GROUP BY guild_id, text_hash
+                    HAVING COUNT(*) > 1
+                )
+                ORDER BY id;
+                """;
+        try (Statement select = connection.createStatement();
+             ResultSet resultSet = select.executeQuery(selectSql);
+             PreparedStatement delete = connection.prepareStatement(
+                     "DELETE FROM knowledge_entries WHERE id = ?;")) {
+            while (resultSet.next()) {
+                long id = resultSet.getLong("id");
+                String key = resultSet.getLong("guild_id") + ":" + resultSet.getLong("text_hash");
+                KeptEntry existing = kept.get(key);
+                if (existing == null) {
+                    kept.put(key, new KeptEntry(
+                            id,
+                            resultSet.getDouble("confidence"),
+                            resultSet.getString("source"),
+                            resultSet.getLong("created_at")
+                    ));
+                    continue;
+                }
+                existing.merge(
+                        resultSet.getDouble("confidence"),
+                        resultSet.getString("source"),
+                        resultSet.getLong("created_at")
+                );
+                delete.setLong(1, id);
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        }
+
+        try (PreparedStatement merge = connection.prepareStatement(
+                "UPDATE knowledge_entries SET confidence = ?, source = ?, created_at = ? WHERE id = ?;")) {
+            for (KeptEntry entry : kept.values()) {
+                if (!entry.merged) {
+                    continue;
+                }
+                merge.setDouble(1, entry.confidence);
+                merge.setString(2, entry.source);
+                merge.setLong(3, entry.createdAt);
+                merge.setLong(4, entry.id);
+                merge.addBatch();
+            }
+            merge.executeBatch();
+        }
+    }
+
+    private static void createTextHashIndex(Connection connection) throws SQLException {
+        statements(
+                "DROP INDEX IF EXISTS idx_knowledge_text;",
+                """
+                CREATE UNIQUE INDEX IF NOT EXISTS idx_knowledge_text_hash
+                ON knowledge_entries (guild_id, text_hash);
+                """
+        ).apply(connection);
+    }
+
+    /**
+     * FTS-Index in Schritten: zuerst Tabelle, Fortschritt und abgesicherte Trigger, dann je
+     * {@value #ONLINE_BATCH_ROWS} Einträge bis zur höchsten id beim Start, zum Schluss die normalen Trigger.
+     * Neue Einträge landen sofort über den Insert-Trigger im Index. Der Fortschritt steht in der Tabelle,
+     * nach einem Neustart geht es dort weiter.
+     */
+    private static long knowledgeFtsOnline(Connection connection, long cursor) throws SQLException {
+        if (cursor == 0) {
+            statements(
+                    FTS_TABLE,
+                    """
+                    CREATE TABLE IF NOT EXISTS knowledge_fts_backfill (
+                        indexed_until INTEGER NOT NULL,
+                        start_max INTEGER NOT NULL
+                    );
+                    """,
+                    """
+                    INSERT INTO knowledge_fts_backfill (indexed_until, start_max)
+                    SELECT 0, coalesce(max(id), 0) FROM knowledge_entries
+                    WHERE NOT EXISTS (SELECT 1 FROM knowledge_fts_backfill);
+                    """,
+                    FTS_INSERT_TRIGGER,
+                    "CREATE TRIGGER IF NOT EXISTS knowledge_fts_delete AFTER DELETE ON knowledge_entries\n"
+                            + FTS_BACKFILL_GUARD
+                            + """
+                            BEGIN
+                                INSERT INTO knowledge_fts (knowledge_fts, rowid, text) VALUES ('delete', old.id, old.text);
+                            END;
+                            """,
+                    "CREATE TRIGGER IF NOT EXISTS knowledge_fts_update AFTER UPDATE OF text ON knowledge_entries\n"
+                            + FTS_BACKFILL_GUARD
+                            + """
+                            BEGIN
+                                INSERT INTO knowledge_fts (knowledge_fts, rowid, text) VALUES ('delete', old.id, old.text);
+                                INSERT INTO knowledge_fts (rowid, text) VALUES (new.id, new.text);
+                            END;
+                            """
+            ).apply(connection);
+            return 1;
+        }
+
+        long indexedUntil;
+        long startMax;
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "SELECT indexed_until, start_max FROM knowledge_fts_backfill;")) {
+            if (!resultSet.next()) {
+                throw new SQLException("knowledge_fts_backfill has no progress row");
+            }
+            indexedUntil = resultSet.getLong("indexed_until");
+            startMax = resultSet.getLong("start_max");
+        }
+
+        long chunkEnd = 0L;
+        try (PreparedStatement statement = connection.prepareStatement("""
+                SELECT max(id) FROM (
+                    SELECT id FROM knowledge_entries
+                    WHERE id > ? AND id <= ?
+                    ORDER BY id
+                    LIMIT ?
+                );
+                """)) {
+            statement.setLong(1, indexedUntil);
+            statement.setLong(2, startMax);
+            statement.setInt(3, ONLINE_BATCH_ROWS);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    chunkEnd = resultSet.getLong(1);
+                }
+            }
+        }
+
+        if (chunkEnd <= 0) {
+            statements(
+                    "DROP TRIGGER IF EXISTS knowledge_fts_delete;",
+                    "DROP TRIGGER IF EXISTS knowledge_fts_update;",
+                    FTS_DELETE_TRIGGER,
+                    FTS_UPDATE_TRIGGER,
+                    "DROP TABLE knowledge_fts_backfill;"
+            ).apply(connection);
+            return DONE;
+        }
+
+        try (PreparedStatement insert = connection.prepareStatement("""
+                INSERT INTO knowledge_fts (rowid, text)
+                SELECT id, text FROM knowledge_entries
+                WHERE id > ? AND id <= ?;
+                """);
+             PreparedStatement progress = connection.prepareStatement(
+                     "UPDATE knowledge_fts_backfill SET indexed_until = ?;")) {
+            insert.setLong(1, indexedUntil);
+            insert.setLong(2, chunkEnd);
+            insert.executeUpdate();
+            progress.setLong(1, chunkEnd);
+            progress.executeUpdate();
+        }
+        return cursor + 1;
+    }
+
+    private static void addColumnIfMissing(Connection connection, String table, String column, String definition)
+            throws SQLException {
+        if (hasColumn(connection, table, column)) {
+            return;
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition + ";");
+        }
+    }
+
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA table_info(" + table + ");")) {
+            while (resultSet.next()) {
+                if (column.equalsIgnoreCase(resultSet.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@code online} ist die schrittweise Variante für den Hintergrund; ohne sie läuft {@code step} dort als
+     * eine einzige Schreiboperation.
+     */
+    record Migration(int version, String description, List<String> largeTables, Step step, OnlineStep online) {
+        Migration(int version, String description, List<String> largeTables, Step step) {
+            this(version, description, largeTables, step, null);
+        }
+
+        Migration(int version, String description, List<String> largeTables, String... sql) {
+            this(version, description, largeTables, statements(sql), statementsOnline(sql));
+        }
+    }
+
+    private static final class KeptEntry {
+        private final long id;
+        private double confidence;
+        private String source;
+        private long createdAt;
+        private boolean merged;
+
+        private KeptEntry(long id, double confidence, String source, long createdAt) {
+            this.id = id;
+            this.confidence = confidence;
+            this.source = source;
+            this.createdAt = createdAt;
+        }
+
+        private void merge(double otherConfidence, String otherSource, long otherCreatedAt) {
+            confidence = Math.max(confidence, otherConfidence);
+            source = "manual".equalsIgnoreCase(source) || "manual".equalsIgnoreCase(otherSource) ? "manual" : "learned";
+            createdAt = Math.max(createdAt, otherCreatedAt);
+            merged = true;
+        }
+    }
+
+    @FunctionalInterface
+    interface Step {
+        void apply(Connection connection) throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface OnlineStep {
+        long apply(Connection connection, long cursor) throws SQLException;
+    }
+}
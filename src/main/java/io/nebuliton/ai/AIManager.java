@@ -4,15 +4,18 @@ import io.nebuliton.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -48,172 +51,410 @@ public final class AIManager {
             Antwort (nur JSON, kein anderer Text):
             """;
 
+    private static final String CONVERSATION_SUMMARY_PROMPT = """
+            Du fasst Unterhaltungen eines Discord-Bots mit einem User für sein Gedächtnis zusammen.
+            Führe die bisherige Zusammenfassung und die neuen Nachrichten zu einer einzigen Zusammenfassung zusammen.
+            Behalte Fakten über den User, Vorlieben, offene Fragen und Absprachen, lass Smalltalk weg.
+            Schreibe knapp auf Deutsch in der dritten Person, höchstens etwa %d Tokens, ohne Einleitung.
+            """;
+
     private final OpenAIClient client;
     private final ContextStore contextStore;
     private final Config config;
-    private final ThreadPoolExecutor executor;
+    private final WorkerPool workers;
+    private final Bulkhead databaseBulkhead;
+    private final AsyncLimiter discordRequests;
+    private final KnowledgeIndex knowledgeIndex;
+    private final PromptAssembler promptAssembler;
+    private final SemanticKnowledgeIndex semanticIndex;
+    private final ConversationCache conversations;
+    private final AdaptiveLimiter completionLimiter;
+    private final RateLimiter busyReplies;
 
     private final AtomicLong totalRequests = new AtomicLong();
     private final AtomicLong totalErrors = new AtomicLong();
     private final AtomicLong totalLatencyMs = new AtomicLong();
+    private final AtomicLong admissionRejected = new AtomicLong();
+    private final AtomicLong busyRepliesSent = new AtomicLong();
+    private final AtomicLong busyRepliesSuppressed = new AtomicLong();
 
     public AIManager(OpenAIClient client, ContextStore contextStore, Config config) {
         this.client = client;
         this.contextStore = contextStore;
         this.config = config;
-        this.executor = new ThreadPoolExecutor(
-                2,
-                2,
-                60L,
-                TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(200),
-                runnable -> {
-                    Thread thread = new Thread(runnable, "ai-worker");
-                    thread.setDaemon(true);
-                    return thread;
-                }
+        Tokenizer tokenizer = client.tokenizer();
+        this.knowledgeIndex = new KnowledgeIndex(contextStore, tokenizer);
+        this.promptAssembler = new PromptAssembler(tokenizer, config);
+        this.conversations = new ConversationCache(
+                contextStore,
+                config.ux.maxConversationMessages,
+                config.ux.conversationCacheMb * 1024L * 1024L,
+                config.ux.conversationFlushMillis,
+                config.ux.conversationSummaries ? this::summarizeConversation : null,
+                config.ux.summaryKeepMessages
         );
+        this.completionLimiter = new AdaptiveLimiter(config.openai);
+        this.busyReplies = new RateLimiter(Duration.ofSeconds(config.ux.busyReplyCooldownSeconds));
+        this.semanticIndex = "semantic".equalsIgnoreCase(config.ux.knowledgeRetrieval)
+                ? new SemanticKnowledgeIndex(contextStore, client, config.openai)
+                : null;
+        this.workers = new WorkerPool(config.execution);
+        this.databaseBulkhead = new Bulkhead(
+                "database bulkhead",
+                config.execution.databaseConcurrency,
+                config.execution.acquireTimeoutMillis
+        );
+        // Antworten müssen raus, daher ohne Queue-Limit; Zwischenstände nutzen trySubmit
+        this.discordRequests = new AsyncLimiter(config.execution.discordConcurrency, Integer.MAX_VALUE);
     }
 
     public CompletableFuture<String> generateReply(long guildId, long userId, String displayName, String prompt) {
+        return generateReply(guildId, userId, displayName, prompt, null);
+    }
+
+    /**
+     * Mit {@code onPartial} wird die Antwort gestreamt: der Consumer bekommt nach jedem Chunk den bisher sichtbaren
+     * Text ohne {@code [LEARN:...]}-Tags. Das Future liefert wie gehabt die fertige, bereinigte Antwort.
+     *
+     * Bei Überlast (siehe {@link #isOverload}) schlägt das Future fehl statt mit {@code ux.errorReply} zu enden,
+     * damit der Aufrufer mit {@link #busyReply} antworten kann.
+     */
+    public CompletableFuture<String> generateReply(
+            long guildId,
+            long userId,
+            String displayName,
+            String prompt,
+            Consumer<String> onPartial
+    ) {
+        if (!admit(WorkClass.REPLY, guildId)) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("AI is overloaded"));
+        }
         totalRequests.incrementAndGet();
-        return CompletableFuture.supplyAsync(() -> {
-            long startedAt = System.currentTimeMillis();
-            boolean storageAllowed = contextStore.isStorageAllowed(guildId, userId);
+        long startedAt = System.currentTimeMillis();
+        return queryEmbedding(guildId, prompt)
+                .thenCompose(query -> supplyOnWorkers(() -> databaseBulkhead.call(
+                        () -> prepareReply(startedAt, guildId, userId, displayName, prompt, query)
+                )))
+                .thenCompose(request -> completionLimiter.submit(
+                                WorkClass.REPLY,
+                                guildId,
+                                () -> complete(request.messages(), onPartial)
+                        )
+                        .thenApplyAsync(response -> finishReply(guildId, userId, prompt, request, response), workers))
+                .exceptionally(error -> {
+                    Throwable cause = rootCause(error);
+                    if (isOverload(cause)) {
+                        throw new CompletionException(cause);
+                    }
+                    totalErrors.incrementAndGet();
+                    logOpenAIError(cause);
+                    return config.ux.errorReply;
+                });
+    }
 
-            List<OpenAIClient.ChatMessage> messages = new ArrayList<>();
-            messages.add(new OpenAIClient.ChatMessage("system", buildSystemPrompt()));
-            messages.add(new OpenAIClient.ChatMessage(
-                    "system",
-                    "User: " + displayName + " (" + userId + "). Sprich den User gelegentlich mit dem Namen an."
-            ));
+    /**
+     * {@code true}, wenn der Fehler Überlast bedeutet: abgelehnt, aus der Queue verworfen oder ohne RPM/TPM-Budget.
+     */
+    public static boolean isOverload(Throwable error) {
+        Throwable cause = rootCause(error);
+        return cause instanceof RejectedExecutionException
+                || cause instanceof OpenAIException failure && failure.kind() == OpenAIException.Kind.THROTTLED;
+    }
 
-            List<ContextStore.KnowledgeEntry> knowledgeEntries =
-                    contextStore.listKnowledge(guildId, config.ux.maxKnowledgeEntries);
-            if (!knowledgeEntries.isEmpty()) {
-                StringBuilder knowledge = new StringBuilder("Server-Wissen:\n");
-                for (ContextStore.KnowledgeEntry entry : knowledgeEntries) {
-                    knowledge.append("- ").append(entry.text()).append('\n');
-                }
-                messages.add(new OpenAIClient.ChatMessage("system", knowledge.toString().trim()));
-            }
+    /**
+     * {@code ux.busyReply}, höchstens einmal pro {@code ux.busyReplyCooldownSeconds} und Channel; sonst leer,
+     * dann bleibt die Nachricht unbeantwortet.
+     */
+    public Optional<String> busyReply(long guildId, long channelId) {
+        String text = config.ux.busyReply;
+        if (text == null || text.isBlank() || !busyReplies.allow(guildId, channelId)) {
+            busyRepliesSuppressed.incrementAndGet();
+            return Optional.empty();
+        }
+        busyRepliesSent.incrementAndGet();
+        return Optional.of(text);
+    }
 
-            Optional<String> userContext = storageAllowed
-                    ? contextStore.getUserContext(guildId, userId)
-                    : Optional.empty();
-            userContext.ifPresent(context -> messages.add(new OpenAIClient.ChatMessage(
-                    "system",
-                    "User-Kontext (nur nutzen, wenn relevant): " + context
-            )));
-
-            int includedHistory = 0;
-            if (storageAllowed && config.ux.maxConversationMessages > 0) {
-                List<ContextStore.ConversationMessage> history =
-                        contextStore.listConversationMessages(guildId, userId, config.ux.maxConversationMessages);
-                for (ContextStore.ConversationMessage message : history) {
-                    if (message.content() == null || message.content().isBlank()) {
-                        continue;
-                    }
-                    String role = message.role();
-                    if (!"user".equals(role) && !"assistant".equals(role)) {
-                        continue;
+    /**
+     * Prüft vor jeder Arbeit, ob der Request noch angenommen würde: Worker-Queue nicht voll und der Limiter
+     * erwartet, dass er vor seiner Deadline fertig wird.
+     */
+    private boolean admit(WorkClass workClass, long guildId) {
+        if (!workers.saturated() && completionLimiter.admits(workClass, guildId)) {
+            return true;
+        }
+        admissionRejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Eine volle Worker-Queue (nur mit Plattform-Threads) wirft beim Einreihen; hier wird daraus ein
+     * fehlgeschlagenes Future, statt dass die Exception auf dem JDA-Thread landet.
+     */
+    private <T> CompletableFuture<T> supplyOnWorkers(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, workers);
+        } catch (RejectedExecutionException e) {
+            admissionRejected.incrementAndGet();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Führt blockierende Arbeit mit Datenbankzugriff (z.B. einen Slash-Command) auf einem Worker aus, begrenzt
+     * durch {@code execution.databaseConcurrency}. So bleibt der JDA-Event-Thread frei.
+     */
+    public CompletableFuture<Void> runBlocking(Runnable task) {
+        return supplyOnWorkers(() -> {
+            databaseBulkhead.run(task);
+            return null;
+        });
+    }
+
+    /**
+     * Begrenzt gleichzeitige Discord-Requests für Antworten, siehe {@code execution.discordConcurrency}.
+     */
+    AsyncLimiter discordRequests() {
+        return discordRequests;
+    }
+
+    /**
+     * Der Vektor des Prompts für die semantische Suche, oder {@code null} für BM25. Läuft vor dem Bulkhead und ohne
+     * Thread, damit kein Datenbank-Platz einen ganzen Provider-Roundtrip lang belegt ist.
+     */
+    private CompletableFuture<float[]> queryEmbedding(long guildId, String prompt) {
+        if (semanticIndex == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return semanticIndex.embedQuery(guildId, prompt).exceptionally(error -> {
+            LOG.warn("Semantische Wissenssuche fehlgeschlagen, nutze BM25: {}", rootMessage(error));
+            return null;
+        });
+    }
+
+    /**
+     * Baut den Prompt. Läuft auf einem ai-worker, weil Wissenssuche und User-Kontext noch an die Datenbank gehen können.
+     */
+    private PreparedReply prepareReply(
+            long startedAt,
+            long guildId,
+            long userId,
+            String displayName,
+            String prompt,
+            float[] query
+    ) {
+        boolean storageAllowed = contextStore.isStorageAllowed(guildId, userId);
+
+        KnowledgeIndex.Snapshot snapshot = knowledgeIndex.snapshot(guildId);
+        List<KnowledgeIndex.Match> knowledgeMatches = snapshot.size() == 0
+                ? List.of()
+                : retrieveKnowledge(guildId, prompt, query, snapshot);
+        String userContext = storageAllowed
+                ? contextStore.getUserContext(guildId, userId).orElse(null)
+                : null;
+        ConversationCache.History history = storageAllowed && config.ux.maxConversationMessages > 0
+                ? conversations.history(guildId, userId)
+                : new ConversationCache.History(null, List.of());
+
+        PromptAssembler.Prompt assembled = promptAssembler.assemble(
+                List.of(
+                        buildSystemPrompt(),
+                        "User: " + displayName + " (" + userId + "). Sprich den User gelegentlich mit dem Namen an."
+                ),
+                prompt,
+                snapshot,
+                knowledgeMatches,
+                userContext,
+                history.summary(),
+                history.messages()
+        );
+        return new PreparedReply(
+                startedAt,
+                storageAllowed,
+                assembled.messages(),
+                assembled.knowledge(),
+                assembled.usedUserContext(),
+                assembled.includedHistory(),
+                assembled.tokens()
+        );
+    }
+
+    private CompletableFuture<String> complete(List<OpenAIClient.ChatMessage> messages, Consumer<String> onPartial) {
+        if (onPartial == null) {
+            return client.createChatCompletion(
+                    config.openai.model,
+                    messages,
+                    config.openai.temperature,
+                    config.openai.maxTokens
+            );
+        }
+        LearnTagFilter filter = new LearnTagFilter();
+        return client.streamChatCompletion(
+                config.openai.model,
+                messages,
+                config.openai.temperature,
+                config.openai.maxTokens,
+                delta -> {
+                    if (filter.append(delta)) {
+                        onPartial.accept(filter.visible());
                     }
-                    includedHistory++;
-                    messages.add(new OpenAIClient.ChatMessage(role, message.content()));
                 }
-            }
+        );
+    }
 
-            messages.add(new OpenAIClient.ChatMessage("user", prompt));
-            try {
-                String response = client.createChatCompletion(
-                        config.openai.model,
-                        messages,
-                        config.openai.temperature,
-                        config.openai.maxTokens
-                );
-                long latency = Math.max(0L, System.currentTimeMillis() - startedAt);
-                totalLatencyMs.addAndGet(latency);
+    private String finishReply(long guildId, long userId, String prompt, PreparedReply request, String response) {
+        long latency = Math.max(0L, System.currentTimeMillis() - request.startedAt());
+        totalLatencyMs.addAndGet(latency);
 
-                if (response == null || response.isBlank()) {
-                    totalErrors.incrementAndGet();
-                    return config.ux.errorReply;
-                }
+        if (response == null || response.isBlank()) {
+            totalErrors.incrementAndGet();
+            return config.ux.errorReply;
+        }
 
-                String cleanResponse = processLearning(guildId, userId, response, storageAllowed);
-                if (storageAllowed) {
-                    contextStore.saveReplyAudit(
-                            guildId,
-                            userId,
-                            config.openai.model,
-                            userContext.isPresent(),
-                            includedHistory,
-                            knowledgeEntries.stream().map(ContextStore.KnowledgeEntry::id).toList(),
-                            previewKnowledge(knowledgeEntries),
-                            truncate(prompt, 400),
-                            truncate(cleanResponse, 600),
-                            latency
-                    );
+        String cleanResponse = processLearning(guildId, userId, response, request.storageAllowed());
+        if (request.storageAllowed()) {
+            List<ContextStore.KnowledgeEntry> knowledgeEntries =
+                    request.knowledgeMatches().stream().map(KnowledgeIndex.Match::entry).toList();
+            contextStore.saveReplyAudit(
+                    guildId,
+                    userId,
+                    config.openai.model,
+                    request.usedUserContext(),
+                    request.includedHistory(),
+                    knowledgeEntries.stream().map(ContextStore.KnowledgeEntry::id).toList(),
+                    request.knowledgeMatches().stream().map(KnowledgeIndex.Match::score).toList(),
+                    previewKnowledge(knowledgeEntries),
+                    truncate(prompt, 400),
+                    truncate(cleanResponse, 600),
+                    latency,
+                    request.tokens()
+            ).exceptionally(error -> {
+                LOG.warn("Reply-Audit konnte nicht gespeichert werden: {}", rootMessage(error));
+                return null;
+            });
+        }
+        return cleanResponse;
+    }
+
+    /**
+     * Semantische Suche, falls es einen Vektor zum Prompt gibt und der Graph der Guild bereit ist, sonst BM25.
+     */
+    private List<KnowledgeIndex.Match> retrieveKnowledge(
+            long guildId,
+            String prompt,
+            float[] query,
+            KnowledgeIndex.Snapshot snapshot
+    ) {
+        if (semanticIndex != null && query != null) {
+            try {
+                Optional<List<KnowledgeIndex.Match>> matches = semanticIndex.search(
+                        guildId,
+                        snapshot,
+                        query,
+                        config.ux.maxKnowledgeEntries,
+                        config.ux.knowledgeMinSimilarity
+                );
+                if (matches.isPresent()) {
+                    return matches.get();
                 }
-                return cleanResponse;
-            } catch (Exception e) {
-                totalErrors.incrementAndGet();
-                logOpenAIError(e.getMessage());
-                return config.ux.errorReply;
+            } catch (RuntimeException e) {
+                LOG.warn("Semantische Wissenssuche fehlgeschlagen, nutze BM25: {}", e.getMessage());
             }
-        }, executor);
+        }
+        return snapshot.search(prompt, config.ux.maxKnowledgeEntries, config.ux.knowledgeMinScore);
+    }
+
+    /**
+     * Hängt Nachrichten an die Konversation an; in die Datenbank kommen sie gesammelt im Hintergrund.
+     */
+    public void rememberConversation(long guildId, long userId, List<ContextStore.ConversationMessage> messages) {
+        conversations.append(guildId, userId, messages);
+    }
+
+    public void forgetConversation(long guildId, long userId) {
+        conversations.clear(guildId, userId);
+    }
+
+    /**
+     * Schreibt noch ausstehende Konversationen, bevor die Datenbank geschlossen wird.
+     */
+    public void close() {
+        conversations.close();
+        workers.close();
     }
 
     public CompletableFuture<String> summarizeMessages(long guildId, long userId, String style, List<String> messages) {
+        if (!admit(WorkClass.COMMAND, guildId)) {
+            return CompletableFuture.completedFuture(busyText());
+        }
         totalRequests.incrementAndGet();
-        return CompletableFuture.supplyAsync(() -> {
-            long startedAt = System.currentTimeMillis();
-            boolean storageAllowed = contextStore.isStorageAllowed(guildId, userId);
-            try {
-                List<OpenAIClient.ChatMessage> prompt = new ArrayList<>();
-                prompt.add(new OpenAIClient.ChatMessage("system", """
-                        Du bist ein Discord-Assistant.
-                        Erstelle eine praezise Zusammenfassung auf Deutsch.
-                        Gib zuerst 4-8 Stichpunkte und dann den Block 'Action Items' mit klaren TODOs.
-                        Wenn etwas unklar ist, schreibe 'Unklar' statt zu raten.
-                        """));
-                prompt.add(new OpenAIClient.ChatMessage("user", buildSummaryPrompt(style, messages)));
-
-                String response = client.createChatCompletion(
+        long startedAt = System.currentTimeMillis();
+        boolean storageAllowed = contextStore.isStorageAllowed(guildId, userId);
+        List<OpenAIClient.ChatMessage> prompt = new ArrayList<>();
+        prompt.add(new OpenAIClient.ChatMessage("system", """
+                Du bist ein Discord-Assistant.
+                Erstelle eine praezise Zusammenfassung auf Deutsch.
+                Gib zuerst 4-8 Stichpunkte und dann den Block 'Action Items' mit klaren TODOs.
+                Wenn etwas unklar ist, schreibe 'Unklar' statt zu raten.
+                """));
+        prompt.add(new OpenAIClient.ChatMessage("user", buildSummaryPrompt(style, messages)));
+
+        return completionLimiter.submit(WorkClass.COMMAND, guildId, () -> client.createChatCompletion(
                         config.openai.model,
                         prompt,
                         0.3,
                         Math.max(220, config.openai.maxTokens)
-                );
-                long latency = Math.max(0L, System.currentTimeMillis() - startedAt);
-                totalLatencyMs.addAndGet(latency);
-                if (storageAllowed) {
-                    contextStore.saveReplyAudit(
-                            guildId,
-                            userId,
-                            config.openai.model,
-                            false,
-                            0,
-                            List.of(),
-                            "",
-                            truncate("summarize:" + style, 200),
-                            truncate(response, 600),
-                            latency
-                    );
-                }
-                if (response == null || response.isBlank()) {
+                ))
+                .thenApply(response -> {
+                    long latency = Math.max(0L, System.currentTimeMillis() - startedAt);
+                    totalLatencyMs.addAndGet(latency);
+                    if (storageAllowed) {
+                        contextStore.saveReplyAudit(
+                                guildId,
+                                userId,
+                                config.openai.model,
+                                false,
+                                0,
+                                List.of(),
+                                List.of(),
+                                "",
+                                truncate("summarize:" + style, 200),
+                                truncate(response, 600),
+                                latency,
+                                null
+                        ).exceptionally(error -> {
+                            LOG.warn("Reply-Audit konnte nicht gespeichert werden: {}", rootMessage(error));
+                            return null;
+                        });
+                    }
+                    if (response == null || response.isBlank()) {
+                        totalErrors.incrementAndGet();
+                        return "Konnte keine Zusammenfassung erzeugen.";
+                    }
+                    return response;
+                })
+                .exceptionally(error -> {
+                    if (isOverload(error)) {
+                        return busyText();
+                    }
                     totalErrors.incrementAndGet();
-                    return "Konnte keine Zusammenfassung erzeugen.";
-                }
-                return response;
-            } catch (Exception e) {
-                totalErrors.incrementAndGet();
-                logOpenAIError(e.getMessage());
-                return config.ux.errorReply;
-            }
-        }, executor);
+                    logOpenAIError(rootCause(error));
+                    return config.ux.errorReply;
+                });
+    }
+
+    /**
+     * Für Commands: jede Interaktion braucht eine Antwort, daher ohne Cooldown.
+     */
+    private String busyText() {
+        String text = config.ux.busyReply;
+        return text == null || text.isBlank() ? config.ux.errorReply : text;
     }
 
-    public HealthStats healthStats() {
+    /**
+     * {@code guildId} bestimmt, welche Server-Queue in {@link HealthStats#guildQueue()} steht.
+     */
+    public HealthStats healthStats(long guildId) {
         long requests = totalRequests.get();
         long errors = totalErrors.get();
         long latencyTotal = totalLatencyMs.get();
@@ -222,9 +463,24 @@ public final class AIManager {
                 requests,
                 errors,
                 avgLatency,
-                executor.getQueue().size(),
-                executor.getActiveCount(),
-                executor.getCompletedTaskCount(),
+                workers.isVirtual(),
+                workers.queued(),
+                workers.active(),
+                workers.completed(),
+                workers.avgQueueWaitMicros(),
+                completionLimiter.stats(),
+                completionLimiter.guildStats(guildId),
+                new OverloadStats(
+                        admissionRejected.get(),
+                        busyRepliesSent.get(),
+                        busyRepliesSuppressed.get()
+                ),
+                client.resilienceStats(),
+                client.admissionStats(),
+                client.hedgeStats(),
+                databaseBulkhead.stats(),
+                discordRequests.stats(),
+                conversations.memoryBytes(),
                 Instant.now().toEpochMilli()
         );
     }
@@ -285,19 +541,27 @@ public final class AIManager {
         while (matcher.find()) {
             String learnContent = matcher.group(1).trim();
             if (storageAllowed && !learnContent.isBlank() && learnContent.length() <= config.ux.maxKnowledgeLength) {
-                CompletableFuture.runAsync(() -> {
-                    try {
-                        FactCheckResult result = factCheck(learnContent);
-                        if (result.valid()) {
-                            contextStore.addLearnedKnowledge(guildId, userId, learnContent, result.confidence());
-                            LOG.info("Neues Wissen gelernt (confidence={}): {}", result.confidence(), learnContent);
-                        } else {
-                            LOG.info("Wissen abgelehnt: {} ({})", learnContent, result.reason());
-                        }
-                    } catch (Exception e) {
-                        LOG.warn("Fact-Check fehlgeschlagen: {}", e.getMessage());
-                    }
-                }, executor);
+                factCheck(guildId, learnContent)
+                        .thenCompose(result -> {
+                            if (!result.valid()) {
+                                LOG.info("Wissen abgelehnt: {} ({})", learnContent, result.reason());
+                                return CompletableFuture.completedFuture(null);
+                            }
+                            return contextStore.addLearnedKnowledge(guildId, userId, learnContent, result.confidence())
+                                    .thenRun(() -> LOG.info(
+                                            "Neues Wissen gelernt (confidence={}): {}",
+                                            result.confidence(),
+                                            learnContent
+                                    ));
+                        })
+                        .exceptionally(error -> {
+                            if (isOverload(error)) {
+                                LOG.debug("Fact-Check übersprungen, zu viel los: {}", learnContent);
+                            } else {
+                                LOG.warn("Fact-Check fehlgeschlagen: {}", rootMessage(error));
+                            }
+                            return null;
+                        });
             }
             matcher.appendReplacement(cleanResponse, "");
         }
@@ -306,33 +570,88 @@ public final class AIManager {
         return cleanResponse.toString().trim().replaceAll("\\s{2,}", " ");
     }
 
-    private FactCheckResult factCheck(String statement) {
-        try {
-            List<OpenAIClient.ChatMessage> messages = List.of(
-                    new OpenAIClient.ChatMessage("system", "Du bist ein strenger Fact-Checker. Antworte nur mit JSON."),
-                    new OpenAIClient.ChatMessage("user", String.format(FACT_CHECK_PROMPT, statement))
-            );
+    /**
+     * Verdichtet ältere Nachrichten für {@link ConversationCache} über die Hintergrund-Lane; bei Überlast schlägt
+     * das Future fehl und die Konversation wird später erneut versucht.
+     */
+    private CompletableFuture<String> summarizeConversation(
+            long guildId,
+            long userId,
+            String previousSummary,
+            List<ContextStore.ConversationMessage> messages
+    ) {
+        if (!admit(WorkClass.BACKGROUND, guildId)) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("AI is overloaded"));
+        }
+        StringBuilder transcript = new StringBuilder();
+        if (previousSummary != null && !previousSummary.isBlank()) {
+            transcript.append("Bisherige Zusammenfassung:\n").append(previousSummary).append("\n\n");
+        }
+        transcript.append("Neue Nachrichten:\n");
+        for (ContextStore.ConversationMessage message : messages) {
+            transcript.append("assistant".equals(message.role()) ? "Bot: " : "User: ")
+                    .append(message.content())
+                    .append('\n');
+        }
+        List<OpenAIClient.ChatMessage> prompt = List.of(
+                new OpenAIClient.ChatMessage("system", String.format(CONVERSATION_SUMMARY_PROMPT, config.ux.maxSummaryTokens)),
+                new OpenAIClient.ChatMessage("user", transcript.toString().trim())
+        );
+        return completionLimiter.submit(WorkClass.BACKGROUND, guildId, () -> client.createChatCompletion(
+                config.openai.model,
+                prompt,
+                0.2,
+                config.ux.maxSummaryTokens,
+                OpenAIClient.Priority.BACKGROUND
+        ));
+    }
 
-            String response = client.createChatCompletion(
-                    config.openai.model,
-                    messages,
-                    0.1,
-                    120
-            );
+    private CompletableFuture<FactCheckResult> factCheck(long guildId, String statement) {
+        if (!admit(WorkClass.BACKGROUND, guildId)) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("AI is overloaded"));
+        }
+        List<OpenAIClient.ChatMessage> messages = List.of(
+                new OpenAIClient.ChatMessage("system", "Du bist ein strenger Fact-Checker. Antworte nur mit JSON."),
+                new OpenAIClient.ChatMessage("user", String.format(FACT_CHECK_PROMPT, statement))
+        );
 
-            if (response == null || response.isBlank()) {
-                return new FactCheckResult(false, 0.0, "empty response");
-            }
+        return completionLimiter.submit(WorkClass.BACKGROUND, guildId, () -> client.createChatCompletion(
+                        config.openai.model,
+                        messages,
+                        0.1,
+                        120,
+                        OpenAIClient.Priority.BACKGROUND
+                ))
+                .thenApply(response -> {
+                    if (response == null || response.isBlank()) {
+                        return new FactCheckResult(false, 0.0, "empty response");
+                    }
 
-            Matcher validMatcher = VALID_PATTERN.matcher(response);
-            boolean valid = validMatcher.find() && "true".equalsIgnoreCase(validMatcher.group(1));
-            double confidence = extractConfidence(response, valid ? 0.55 : 0.0);
-            String reason = extractReason(response);
-            return new FactCheckResult(valid, confidence, reason);
-        } catch (Exception e) {
-            LOG.warn("Fact-Check API Fehler: {}", e.getMessage());
-            return new FactCheckResult(false, 0.0, "api error");
+                    Matcher validMatcher = VALID_PATTERN.matcher(response);
+                    boolean valid = validMatcher.find() && "true".equalsIgnoreCase(validMatcher.group(1));
+                    double confidence = extractConfidence(response, valid ? 0.55 : 0.0);
+                    String reason = extractReason(response);
+                    return new FactCheckResult(valid, confidence, reason);
+                })
+                .exceptionally(error -> {
+                    LOG.warn("Fact-Check API Fehler: {}", rootMessage(error));
+                    return new FactCheckResult(false, 0.0, "api error");
+                });
+    }
+
+    /**
+     * Der eigentliche Fehler hinter den Wrappern aus den Future-Stufen.
+     */
+    private static Throwable rootCause(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
         }
+        return cause;
+    }
+
+    private static String rootMessage(Throwable error) {
+        return rootCause(error).getMessage();
     }
 
     private double extractConfidence(String response, double fallback) {
@@ -356,7 +675,25 @@ public final class AIManager {
         return matcher.group(1);
     }
 
-    private void logOpenAIError(String msg) {
+    private void logOpenAIError(Throwable error) {
+        if (error instanceof OpenAIException failure) {
+            switch (failure.kind()) {
+                case AUTH -> LOG.error(failure.status() == 403
+                        ? "Zugriff verweigert - dein API-Key hat keine Berechtigung für dieses Modell"
+                        : "API-Key ist ungültig! Hol dir einen neuen von platform.openai.com");
+                case QUOTA -> LOG.error("Kein Guthaben mehr auf deinem OpenAI Account!");
+                case RATE_LIMITED -> LOG.warn("Rate-Limit erreicht - auch nach Wiederholungen zu viele Anfragen");
+                case SERVER_ERROR -> LOG.warn("OpenAI Server hat Probleme ({}) - versuch's später nochmal", failure.status());
+                case TIMEOUT -> LOG.warn("Timeout - Anfrage hat zu lange gedauert");
+                case CONNECTION -> LOG.error("Keine Verbindung zu OpenAI moeglich - check dein Internet");
+                case CONTEXT_LENGTH -> LOG.warn("Nachricht zu lang - Konversation wird gekuerzt");
+                case THROTTLED -> LOG.warn("Anfrage verworfen - RPM/TPM-Budget ausgeschöpft oder alle Backends ausgelastet");
+                case CIRCUIT_OPEN -> LOG.warn("Alle OpenAI-Backends gestört - Anfragen pausieren noch {}s", failure.retryAfterMillis() / 1000);
+                default -> LOG.error("OpenAI Fehler: {}", String.valueOf(failure.getMessage()).split("\\n")[0]);
+            }
+            return;
+        }
+        String msg = error.getMessage();
         if (msg == null) {
             LOG.error("Unbekannter Fehler aufgetreten");
         } else if (msg.contains("401")) {
@@ -390,14 +727,172 @@ public final class AIManager {
     private record FactCheckResult(boolean valid, double confidence, String reason) {
     }
 
+    /**
+     * Filtert {@code [LEARN:...]} aus einem Textstrom, auch wenn ein Tag über mehrere Chunks verteilt ist. Was noch
+     * der Anfang eines Tags sein kann, wird zurückgehalten, bis es sich entscheidet.
+     */
+    private static final class LearnTagFilter {
+        private static final String OPEN = "[learn:";
+
+        private final StringBuilder visible = new StringBuilder();
+        private final StringBuilder held = new StringBuilder();
+        private boolean inTag;
+
+        /**
+         * Liefert {@code true}, wenn sich der sichtbare Text geändert hat.
+         */
+        private boolean append(String chunk) {
+            int before = visible.length();
+            for (int i = 0; i < chunk.length(); i++) {
+                accept(chunk.charAt(i));
+            }
+            return visible.length() != before;
+        }
+
+        private void accept(char c) {
+            if (inTag) {
+                inTag = c != ']';
+                return;
+            }
+            if (held.isEmpty()) {
+                if (c == '[') {
+                    held.append(c);
+                } else {
+                    visible.append(c);
+                }
+                return;
+            }
+            if (Character.toLowerCase(c) == OPEN.charAt(held.length())) {
+                held.append(c);
+                if (held.length() == OPEN.length()) {
+                    held.setLength(0);
+                    inTag = true;
+                }
+                return;
+            }
+            // Doch kein Tag: Zurückgehaltenes freigeben und das Zeichen neu bewerten ('[' kommt nur vorne vor)
+            visible.append(held);
+            held.setLength(0);
+            accept(c);
+        }
+
+        /**
+         * Gleich normalisiert wie in {@link #processLearning}, damit der letzte Edit nicht springt.
+         */
+        private String visible() {
+            return visible.toString().trim().replaceAll("\\s{2,}", " ");
+        }
+    }
+
+    private record PreparedReply(
+            long startedAt,
+            boolean storageAllowed,
+            List<OpenAIClient.ChatMessage> messages,
+            List<KnowledgeIndex.Match> knowledgeMatches,
+            boolean usedUserContext,
+            int includedHistory,
+            ContextStore.PromptTokens tokens
+    ) {
+    }
+
     public record HealthStats(
             long totalRequests,
             long totalErrors,
             long avgLatencyMs,
+            boolean virtualThreads,
             int queueDepth,
             int activeWorkers,
             long completedTasks,
+            long avgQueueWaitMicros,
+            LimiterStats openAi,
+            GuildQueueStats guildQueue,
+            OverloadStats overload,
+            OpenAIClient.ResilienceStats provider,
+            OpenAIClient.AdmissionStats admission,
+            OpenAIClient.HedgeStats hedging,
+            BulkheadStats database,
+            BulkheadStats discord,
+            long conversationCacheBytes,
             long measuredAt
     ) {
     }
+
+    /**
+     * Das adaptive Limit für Provider-Requests; {@code recentRttMs} gegen {@code baselineRttMs} bestimmt, ob es
+     * wächst oder schrumpft.
+     */
+    public record LimiterStats(
+            int limit,
+            int minLimit,
+            int maxLimit,
+            boolean adaptive,
+            int inFlight,
+            List<WorkClassStats> classes,
+            int activeGuilds,
+            int longestGuildQueue,
+            long recentRttMs,
+            long baselineRttMs,
+            long avgWaitMicros,
+            long rejected,
+            long shed
+    ) {
+    }
+
+    /**
+     * Eine Klasse im Limiter; {@code cap} ist ihr Anteil am aktuellen Limit, {@code promoted} zählt Starts vor
+     * dringenderer Arbeit, weil sie zu lange gewartet hat.
+     */
+    public record WorkClassStats(
+            WorkClass workClass,
+            int cap,
+            int inFlight,
+            int queued,
+            long started,
+            long avgWaitMicros,
+            long maxWaitMicros,
+            long promoted,
+            long rejected,
+            long shed
+    ) {
+    }
+
+    /**
+     * Die Provider-Requests eines Servers über alle Klassen; {@code maxInFlight} 0 = unbegrenzt.
+     */
+    public record GuildQueueStats(
+            long guildId,
+            int weight,
+            int maxInFlight,
+            int inFlight,
+            int queued,
+            long started,
+            long avgWaitMicros,
+            long maxWaitMicros,
+            long rejected,
+            long shed
+    ) {
+    }
+
+    /**
+     * Abgewiesene Arbeit vor dem Einreihen; {@code busyRepliesSuppressed} zählt Überlast-Fälle, in denen der
+     * Cooldown keine {@code ux.busyReply} mehr erlaubt hat. Volle Queues und Deadlines stehen in {@link LimiterStats}.
+     */
+    public record OverloadStats(
+            long admissionRejected,
+            long busyReplies,
+            long busyRepliesSuppressed
+    ) {
+    }
+
+    /**
+     * Auslastung einer begrenzten Ressource; {@code waiting} sind Aufgaben, die auf einen freien Platz warten.
+     */
+    public record BulkheadStats(
+            int limit,
+            int inUse,
+            int waiting,
+            long avgWaitMicros,
+            long rejected
+    ) {
+    }
 }
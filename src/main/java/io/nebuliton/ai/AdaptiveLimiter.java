@@ -0,0 +1,669 @@
+package io.nebuliton.ai;
+
+import io.nebuliton.config.Config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Begrenzt gleichzeitige Provider-Requests mit einem Limit, das sich an der Latenz ausrichtet (Gradient-Verfahren).
+ *
+ * Jede Laufzeit fließt in einen kurzen gleitenden Mittelwert. Dessen Minimum ist die Basis ohne Last; sie
+ * steigt um {@link #BASELINE_DRIFT_PER_SECOND}, damit ein dauerhaft langsamerer Provider (oder ein anderes
+ * Modell) nicht ewig als Überlast gilt. Solange der Mittelwert nicht deutlich über der Basis liegt, wächst das
+ * Limit um etwa √Limit, steigt die Latenz über {@link #TOLERANCE} × Basis, schrumpft es im Verhältnis.
+ * Überlast-Fehler des Providers (429, 5xx, Timeouts) senken es sofort.
+ *
+ * Requests über dem Limit warten ohne Thread in einer begrenzten Queue je {@link WorkClass}. Freie Plätze gehen
+ * an die dringendste Klasse, außer eine niedrigere wartet schon länger als {@code starvationMillis}. Commands und
+ * Hintergrund-Arbeit dürfen nur ihren Anteil am aktuellen Limit belegen.
+ *
+ * Innerhalb einer Klasse kommen die Server reihum dran (Deficit Round Robin): pro Runde startet ein Server so
+ * viele Requests, wie sein Gewicht erlaubt, und nie mehr gleichzeitig als sein {@code maxInFlight}. Ist die Queue
+ * voll, verdrängt ein Request den jüngsten der niedrigsten Klasse, sonst den jüngsten des Servers mit den meisten
+ * Wartenden; hat der eigene Server selbst die meisten, wird er abgelehnt.
+ *
+ * Antworten und Commands haben eine Deadline: wer so lange gewartet hat, dass er mit der aktuellen Laufzeit nicht
+ * mehr rechtzeitig fertig würde, fliegt aus der Queue. {@link #admits} schätzt dasselbe schon vor dem Einreihen.
+ */
+final class AdaptiveLimiter {
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double SHORT_ALPHA = 2.0 / (10 + 1);
+    private static final double BASELINE_DRIFT_PER_SECOND = 0.005;
+    private static final double BACKOFF = 0.9;
+
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueued;
+    private final long starvationNanos;
+    private final int guildMaxInFlight;
+    private final Map<Long, Config.GuildQuota> quotas = new HashMap<>();
+    private final Lane[] lanes;
+    /** Jeder Server, der schon einmal angefragt hat; die Zahl ist durch die Server des Bots begrenzt */
+    private final Map<Long, GuildQueue> guilds = new HashMap<>();
+
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private double shortRttNanos = -1;
+    private double baselineRttNanos = -1;
+    private long sampledAt;
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    AdaptiveLimiter(Config.OpenAI config) {
+        this.adaptive = config.adaptiveConcurrency;
+        this.maxLimit = Math.max(1, config.maxInFlight);
+        this.minLimit = Math.max(1, Math.min(config.minInFlight, maxLimit));
+        this.maxQueued = Math.max(0, config.maxQueuedRequests);
+        this.starvationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, config.starvationMillis));
+        this.guildMaxInFlight = Math.max(0, config.guildMaxInFlight);
+        if (config.guildQuotas != null) {
+            for (Config.GuildQuota quota : config.guildQuotas) {
+                quotas.put(quota.id, quota);
+            }
+        }
+        this.limit = adaptive ? Math.max(minLimit, maxLimit / 2) : maxLimit;
+        this.lanes = new Lane[WorkClass.values().length];
+        for (WorkClass workClass : WorkClass.values()) {
+            int share = switch (workClass) {
+                case REPLY -> 100;
+                case COMMAND -> config.commandConcurrencyPercent;
+                case BACKGROUND -> config.backgroundConcurrencyPercent;
+            };
+            long deadlineMillis = switch (workClass) {
+                case REPLY -> config.replyDeadlineMillis;
+                case COMMAND -> config.commandDeadlineMillis;
+                case BACKGROUND -> 0L;
+            };
+            lanes[workClass.ordinal()] = new Lane(
+                    workClass,
+                    Math.max(1, Math.min(100, share)),
+                    TimeUnit.MILLISECONDS.toNanos(Math.max(0L, deadlineMillis))
+            );
+        }
+    }
+
+    /**
+     * Startet die Aufgabe, sobald sie unter das Limit passt und der Server an der Reihe ist. Ist die Queue voll,
+     * schlägt das Future mit {@link RejectedExecutionException} fehl.
+     */
+    <T> CompletableFuture<T> submit(WorkClass workClass, long guildId, Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Waiter waiter;
+        Waiter displaced = null;
+        boolean startNow;
+        List<Waiter> expired;
+        synchronized (this) {
+            expired = shedExpired(System.nanoTime());
+            Lane lane = lanes[workClass.ordinal()];
+            GuildQueue guild = guilds.computeIfAbsent(guildId, this::newGuild);
+            waiter = new Waiter(lane, guild, System.nanoTime(), result);
+            waiter.start = startAction(waiter, task, result);
+            // Nach jedem release wartet nichts mehr, was starten könnte; ein freier Platz gehört also dem Neuen
+            startNow = inFlight < (int) limit
+                    && lane.hasCapacity()
+                    && guild.hasCapacity()
+                    && guild.waiting.get(lane.index).isEmpty();
+            if (startNow) {
+                acquire(waiter);
+            } else {
+                if (queued >= maxQueued) {
+                    displaced = makeRoom(lane, guild);
+                    if (displaced == null) {
+                        lane.rejected++;
+                        guild.rejected++;
+                        rejected.incrementAndGet();
+                        result.completeExceptionally(new RejectedExecutionException("Too many queued requests"));
+                    }
+                }
+                if (!result.isDone()) {
+                    lane.add(waiter);
+                }
+            }
+        }
+        failExpired(expired);
+        if (displaced != null) {
+            rejected.incrementAndGet();
+            displaced.result.completeExceptionally(
+                    new RejectedExecutionException("Queued request displaced by a more urgent or less busy one")
+            );
+        }
+        if (startNow) {
+            waiter.start.run();
+        }
+        return result;
+    }
+
+    /**
+     * {@code false}, wenn ein neuer Request dieser Klasse gerade nicht angenommen würde: die Queue ist voll und
+     * nichts zu verdrängen, oder die geschätzte Wartezeit plus Laufzeit reißt die Deadline. Belegt nichts.
+     */
+    boolean admits(WorkClass workClass, long guildId) {
+        synchronized (this) {
+            Lane lane = lanes[workClass.ordinal()];
+            GuildQueue guild = guilds.get(guildId);
+            if (inFlight < (int) limit && lane.hasCapacity()
+                    && (guild == null || guild.hasCapacity() && guild.waiting.get(lane.index).isEmpty())) {
+                return true;
+            }
+            if (queued >= maxQueued && !canMakeRoom(lane, guild)) {
+                return false;
+            }
+            if (lane.deadlineNanos <= 0 || shortRttNanos <= 0) {
+                return true;
+            }
+            // Vor dem neuen Request starten die Wartenden dringenderer Klassen und, reihum, ein Teil dieser
+            int ahead = lane.aheadOf(guild, guild == null ? newGuild(guildId).weight : guild.weight);
+            for (int i = 0; i < lane.index; i++) {
+                ahead += lanes[i].queued;
+            }
+            int slots = Math.max(1, Math.min((int) limit, lane.cap()));
+            double estimate = (ahead / (double) slots + 1) * shortRttNanos;
+            return estimate <= lane.deadlineNanos;
+        }
+    }
+
+    AIManager.LimiterStats stats() {
+        long starts = started.get();
+        synchronized (this) {
+            List<AIManager.WorkClassStats> classes = new ArrayList<>(lanes.length);
+            for (Lane lane : lanes) {
+                classes.add(lane.stats());
+            }
+            int activeGuilds = 0;
+            int longestGuildQueue = 0;
+            for (GuildQueue guild : guilds.values()) {
+                if (guild.inFlight > 0 || guild.queued > 0) {
+                    activeGuilds++;
+                }
+                longestGuildQueue = Math.max(longestGuildQueue, guild.queued);
+            }
+            return new AIManager.LimiterStats(
+                    (int) limit,
+                    minLimit,
+                    maxLimit,
+                    adaptive,
+                    inFlight,
+                    classes,
+                    activeGuilds,
+                    longestGuildQueue,
+                    shortRttNanos < 0 ? 0L : TimeUnit.NANOSECONDS.toMillis((long) shortRttNanos),
+                    baselineRttNanos < 0 ? 0L : TimeUnit.NANOSECONDS.toMillis((long) baselineRttNanos),
+                    starts <= 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / starts),
+                    rejected.get(),
+                    shed.get()
+            );
+        }
+    }
+
+    AIManager.GuildQueueStats guildStats(long guildId) {
+        synchronized (this) {
+            GuildQueue guild = guilds.get(guildId);
+            return (guild == null ? newGuild(guildId) : guild).stats();
+        }
+    }
+
+    private GuildQueue newGuild(long guildId) {
+        Config.GuildQuota quota = quotas.get(guildId);
+        int weight = quota == null ? 1 : Math.max(1, quota.weight);
+        int cap = quota == null || quota.maxInFlight <= 0 ? guildMaxInFlight : quota.maxInFlight;
+        return new GuildQueue(guildId, weight, cap);
+    }
+
+    /**
+     * Platz in der vollen Queue: erst die niedrigste Klasse unter {@code lane}, dann der Server mit den meisten
+     * Wartenden in {@code lane}, sofern er mehr hat als {@code guild}. {@code null} heißt ablehnen.
+     */
+    private Waiter makeRoom(Lane lane, GuildQueue guild) {
+        for (int i = lanes.length - 1; i > lane.index; i--) {
+            GuildQueue busiest = lanes[i].busiest();
+            if (busiest != null) {
+                return lanes[i].removeNewest(busiest);
+            }
+        }
+        GuildQueue busiest = lane.busiest();
+        if (busiest == null || busiest == guild
+                || busiest.waiting.get(lane.index).size() <= guild.waiting.get(lane.index).size()) {
+            return null;
+        }
+        return lane.removeNewest(busiest);
+    }
+
+    private boolean canMakeRoom(Lane lane, GuildQueue guild) {
+        for (int i = lanes.length - 1; i > lane.index; i--) {
+            if (lanes[i].queued > 0) {
+                return true;
+            }
+        }
+        GuildQueue busiest = lane.busiest();
+        int own = guild == null ? 0 : guild.waiting.get(lane.index).size();
+        return busiest != null && busiest != guild && busiest.waiting.get(lane.index).size() > own;
+    }
+
+    /**
+     * Nimmt Wartende aus der Queue, die mit der aktuellen Laufzeit ihre Deadline nicht mehr schaffen. Die
+     * Futures werden außerhalb des Locks mit {@link #failExpired} abgeschlossen.
+     */
+    private List<Waiter> shedExpired(long now) {
+        List<Waiter> expired = null;
+        long expectedNanos = Math.max(0L, (long) shortRttNanos);
+        for (Lane lane : lanes) {
+            if (lane.deadlineNanos <= 0) {
+                continue;
+            }
+            while (lane.queued > 0) {
+                Waiter oldest = lane.oldest();
+                if (now - oldest.queuedAt + expectedNanos <= lane.deadlineNanos) {
+                    break;
+                }
+                lane.removeOldest(oldest.guild);
+                if (expired == null) {
+                    expired = new ArrayList<>();
+                }
+                expired.add(oldest);
+            }
+        }
+        return expired == null ? List.of() : expired;
+    }
+
+    private void failExpired(List<Waiter> expired) {
+        for (Waiter waiter : expired) {
+            shed.incrementAndGet();
+            waiter.result.completeExceptionally(new RejectedExecutionException("Queued request missed its deadline"));
+        }
+    }
+
+    private void acquire(Waiter waiter) {
+        inFlight++;
+        waiter.lane.inFlight++;
+        waiter.guild.inFlight++;
+    }
+
+    private <T> Runnable startAction(Waiter waiter, Supplier<CompletableFuture<T>> task, CompletableFuture<T> result) {
+        return () -> start(waiter, task, result);
+    }
+
+    private <T> void start(Waiter waiter, Supplier<CompletableFuture<T>> task, CompletableFuture<T> result) {
+        long startedAt = System.nanoTime();
+        long wait = startedAt - waiter.queuedAt;
+        started.incrementAndGet();
+        totalWaitNanos.addAndGet(wait);
+        synchronized (this) {
+            waiter.lane.recordWait(wait);
+            waiter.guild.recordWait(wait);
+        }
+        CompletableFuture<T> running;
+        try {
+            running = task.get();
+        } catch (RuntimeException e) {
+            running = CompletableFuture.failedFuture(e);
+        }
+        running.whenComplete((value, error) -> {
+            release(waiter, System.nanoTime() - startedAt, error);
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+    }
+
+    private void release(Waiter finished, long rttNanos, Throwable error) {
+        List<Waiter> ready = new ArrayList<>();
+        List<Waiter> expired;
+        synchronized (this) {
+            adjust(rttNanos, error);
+            inFlight--;
+            finished.lane.inFlight--;
+            finished.guild.inFlight--;
+            long now = System.nanoTime();
+            expired = shedExpired(now);
+            while (inFlight < (int) limit) {
+                Waiter next = next(now);
+                if (next == null) {
+                    break;
+                }
+                acquire(next);
+                ready.add(next);
+            }
+        }
+        failExpired(expired);
+        for (Waiter waiter : ready) {
+            waiter.start.run();
+        }
+    }
+
+    /**
+     * Der nächste Request: aus der Klasse mit dem am längsten überfälligen Request, sonst aus der dringendsten
+     * Klasse, in der ein Server unter seinem Limit wartet.
+     */
+    private Waiter next(long now) {
+        Lane first = null;
+        Lane starving = null;
+        long longestWait = starvationNanos;
+        for (Lane lane : lanes) {
+            if (lane.queued == 0 || !lane.hasCapacity()) {
+                continue;
+            }
+            if (first == null) {
+                first = lane;
+            }
+            long wait = now - lane.oldest().queuedAt;
+            if (wait >= longestWait) {
+                starving = lane;
+                longestWait = wait;
+            }
+        }
+        if (starving != null && starving != first) {
+            Waiter waiter = starving.poll();
+            if (waiter != null) {
+                starving.promoted++;
+                return waiter;
+            }
+        }
+        for (Lane lane : lanes) {
+            if (lane.queued > 0 && lane.hasCapacity()) {
+                Waiter waiter = lane.poll();
+                if (waiter != null) {
+                    return waiter;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Die Laufzeiten werden immer gemessen, weil auch die Deadlines sie brauchen; das Limit bewegt sich nur mit
+     * {@code adaptiveConcurrency}.
+     */
+    private void adjust(long rttNanos, Throwable error) {
+        if (error != null) {
+            // Überlast beim Provider: sofort zurück, andere Fehler sagen nichts über die Latenz
+            if (adaptive && unwrap(error) instanceof OpenAIException failure && failure.kind().providerFailure()) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        if (shortRttNanos < 0) {
+            shortRttNanos = rttNanos;
+            baselineRttNanos = rttNanos;
+            sampledAt = now;
+            return;
+        }
+        double seconds = (now - sampledAt) / (double) TimeUnit.SECONDS.toNanos(1);
+        sampledAt = now;
+        shortRttNanos += SHORT_ALPHA * (rttNanos - shortRttNanos);
+        baselineRttNanos = Math.min(baselineRttNanos * (1 + BASELINE_DRIFT_PER_SECOND * seconds), shortRttNanos);
+        if (!adaptive) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baselineRttNanos / shortRttNanos));
+        // Nicht wachsen, solange das Limit gar nicht ausgeschöpft wird
+        if (gradient >= 1.0 && inFlight * 2 < limit) {
+            return;
+        }
+        double target = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    /**
+     * Queue und Zähler einer {@link WorkClass}; alles unter dem Lock des Limiters.
+     */
+    private final class Lane {
+        private final WorkClass workClass;
+        private final int index;
+        private final int sharePercent;
+        private final long deadlineNanos;
+        /** Server mit Wartenden in dieser Klasse, in Reihenfolge ihrer nächsten Runde */
+        private final Deque<GuildQueue> round = new ArrayDeque<>();
+        /** Alle Wartenden nach Ankunft, für die Wartezeit; bereits gestartete werden beim Lesen übersprungen */
+        private final Deque<Waiter> arrivals = new ArrayDeque<>();
+
+        private int queued;
+        private int inFlight;
+        private long started;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private long promoted;
+        private long rejected;
+        private long shed;
+
+        private Lane(WorkClass workClass, int sharePercent, long deadlineNanos) {
+            this.workClass = workClass;
+            this.index = workClass.ordinal();
+            this.sharePercent = sharePercent;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        private int cap() {
+            return Math.max(1, (int) limit * sharePercent / 100);
+        }
+
+        private boolean hasCapacity() {
+            return inFlight < cap();
+        }
+
+        private void add(Waiter waiter) {
+            Deque<Waiter> waiting = waiter.guild.waiting.get(index);
+            if (waiting.isEmpty()) {
+                round.addLast(waiter.guild);
+            }
+            waiting.addLast(waiter);
+            arrivals.addLast(waiter);
+            queued++;
+            waiter.guild.queued++;
+            AdaptiveLimiter.this.queued++;
+        }
+
+        private Waiter oldest() {
+            while (arrivals.peekFirst().dequeued) {
+                arrivals.pollFirst();
+            }
+            return arrivals.peekFirst();
+        }
+
+        /**
+         * Deficit Round Robin: der Server vorne bekommt sein Gewicht gutgeschrieben und startet, solange das
+         * Guthaben reicht; Server an ihrem Limit werden übersprungen. {@code null}, wenn keiner starten darf.
+         */
+        private Waiter poll() {
+            for (int i = round.size(); i > 0; i--) {
+                GuildQueue guild = round.pollFirst();
+                if (!guild.hasCapacity()) {
+                    round.addLast(guild);
+                    continue;
+                }
+                if (guild.deficit[index] < 1) {
+                    guild.deficit[index] += guild.weight;
+                }
+                guild.deficit[index]--;
+                Waiter waiter = guild.waiting.get(index).pollFirst();
+                if (guild.waiting.get(index).isEmpty()) {
+                    guild.deficit[index] = 0;
+                } else if (guild.deficit[index] >= 1) {
+                    round.addFirst(guild);
+                } else {
+                    round.addLast(guild);
+                }
+                dequeued(waiter);
+                return waiter;
+            }
+            return null;
+        }
+
+        /**
+         * Wie viele Wartende dieser Klasse vor einem neuen Request von {@code guild} drankämen: die eigenen und
+         * von jedem anderen Server so viele, wie er in den Runden bis dahin im Verhältnis der Gewichte startet.
+         */
+        private int aheadOf(GuildQueue guild, int weight) {
+            int own = guild == null ? 0 : guild.waiting.get(index).size();
+            int ahead = own;
+            for (GuildQueue other : round) {
+                if (other != guild) {
+                    int share = (int) Math.ceil((own + 1) * other.weight / (double) weight);
+                    ahead += Math.min(other.waiting.get(index).size(), share);
+                }
+            }
+            return ahead;
+        }
+
+        private GuildQueue busiest() {
+            GuildQueue busiest = null;
+            for (GuildQueue guild : round) {
+                if (busiest == null || guild.waiting.get(index).size() > busiest.waiting.get(index).size()) {
+                    busiest = guild;
+                }
+            }
+            return busiest;
+        }
+
+        private Waiter removeNewest(GuildQueue guild) {
+            Waiter waiter = guild.waiting.get(index).pollLast();
+            if (guild.waiting.get(index).isEmpty()) {
+                round.remove(guild);
+                guild.deficit[index] = 0;
+            }
+            dequeued(waiter);
+            rejected++;
+            guild.rejected++;
+            return waiter;
+        }
+
+        /**
+         * Der älteste Wartende steht immer vorne in der Queue seines Servers.
+         */
+        private void removeOldest(GuildQueue guild) {
+            Waiter waiter = guild.waiting.get(index).pollFirst();
+            if (guild.waiting.get(index).isEmpty()) {
+                round.remove(guild);
+                guild.deficit[index] = 0;
+            }
+            dequeued(waiter);
+            shed++;
+            guild.shed++;
+        }
+
+        private void dequeued(Waiter waiter) {
+            waiter.dequeued = true;
+            queued--;
+            waiter.guild.queued--;
+            AdaptiveLimiter.this.queued--;
+        }
+
+        private void recordWait(long nanos) {
+            started++;
+            totalWaitNanos += nanos;
+            maxWaitNanos = Math.max(maxWaitNanos, nanos);
+        }
+
+        private AIManager.WorkClassStats stats() {
+            return new AIManager.WorkClassStats(
+                    workClass,
+                    cap(),
+                    inFlight,
+                    queued,
+                    started,
+                    started <= 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos / started),
+                    TimeUnit.NANOSECONDS.toMicros(maxWaitNanos),
+                    promoted,
+                    rejected,
+                    shed
+            );
+        }
+    }
+
+    /**
+     * Wartende und Zähler eines Servers über alle Klassen; alles unter dem Lock des Limiters.
+     */
+    private static final class GuildQueue {
+        private final long guildId;
+        private final int weight;
+        private final int maxInFlight;
+        private final List<Deque<Waiter>> waiting = new ArrayList<>(WorkClass.values().length);
+        private final int[] deficit = new int[WorkClass.values().length];
+
+        private int queued;
+        private int inFlight;
+        private long started;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private long rejected;
+        private long shed;
+
+        private GuildQueue(long guildId, int weight, int maxInFlight) {
+            this.guildId = guildId;
+            this.weight = weight;
+            this.maxInFlight = maxInFlight;
+            for (int i = 0; i < WorkClass.values().length; i++) {
+                waiting.add(new ArrayDeque<>());
+            }
+        }
+
+        private boolean hasCapacity() {
+            return maxInFlight <= 0 || inFlight < maxInFlight;
+        }
+
+        private void recordWait(long nanos) {
+            started++;
+            totalWaitNanos += nanos;
+            maxWaitNanos = Math.max(maxWaitNanos, nanos);
+        }
+
+        private AIManager.GuildQueueStats stats() {
+            return new AIManager.GuildQueueStats(
+                    guildId,
+                    weight,
+                    maxInFlight,
+                    inFlight,
+                    queued,
+                    started,
+                    started <= 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos / started),
+                    TimeUnit.NANOSECONDS.toMicros(maxWaitNanos),
+                    rejected,
+                    shed
+            );
+        }
+    }
+
+    private static final class Waiter {
+        private final Lane lane;
+        private final GuildQueue guild;
+        private final long queuedAt;
+        private final CompletableFuture<?> result;
+        private Runnable start;
+        private boolean dequeued;
+
+        private Waiter(Lane lane, GuildQueue guild, long queuedAt, CompletableFuture<?> result) {
+            this.lane = lane;
+            this.guild = guild;
+            this.queuedAt = queuedAt;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package io.nebuliton.ai;
+
+import io.nebuliton.config.Config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hält Requests an, bevor sie das Requests- oder Token-Limit des Provider-Accounts pro Minute reißen.
+ *
+ * Beide Limits sind Token-Buckets, die gleichmäßig nachlaufen. Ein Request kostet einen Request und seine
+ * lokal gezählten Tokens (Prompt plus {@code maxTokens}); nach der Antwort wird mit dem tatsächlichen
+ * {@code usage} verrechnet. Passt ein Request nicht, wartet er; interaktive Requests immer vor Hintergrund-
+ * Arbeit, die zusätzlich eine Reserve übrig lassen muss. Wäre die Wartezeit länger als
+ * {@code openai.admissionMaxWaitMillis}, wird er sofort abgelehnt. Ein Limit von 0 schaltet es ab.
+ */
+final class AdmissionController {
+    private final long requestsPerMinute;
+    private final long tokensPerMinute;
+    private final double requestReserve;
+    private final double tokenReserve;
+    private final long maxWaitNanos;
+
+    private double requests;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private final Deque<Waiter> interactive = new ArrayDeque<>();
+    private final Deque<Waiter> background = new ArrayDeque<>();
+    private ScheduledFuture<?> wakeup;
+    private long wakeupAt;
+    private ScheduledExecutorService timer;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    AdmissionController(Config.OpenAI config) {
+        this.requestsPerMinute = Math.max(0, config.requestsPerMinute);
+        this.tokensPerMinute = Math.max(0, config.tokensPerMinute);
+        double reserve = Math.max(0, Math.min(90, config.backgroundReservePercent)) / 100.0;
+        this.requestReserve = requestsPerMinute * reserve;
+        this.tokenReserve = tokensPerMinute * reserve;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, config.admissionMaxWaitMillis));
+        this.requests = requestsPerMinute;
+        this.tokens = tokensPerMinute;
+    }
+
+    boolean tracksTokens() {
+        return tokensPerMinute > 0;
+    }
+
+    /**
+     * Liefert die Freigabe, sobald beide Budgets reichen. Schlägt mit {@link RejectedExecutionException} fehl,
+     * wenn das zu lange dauern würde.
+     */
+    CompletableFuture<Permit> acquire(int estimatedTokens, OpenAIClient.Priority priority) {
+        if (requestsPerMinute <= 0 && tokensPerMinute <= 0) {
+            return CompletableFuture.completedFuture(new Permit(0));
+        }
+        // Größer als ein ganzes Minutenbudget würde nie passen
+        int cost = tokensPerMinute > 0 ? (int) Math.min(estimatedTokens, tokensPerMinute) : 0;
+        long now = System.nanoTime();
+        synchronized (this) {
+            refill(now);
+            boolean background = priority == OpenAIClient.Priority.BACKGROUND;
+            boolean nobodyAhead = interactive.isEmpty() && (!background || this.background.isEmpty());
+            if (nobodyAhead && fits(cost, background)) {
+                take(cost);
+                admitted.incrementAndGet();
+                return CompletableFuture.completedFuture(new Permit(cost));
+            }
+            if (waitNanos(cost, background) > maxWaitNanos) {
+                shed.incrementAndGet();
+                return CompletableFuture.failedFuture(new RejectedExecutionException(
+                        "Provider rate budget exhausted (" + (background ? "background" : "interactive") + ")"
+                ));
+            }
+            Waiter waiter = new Waiter(cost, background, now, new CompletableFuture<>());
+            (background ? this.background : interactive).add(waiter);
+            scheduleDrain(now);
+            return waiter.future;
+        }
+    }
+
+    OpenAIClient.AdmissionStats stats() {
+        long count = admitted.get();
+        synchronized (this) {
+            refill(System.nanoTime());
+            return new OpenAIClient.AdmissionStats(
+                    requestsPerMinute,
+                    tokensPerMinute,
+                    (long) requests,
+                    (long) tokens,
+                    interactive.size(),
+                    background.size(),
+                    count,
+                    shed.get(),
+                    count <= 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / count)
+            );
+        }
+    }
+
+    private boolean fits(int cost, boolean background) {
+        double requestFloor = background ? requestReserve : 0.0;
+        double tokenFloor = background ? tokenReserve : 0.0;
+        boolean requestsOk = requestsPerMinute <= 0 || requests - 1 >= requestFloor;
+        boolean tokensOk = tokensPerMinute <= 0 || tokens - cost >= tokenFloor;
+        return requestsOk && tokensOk;
+    }
+
+    private void take(int cost) {
+        if (requestsPerMinute > 0) {
+            requests -= 1;
+        }
+        if (tokensPerMinute > 0) {
+            tokens -= cost;
+        }
+    }
+
+    /**
+     * Wartezeit, bis dieser Request samt allen, die vor ihm dran sind, ins Budget passt.
+     */
+    private long waitNanos(int cost, boolean background) {
+        double requestsNeeded = 1;
+        double tokensNeeded = cost;
+        for (Waiter waiter : interactive) {
+            requestsNeeded += 1;
+            tokensNeeded += waiter.cost;
+        }
+        if (background) {
+            for (Waiter waiter : this.background) {
+                requestsNeeded += 1;
+                tokensNeeded += waiter.cost;
+            }
+            requestsNeeded += requestReserve;
+            tokensNeeded += tokenReserve;
+        }
+        return Math.max(
+                nanosUntil(requestsPerMinute, requests, requestsNeeded),
+                nanosUntil(tokensPerMinute, tokens, tokensNeeded)
+        );
+    }
+
+    private static long nanosUntil(long perMinute, double available, double needed) {
+        if (perMinute <= 0 || available >= needed) {
+            return 0L;
+        }
+        return (long) Math.ceil((needed - available) * TimeUnit.MINUTES.toNanos(1) / perMinute);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - refilledAt;
+        if (elapsed <= 0) {
+            return;
+        }
+        refilledAt = now;
+        double minutes = elapsed / (double) TimeUnit.MINUTES.toNanos(1);
+        requests = Math.min(requestsPerMinute, requests + minutes * requestsPerMinute);
+        tokens = Math.min(tokensPerMinute, tokens + minutes * tokensPerMinute);
+    }
+
+    private void drain() {
+        List<Waiter> ready = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            wakeup = null;
+            refill(now);
+            while (true) {
+                Deque<Waiter> queue = !interactive.isEmpty() ? interactive : background;
+                Waiter head = queue.peek();
+                if (head == null || !fits(head.cost, head.background)) {
+                    break;
+                }
+                queue.poll();
+                take(head.cost);
+                ready.add(head);
+            }
+            if (!interactive.isEmpty() || !background.isEmpty()) {
+                scheduleDrain(now);
+            }
+        }
+        for (Waiter waiter : ready) {
+            admitted.incrementAndGet();
+            totalWaitNanos.addAndGet(now - waiter.queuedAt);
+            waiter.future.complete(new Permit(waiter.cost));
+        }
+    }
+
+    /**
+     * Plant das nächste {@link #drain} auf den Zeitpunkt, an dem der vorderste Request passt.
+     */
+    private void scheduleDrain(long now) {
+        Deque<Waiter> queue = !interactive.isEmpty() ? interactive : background;
+        Waiter head = queue.peek();
+        if (head == null) {
+            return;
+        }
+        double requestsNeeded = 1 + (head.background ? requestReserve : 0.0);
+        double tokensNeeded = head.cost + (head.background ? tokenReserve : 0.0);
+        long delay = Math.max(
+                TimeUnit.MILLISECONDS.toNanos(1),
+                Math.max(
+                        nanosUntil(requestsPerMinute, requests, requestsNeeded),
+                        nanosUntil(tokensPerMinute, tokens, tokensNeeded)
+                )
+        );
+        long at = now + delay;
+        if (wakeup != null) {
+            if (wakeupAt - at <= 0) {
+                return;
+            }
+            wakeup.cancel(false);
+        }
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "provider-admission");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        wakeupAt = at;
+        wakeup = timer.schedule(this::drain, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void settle(int reserved, int actual) {
+        if (tokensPerMinute <= 0 || actual < 0) {
+            return;
+        }
+        // Zu viel reserviert geht zurück, zu wenig wird als Schuld abgezogen
+        tokens = Math.min(tokensPerMinute, tokens + reserved - actual);
+        if (actual < reserved && (!interactive.isEmpty() || !background.isEmpty())) {
+            if (wakeup != null) {
+                wakeup.cancel(false);
+                wakeup = null;
+            }
+            scheduleDrain(System.nanoTime());
+        }
+    }
+
+    /**
+     * Freigabe für einen Request. {@link #settle} verrechnet die Schätzung mit dem echten Verbrauch.
+     */
+    final class Permit {
+        private final int reserved;
+        private boolean settled;
+
+        private Permit(int reserved) {
+            this.reserved = reserved;
+        }
+
+        /**
+         * {@code actualTokens < 0} heißt: unbekannt, die Schätzung bleibt stehen.
+         */
+        void settle(int actualTokens) {
+            synchronized (this) {
+                if (settled) {
+                    return;
+                }
+                settled = true;
+            }
+            AdmissionController.this.settle(reserved, actualTokens);
+        }
+    }
+
+    private record Waiter(int cost, boolean background, long queuedAt, CompletableFuture<Permit> future) {
+    }
+}
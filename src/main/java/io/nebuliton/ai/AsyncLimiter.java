@@ -0,0 +1,115 @@
+package io.nebuliton.ai;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Begrenzt gleichzeitig laufende asynchrone Aufgaben, ohne dafür Threads zu blockieren.
+ *
+ * Ist kein Platz frei, wartet die Aufgabe in einer FIFO-Queue und wird gestartet, sobald eine laufende fertig ist.
+ * Ist auch die Queue voll, schlägt {@link #submit} sofort mit {@link RejectedExecutionException} fehl.
+ */
+final class AsyncLimiter {
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int inFlight;
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    AsyncLimiter(int maxInFlight, int maxQueued) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxQueued = Math.max(0, maxQueued);
+    }
+
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+        Runnable start = () -> start(task, result, queuedAt);
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                if (waiting.size() >= maxQueued) {
+                    rejected.incrementAndGet();
+                    return CompletableFuture.failedFuture(new RejectedExecutionException("Too many queued requests"));
+                }
+                waiting.add(start);
+                return result;
+            }
+            inFlight++;
+        }
+        start.run();
+        return result;
+    }
+
+    /**
+     * Startet die Aufgabe nur, wenn sofort ein Platz frei ist, sonst {@code null}. Für Arbeit, die man unter Last
+     * lieber auslässt als einreiht.
+     */
+    <T> CompletableFuture<T> trySubmit(Supplier<CompletableFuture<T>> task) {
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                return null;
+            }
+            inFlight++;
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        start(task, result, System.nanoTime());
+        return result;
+    }
+
+    AIManager.BulkheadStats stats() {
+        int running;
+        int queuedNow;
+        synchronized (this) {
+            running = inFlight;
+            queuedNow = waiting.size();
+        }
+        long starts = started.get();
+        return new AIManager.BulkheadStats(
+                maxInFlight,
+                running,
+                queuedNow,
+                starts <= 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / starts),
+                rejected.get()
+        );
+    }
+
+    private <T> void start(Supplier<CompletableFuture<T>> task, CompletableFuture<T> result, long queuedAt) {
+        started.incrementAndGet();
+        totalWaitNanos.addAndGet(System.nanoTime() - queuedAt);
+        CompletableFuture<T> running;
+        try {
+            running = task.get();
+        } catch (RuntimeException e) {
+            running = CompletableFuture.failedFuture(e);
+        }
+        running.whenComplete((value, error) -> {
+            release();
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+    }
+
+    private void release() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+        }
+        // Der Platz geht direkt an die nächste Aufgabe über
+        next.run();
+    }
+}
@@ -0,0 +1,82 @@
+package io.nebuliton.ai;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Begrenzt, wie viele Aufgaben gleichzeitig blockierend an einer Ressource arbeiten.
+ *
+ * Gedacht für virtuelle Threads: Wer keinen Platz bekommt, wartet am Semaphor, ohne einen Plattform-Thread zu
+ * belegen. Nach {@code timeoutMillis} gibt die Aufgabe mit {@link RejectedExecutionException} auf, statt
+ * unbegrenzt Warteschlange aufzubauen.
+ */
+final class Bulkhead {
+    private final String name;
+    private final int limit;
+    private final long timeoutNanos;
+    private final Semaphore permits;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    Bulkhead(String name, int limit, long timeoutMillis) {
+        this.name = name;
+        this.limit = Math.max(1, limit);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, timeoutMillis));
+        this.permits = new Semaphore(this.limit, true);
+    }
+
+    <T> T call(Supplier<T> task) {
+        acquire();
+        try {
+            return task.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    void run(Runnable task) {
+        call(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    AIManager.BulkheadStats stats() {
+        long acquisitions = acquired.get();
+        return new AIManager.BulkheadStats(
+                limit,
+                limit - permits.availablePermits(),
+                waiting.get(),
+                acquisitions <= 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / acquisitions),
+                rejected.get()
+        );
+    }
+
+    private void acquire() {
+        long startedAt = System.nanoTime();
+        boolean granted;
+        waiting.incrementAndGet();
+        try {
+            granted = permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for " + name);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        if (!granted) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Timed out after "
+                    + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms waiting for " + name);
+        }
+        acquired.incrementAndGet();
+        totalWaitNanos.addAndGet(System.nanoTime() - startedAt);
+    }
+}
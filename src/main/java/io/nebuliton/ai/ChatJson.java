@@ -0,0 +1,279 @@
+package io.nebuliton.ai;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JSON für die OpenAI-API ohne Baum und ohne Zwischen-String.
+ *
+ * Requests schreibt ein {@link JsonGenerator} direkt in ein Byte-Array, Antworten liest ein {@link JsonParser}
+ * und behält nur, was der Client braucht ({@code content}, {@code finish_reason}, {@code usage}, Embeddings);
+ * alles andere wird übersprungen, ohne Objekte dafür anzulegen.
+ */
+final class ChatJson {
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private ChatJson() {
+    }
+
+    static byte[] chatRequest(
+            String model,
+            List<OpenAIClient.ChatMessage> messages,
+            double temperature,
+            int maxTokens,
+            boolean stream,
+            boolean includeUsage
+    ) throws IOException {
+        ByteArrayBuilder buffer = new ByteArrayBuilder(estimateSize(messages));
+        try (JsonGenerator generator = FACTORY.createGenerator(buffer)) {
+            generator.writeStartObject();
+            generator.writeStringField("model", model);
+            generator.writeNumberField("temperature", temperature);
+            generator.writeNumberField("max_tokens", maxTokens);
+            if (stream) {
+                generator.writeBooleanField("stream", true);
+                if (includeUsage) {
+                    generator.writeObjectFieldStart("stream_options");
+                    generator.writeBooleanField("include_usage", true);
+                    generator.writeEndObject();
+                }
+            }
+            generator.writeArrayFieldStart("messages");
+            for (OpenAIClient.ChatMessage message : messages) {
+                generator.writeStartObject();
+                generator.writeStringField("role", message.role());
+                generator.writeStringField("content", message.content());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return buffer.toByteArray();
+    }
+
+    static byte[] embeddingRequest(String model, List<String> inputs, int dimensions) throws IOException {
+        ByteArrayBuilder buffer = new ByteArrayBuilder();
+        try (JsonGenerator generator = FACTORY.createGenerator(buffer)) {
+            generator.writeStartObject();
+            generator.writeStringField("model", model);
+            if (dimensions > 0) {
+                generator.writeNumberField("dimensions", dimensions);
+            }
+            generator.writeArrayFieldStart("input");
+            for (String input : inputs) {
+                generator.writeString(input);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Liest eine Chat-Completion ({@code choices[0].message}).
+     */
+    static Choice parseCompletion(byte[] body) throws OpenAIException {
+        try (JsonParser parser = FACTORY.createParser(body)) {
+            return parseChoice(parser, "message");
+        } catch (JsonProcessingException e) {
+            throw malformed(e);
+        } catch (IOException e) {
+            throw OpenAIException.from(e);
+        }
+    }
+
+    /**
+     * Liest ein Event aus dem Stream ({@code choices[0].delta}).
+     */
+    static Choice parseChunk(String event) throws OpenAIException {
+        try (JsonParser parser = FACTORY.createParser(event)) {
+            return parseChoice(parser, "delta");
+        } catch (JsonProcessingException e) {
+            throw malformed(e);
+        } catch (IOException e) {
+            throw OpenAIException.from(e);
+        }
+    }
+
+    /**
+     * Liest {@code data[].embedding} direkt in float-Arrays, sortiert nach {@code index}, dazu {@code usage}.
+     */
+    static Embeddings parseEmbeddings(byte[] body, int expected) throws OpenAIException {
+        float[][] vectors = new float[expected][];
+        int count = 0;
+        int totalTokens = -1;
+        try (JsonParser parser = FACTORY.createParser(body)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("usage".equals(name) && value == JsonToken.START_OBJECT) {
+                    totalTokens = readTotalTokens(parser);
+                    continue;
+                }
+                if (!"data".equals(name) || value != JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    int index = -1;
+                    float[] vector = null;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.currentName();
+                        JsonToken token = parser.nextToken();
+                        if ("index".equals(field) && token == JsonToken.VALUE_NUMBER_INT) {
+                            index = parser.getIntValue();
+                        } else if ("embedding".equals(field) && token == JsonToken.START_ARRAY) {
+                            vector = readFloats(parser);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    if (index < 0 || index >= expected || vector == null) {
+                        throw OpenAIException.invalidResponse("OpenAI API returned a malformed embedding");
+                    }
+                    vectors[index] = vector;
+                    count++;
+                }
+            }
+        } catch (JsonProcessingException e) {
+            throw malformed(e);
+        } catch (IOException e) {
+            throw OpenAIException.from(e);
+        }
+        if (count != expected) {
+            throw OpenAIException.invalidResponse("OpenAI API returned " + count + " embeddings for " + expected + " inputs");
+        }
+        return new Embeddings(vectors, totalTokens);
+    }
+
+    private static Choice parseChoice(JsonParser parser, String messageField) throws IOException {
+        String content = null;
+        String finishReason = null;
+        int totalTokens = -1;
+        expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("choices".equals(name) && value == JsonToken.START_ARRAY) {
+                boolean first = true;
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (!first || parser.currentToken() != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    first = false;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.currentName();
+                        JsonToken token = parser.nextToken();
+                        if (messageField.equals(field) && token == JsonToken.START_OBJECT) {
+                            content = readContent(parser);
+                        } else if ("finish_reason".equals(field) && token == JsonToken.VALUE_STRING) {
+                            finishReason = parser.getText();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            } else if ("usage".equals(name) && value == JsonToken.START_OBJECT) {
+                totalTokens = readTotalTokens(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new Choice(content, finishReason, totalTokens);
+    }
+
+    private static int readTotalTokens(JsonParser parser) throws IOException {
+        int totalTokens = -1;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("total_tokens".equals(field) && token == JsonToken.VALUE_NUMBER_INT) {
+                totalTokens = parser.getIntValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return totalTokens;
+    }
+
+    private static String readContent(JsonParser parser) throws IOException {
+        String content = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("content".equals(field) && token == JsonToken.VALUE_STRING) {
+                content = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return content;
+    }
+
+    private static float[] readFloats(JsonParser parser) throws IOException {
+        float[] values = new float[256];
+        int size = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.VALUE_NUMBER_FLOAT && token != JsonToken.VALUE_NUMBER_INT) {
+                throw OpenAIException.invalidResponse("OpenAI API returned a malformed embedding");
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = parser.getFloatValue();
+        }
+        return size == values.length ? values : Arrays.copyOf(values, size);
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw OpenAIException.invalidResponse("OpenAI API returned unexpected JSON: " + actual
+                    + " at " + parser.currentLocation().getCharOffset());
+        }
+    }
+
+    private static OpenAIException malformed(JsonProcessingException e) {
+        return new OpenAIException(
+                OpenAIException.Kind.INVALID_RESPONSE,
+                0,
+                -1L,
+                "OpenAI API returned malformed JSON: " + e.getOriginalMessage(),
+                e
+        );
+    }
+
+    /**
+     * Grobe Startgröße für den Puffer, damit er beim Schreiben selten wachsen muss.
+     */
+    private static int estimateSize(List<OpenAIClient.ChatMessage> messages) {
+        int size = 128;
+        for (OpenAIClient.ChatMessage message : messages) {
+            size += 32 + (message.content() == null ? 0 : message.content().length() + 16);
+        }
+        return Math.min(size, 1 << 20);
+    }
+
+    /**
+     * {@code content} ist {@code null}, wenn die Antwort keinen enthielt; {@code totalTokens} ist {@code -1} ohne
+     * {@code usage}.
+     */
+    record Choice(String content, String finishReason, int totalTokens) {
+    }
+
+    /**
+     * {@code totalTokens} ist {@code -1} ohne {@code usage}.
+     */
+    record Embeddings(float[][] vectors, int totalTokens) {
+    }
+}
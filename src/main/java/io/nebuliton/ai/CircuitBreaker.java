@@ -0,0 +1,132 @@
+package io.nebuliton.ai;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lässt nach {@code failureThreshold} Provider-Fehlern in Folge für {@code openMillis} keine Requests mehr durch.
+ *
+ * Danach darf genau ein Probe-Request los (half-open): klappt er, ist der Breaker wieder zu, sonst geht er für
+ * die nächste Pause auf. Fehler, die nichts über die Erreichbarkeit sagen (z.B. 400), zählen als Erfolg. Nur das
+ * Ergebnis der Probe ändert einen offenen oder halb offenen Breaker; Nachzügler von vorher zählen dann nicht mehr.
+ */
+final class CircuitBreaker {
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    private final AtomicLong openings = new AtomicLong();
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, openMillis));
+    }
+
+    /**
+     * Die Erlaubnis für einen Request, oder {@code null}. Danach muss genau einmal {@link #onSuccess},
+     * {@link #onFailure} oder {@link #release} mit dieser Erlaubnis folgen.
+     */
+    synchronized Permit tryAcquire() {
+        switch (state) {
+            case CLOSED -> {
+                return Permit.REGULAR;
+            }
+            case OPEN -> {
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return null;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                return Permit.PROBE;
+            }
+            default -> {
+                if (probeInFlight) {
+                    return null;
+                }
+                probeInFlight = true;
+                return Permit.PROBE;
+            }
+        }
+    }
+
+    /**
+     * Wie {@link #tryAcquire}, aber ohne etwas zu belegen.
+     */
+    synchronized boolean allowsRequests() {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> System.nanoTime() - openedAt >= openNanos;
+            case HALF_OPEN -> !probeInFlight;
+        };
+    }
+
+    synchronized void onSuccess(Permit permit) {
+        if (permit == Permit.PROBE) {
+            probeInFlight = false;
+            state = State.CLOSED;
+        } else if (state != State.CLOSED) {
+            return;
+        }
+        consecutiveFailures = 0;
+    }
+
+    synchronized void onFailure(Permit permit) {
+        if (permit == Permit.PROBE) {
+            probeInFlight = false;
+        } else if (state != State.CLOSED) {
+            return;
+        }
+        consecutiveFailures++;
+        if (permit == Permit.PROBE || consecutiveFailures >= failureThreshold) {
+            openings.incrementAndGet();
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Ohne Urteil über den Provider, z.B. wenn der Request unterbrochen wurde.
+     */
+    synchronized void release(Permit permit) {
+        if (permit == Permit.PROBE) {
+            probeInFlight = false;
+        }
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    synchronized long remainingOpenMillis() {
+        if (state != State.OPEN) {
+            return 0L;
+        }
+        return Math.max(0L, TimeUnit.NANOSECONDS.toMillis(openNanos - (System.nanoTime() - openedAt)));
+    }
+
+    synchronized int consecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    long openings() {
+        return openings.get();
+    }
+
+    /**
+     * {@code PROBE} ist der eine Request, der über einen halb offenen Breaker entscheidet.
+     */
+    enum Permit {
+        REGULAR,
+        PROBE
+    }
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+}
@@ -1,5 +1,6 @@
 package io.nebuliton.ai;
 
+import io.nebuliton.Database;
 import io.nebuliton.config.Config;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.Permission;
@@ -13,6 +14,7 @@ import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.events.interaction.component.ButtonInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.interactions.callbacks.IReplyCallback;
 import net.dv8tion.jda.api.interactions.commands.OptionMapping;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
 import net.dv8tion.jda.api.interactions.commands.build.CommandData;
@@ -23,6 +25,8 @@ import net.dv8tion.jda.api.utils.messages.MessageCreateBuilder;
 import net.dv8tion.jda.api.utils.messages.MessageCreateData;
 import net.dv8tion.jda.api.utils.messages.MessageEditBuilder;
 import net.dv8tion.jda.api.utils.messages.MessageEditData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.time.Instant;
@@ -30,8 +34,11 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletionException;
 
 public final class Commands extends ListenerAdapter {
+    private static final Logger LOG = LoggerFactory.getLogger(Commands.class);
+
     private final ContextStore contextStore;
     private final Config config;
     private final AIManager aiManager;
@@ -263,7 +270,44 @@ public final class Commands extends ListenerAdapter {
             replyError(event, "Nur im Server verfügbar", "Dieser Command funktioniert nicht in DMs.");
             return;
         }
+        // Die Handler gehen an SQLite, daher nicht auf dem JDA-Event-Thread
+        aiManager.runBlocking(() -> dispatchSlashCommand(event))
+                .exceptionally(error -> failInteraction(event, "/" + event.getName(), error));
+    }
+
+    @Override
+    public void onButtonInteraction(ButtonInteractionEvent event) {
+        if (!event.isFromGuild()) {
+            event.reply("Nur im Server verfügbar.").setEphemeral(true).queue();
+            return;
+        }
+        aiManager.runBlocking(() -> dispatchButton(event))
+                .exceptionally(error -> failInteraction(event, event.getComponentId(), error));
+    }
+
+    /**
+     * Nur bei Überlast lohnt ein neuer Versuch; andere Fehler bekommen einen neutralen Text.
+     */
+    private Void failInteraction(IReplyCallback event, String name, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        boolean overload = AIManager.isOverload(cause);
+        if (overload) {
+            LOG.warn("{} abgelehnt, zu viele gleichzeitige Aufgaben: {}", name, cause.getMessage());
+        } else {
+            LOG.error("{} fehlgeschlagen", name, cause);
+        }
+        if (!event.isAcknowledged()) {
+            String text = overload
+                    ? "Gerade ist zu viel los. Versuch es gleich nochmal."
+                    : "Da ist etwas schiefgelaufen. Bitte melde das einem Admin.";
+            event.reply(buildComponentMessage("❌", "Fehler", text))
+                    .setEphemeral(true)
+                    .queue();
+        }
+        return null;
+    }
 
+    private void dispatchSlashCommand(SlashCommandInteractionEvent event) {
         switch (event.getName()) {
             case "context" -> handleContext(event);
             case "knowledge" -> handleKnowledge(event);
@@ -285,12 +329,7 @@ public final class Commands extends ListenerAdapter {
         }
     }
 
-    @Override
-    public void onButtonInteraction(ButtonInteractionEvent event) {
-        if (!event.isFromGuild()) {
-            event.reply("Nur im Server verfügbar.").setEphemeral(true).queue();
-            return;
-        }
+    private void dispatchButton(ButtonInteractionEvent event) {
         String id = event.getComponentId();
         long guildId = event.getGuild().getIdLong();
         long userId = event.getUser().getIdLong();
@@ -316,9 +355,16 @@ public final class Commands extends ListenerAdapter {
                     return;
                 }
                 String rating = id.endsWith("good") ? "good" : "bad";
-                contextStore.addFeedback(guildId, userId, rating, "panel-button");
                 String text = "good".equals(rating) ? "Danke für das positive Feedback! 💚" : "Danke, ich verbessere mich. 🛠️";
-                event.reply(buildComponentMessage("⭐", "Feedback gespeichert", text)).setEphemeral(true).queue();
+                contextStore.addFeedback(guildId, userId, rating, "panel-button").whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        event.reply(buildComponentMessage("❌", "Fehler", "Feedback konnte nicht gespeichert werden."))
+                                .setEphemeral(true)
+                                .queue();
+                        return;
+                    }
+                    event.reply(buildComponentMessage("⭐", "Feedback gespeichert", text)).setEphemeral(true).queue();
+                });
             }
             case "nebi:panel:summarize" -> event.deferReply(true).queue(hook ->
                     event.getChannel().getHistory().retrievePast(30).queue(history -> {
@@ -449,8 +495,14 @@ public final class Commands extends ListenerAdapter {
             return;
         }
 
-        contextStore.addKnowledge(event.getGuild().getIdLong(), event.getUser().getIdLong(), text);
-        replySuccess(event, "Wissen gespeichert", "Der Eintrag wurde zur Wissensbasis hinzugefügt.");
+        contextStore.addKnowledge(event.getGuild().getIdLong(), event.getUser().getIdLong(), text)
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        replyError(event, "Speichern fehlgeschlagen", "Der Eintrag konnte nicht gespeichert werden.");
+                        return;
+                    }
+                    replySuccess(event, "Wissen gespeichert", "Der Eintrag wurde zur Wissensbasis hinzugefügt.");
+                });
     }
 
     private void handleKnowledgeList(SlashCommandInteractionEvent event) {
@@ -513,15 +565,16 @@ public final class Commands extends ListenerAdapter {
             replyWarning(event, "Leere Suche", "Gib bitte einen Suchbegriff an.");
             return;
         }
-        List<ContextStore.KnowledgeEntry> entries =
+        List<ContextStore.KnowledgeSearchHit> hits =
                 contextStore.searchKnowledge(event.getGuild().getIdLong(), query, limit);
-        if (entries.isEmpty()) {
+        if (hits.isEmpty()) {
             replyInfo(event, "Keine Treffer", "Zu `" + query + "` wurde nichts gefunden.");
             return;
         }
 
         StringBuilder builder = new StringBuilder("🔍 Suchbegriff: `").append(query).append("`\n\n");
-        for (ContextStore.KnowledgeEntry entry : entries) {
+        for (ContextStore.KnowledgeSearchHit hit : hits) {
+            ContextStore.KnowledgeEntry entry = hit.entry();
             builder.append("🔹 **#")
                     .append(entry.id())
                     .append("** · 🏷️ `")
@@ -530,7 +583,7 @@ public final class Commands extends ListenerAdapter {
                     .append(String.format("%.2f", entry.confidence()))
                     .append("`\n")
                     .append("└ ")
-                    .append(truncate(entry.text(), 130))
+                    .append(truncate(hit.snippet(), 160))
                     .append("\n\n");
         }
         replyInfo(event, "Knowledge Search", truncate(builder.toString().trim(), 1700));
@@ -607,7 +660,7 @@ public final class Commands extends ListenerAdapter {
     private void handleForget(SlashCommandInteractionEvent event) {
         long guildId = event.getGuild().getIdLong();
         long userId = event.getUser().getIdLong();
-        contextStore.clearConversation(guildId, userId);
+        aiManager.forgetConversation(guildId, userId);
         replySuccess(event, "Konversation gelöscht", "Alles zurückgesetzt. Frischer Start.");
     }
 
@@ -652,13 +705,14 @@ public final class Commands extends ListenerAdapter {
                 🧭 User-Kontext genutzt: **%s**
                 🗂️ History-Nachrichten genutzt: **%d**
                 📚 Knowledge-Quellen: **%s**
-                ⚡ Latenz: **%dms**
+                %s⚡ Latenz: **%dms**
                 🕒 Zeit: <t:%d:R>
                 """,
                 a.model(),
                 a.usedUserContext() ? "ja" : "nein",
                 a.historyCount(),
-                (a.knowledgeIds() == null || a.knowledgeIds().isBlank()) ? "0" : a.knowledgeIds(),
+                formatKnowledgeSources(a),
+                formatPromptTokens(a.tokens()),
                 a.latencyMs(),
                 a.createdAt() / 1000
         );
@@ -666,6 +720,45 @@ public final class Commands extends ListenerAdapter {
         replyInfo(event, "Warum diese Antwort?", truncate(text, 1700));
     }
 
+    private String formatPromptTokens(ContextStore.PromptTokens tokens) {
+        if (tokens == null) {
+            return "";
+        }
+        return String.format(
+                "🧮 Tokens: **%d/%d** (System %d | Nachricht %d | Wissen %d | Kontext %d | Zusammenfassung %d | History %d)%n",
+                tokens.total(),
+                tokens.budget(),
+                tokens.system(),
+                tokens.user(),
+                tokens.knowledge(),
+                tokens.userContext(),
+                tokens.summary(),
+                tokens.history()
+        );
+    }
+
+    private String formatKnowledgeSources(ContextStore.ReplyAudit audit) {
+        if (audit.knowledgeIds() == null || audit.knowledgeIds().isBlank()) {
+            return "0";
+        }
+        if (audit.knowledgeScores() == null || audit.knowledgeScores().isBlank()) {
+            return audit.knowledgeIds();
+        }
+        String[] ids = audit.knowledgeIds().split(",");
+        String[] scores = audit.knowledgeScores().split(",");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < ids.length; i++) {
+            if (!builder.isEmpty()) {
+                builder.append(", ");
+            }
+            builder.append('#').append(ids[i]);
+            if (i < scores.length && !scores[i].isBlank()) {
+                builder.append(" (").append(scores[i]).append(')');
+            }
+        }
+        return builder.toString();
+    }
+
     private void handleSources(SlashCommandInteractionEvent event) {
         long guildId = event.getGuild().getIdLong();
         long userId = event.getUser().getIdLong();
@@ -710,12 +803,17 @@ public final class Commands extends ListenerAdapter {
         }
 
         String reason = event.getOption("reason", "", OptionMapping::getAsString);
-        contextStore.addFeedback(event.getGuild().getIdLong(), event.getUser().getIdLong(), rating, reason);
-
         String response = "good".equals(rating)
                 ? "Danke fürs positive Feedback."
                 : "Danke, ich nutze das Feedback zur Verbesserung.";
-        replySuccess(event, "Feedback gespeichert", response);
+        contextStore.addFeedback(event.getGuild().getIdLong(), event.getUser().getIdLong(), rating, reason)
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        replyError(event, "Speichern fehlgeschlagen", "Feedback konnte nicht gespeichert werden.");
+                        return;
+                    }
+                    replySuccess(event, "Feedback gespeichert", response);
+                });
     }
 
     private void handleSummarize(SlashCommandInteractionEvent event) {
@@ -767,7 +865,9 @@ public final class Commands extends ListenerAdapter {
         }
 
         long guildId = event.getGuild().getIdLong();
-        AIManager.HealthStats health = aiManager.healthStats();
+        AIManager.HealthStats health = aiManager.healthStats(guildId);
+        Database.PoolStats pool = contextStore.poolStats();
+        Database.WriterStats writer = contextStore.writerStats();
         int lowConfidence = contextStore.countLowConfidenceKnowledge(guildId, 0.65);
         String topLine = buildTopChattersText(guildId, 5);
 
@@ -777,7 +877,20 @@ public final class Commands extends ListenerAdapter {
                 📨 Requests gesamt: **%d**
                 ❌ Fehler gesamt: **%d**
                 ⚡ Ø Latenz: **%dms**
-                📥 Queue: **%d** | 🔧 Aktiv: **%d** | ✅ Fertig: **%d**
+                🧵 Worker (%s): 📥 Queue **%d** | 🔧 Aktiv **%d** | ✅ Fertig **%d** | ⏳ Ø **%dµs**
+                🌐 OpenAI: %s
+                %s
+                🏘️ Dieser Server: %s
+                🚦 Überlast: %s
+                🎟️ Budget: %s
+                🪁 Hedging: %s
+                🔁 Retries: **%d** | Aufgegeben **%d** | 🔀 Failover **%d** | 🚫 Kein Backend frei **%d**
+                %s
+                🗃️ DB-Aufgaben: %s
+                📡 Discord-Requests: %s
+                🗄️ DB-Pool: **%d/%d** aktiv | ⏳ Ø Wartezeit: **%dµs** | 🆕 Erstellt: **%d**
+                ✍️ DB-Writer: Queue **%d** | Ø Batch **%.1f** | Fehler **%d**
+                💬 Konversations-Cache: **%d KB**
                 🧪 Low-Confidence Knowledge (<=0.65): **%d**
                 
                 🏆 **Top-Chatter**
@@ -786,9 +899,32 @@ public final class Commands extends ListenerAdapter {
                 health.totalRequests(),
                 health.totalErrors(),
                 health.avgLatencyMs(),
+                health.virtualThreads() ? "virtuell" : "Plattform",
                 health.queueDepth(),
                 health.activeWorkers(),
                 health.completedTasks(),
+                health.avgQueueWaitMicros(),
+                formatLimiter(health.openAi()),
+                formatWorkClasses(health.openAi().classes()),
+                formatGuildQueue(health.guildQueue(), health.openAi()),
+                formatOverload(health.overload(), health.openAi()),
+                formatAdmission(health.admission()),
+                formatHedging(health.hedging()),
+                health.provider().retries(),
+                health.provider().retriesExhausted(),
+                health.provider().failovers(),
+                health.provider().unavailable(),
+                formatEndpoints(health.provider().endpoints()),
+                formatBulkhead(health.database()),
+                formatBulkhead(health.discord()),
+                pool.active(),
+                pool.maxSize(),
+                pool.avgWaitMicros(),
+                pool.created(),
+                writer.queueDepth(),
+                writer.avgBatchSize(),
+                writer.failures(),
+                health.conversationCacheBytes() / 1024,
                 lowConfidence,
                 topLine
         );
@@ -796,6 +932,139 @@ public final class Commands extends ListenerAdapter {
         replyInfo(event, "AI Health", truncate(text, 1700));
     }
 
+    private static String formatBulkhead(AIManager.BulkheadStats stats) {
+        return String.format(
+                "**%d/%d** belegt | ⏳ Wartend **%d** | Ø **%dµs** | 🚫 Abgelehnt **%d**",
+                stats.inUse(),
+                stats.limit(),
+                stats.waiting(),
+                stats.avgWaitMicros(),
+                stats.rejected()
+        );
+    }
+
+    private static String formatLimiter(AIManager.LimiterStats stats) {
+        return String.format(
+                "**%d/%d** belegt (%s) | RTT **%dms** / Basis **%dms** | Ø **%dµs** | 🚫 Abgelehnt **%d**",
+                stats.inFlight(),
+                stats.limit(),
+                stats.adaptive() ? "adaptiv " + stats.minLimit() + "–" + stats.maxLimit() : "fest",
+                stats.recentRttMs(),
+                stats.baselineRttMs(),
+                stats.avgWaitMicros(),
+                stats.rejected()
+        );
+    }
+
+    private static String formatWorkClasses(List<AIManager.WorkClassStats> classes) {
+        StringBuilder builder = new StringBuilder();
+        for (AIManager.WorkClassStats stats : classes) {
+            if (!builder.isEmpty()) {
+                builder.append('\n');
+            }
+            builder.append(String.format(
+                    "↳ %s: 🔧 **%d/%d** | ⏳ Wartend **%d** | Ø **%dµs** (max %dms) | ⏫ Vorgezogen **%d** | 🚫 **%d** | ⌛ **%d**",
+                    stats.workClass().label(),
+                    stats.inFlight(),
+                    stats.cap(),
+                    stats.queued(),
+                    stats.avgWaitMicros(),
+                    stats.maxWaitMicros() / 1000,
+                    stats.promoted(),
+                    stats.rejected(),
+                    stats.shed()
+            ));
+        }
+        return builder.toString();
+    }
+
+    private static String formatGuildQueue(AIManager.GuildQueueStats stats, AIManager.LimiterStats limiter) {
+        return String.format(
+                "🔧 **%s** | ⏳ Wartend **%d** | Ø **%dµs** (max %dms) | ⚖️ Gewicht **%d** | 🚫 **%d** | ⌛ **%d** — **%d** Server aktiv, längste Queue **%d**",
+                stats.maxInFlight() <= 0 ? String.valueOf(stats.inFlight()) : stats.inFlight() + "/" + stats.maxInFlight(),
+                stats.queued(),
+                stats.avgWaitMicros(),
+                stats.maxWaitMicros() / 1000,
+                stats.weight(),
+                stats.rejected(),
+                stats.shed(),
+                limiter.activeGuilds(),
+                limiter.longestGuildQueue()
+        );
+    }
+
+    private static String formatOverload(AIManager.OverloadStats stats, AIManager.LimiterStats limiter) {
+        return String.format(
+                "🚪 Abgewiesen **%d** | 🚫 Queue voll **%d** | ⌛ Deadline verpasst **%d** | 💬 Busy-Antworten **%d** (%d unterdrückt)",
+                stats.admissionRejected(),
+                limiter.rejected(),
+                limiter.shed(),
+                stats.busyReplies(),
+                stats.busyRepliesSuppressed()
+        );
+    }
+
+    private static String formatAdmission(OpenAIClient.AdmissionStats stats) {
+        if (stats.requestsPerMinute() <= 0 && stats.tokensPerMinute() <= 0) {
+            return "unbegrenzt";
+        }
+        return String.format(
+                "RPM **%s** | TPM **%s** | ⏳ Wartend **%d** (+%d Hintergrund) | Ø **%dµs** | 🚫 Verworfen **%d**",
+                stats.requestsPerMinute() <= 0 ? "-" : stats.availableRequests() + "/" + stats.requestsPerMinute(),
+                stats.tokensPerMinute() <= 0 ? "-" : stats.availableTokens() + "/" + stats.tokensPerMinute(),
+                stats.queuedInteractive(),
+                stats.queuedBackground(),
+                stats.avgWaitMicros(),
+                stats.shed()
+        );
+    }
+
+    private static String formatHedging(OpenAIClient.HedgeStats stats) {
+        if (!stats.enabled()) {
+            return "aus";
+        }
+        return String.format(
+                "ab **%s** / **%s** (erstes Token) | **%d** von %d (%.1f%%) | 🏁 Hedge schneller **%d** | 💸 Budget leer **%d**",
+                stats.completionThresholdMillis() < 0 ? "-" : stats.completionThresholdMillis() + "ms",
+                stats.firstTokenThresholdMillis() < 0 ? "-" : stats.firstTokenThresholdMillis() + "ms",
+                stats.hedged(),
+                stats.requests(),
+                stats.requests() <= 0 ? 0.0 : stats.hedged() * 100.0 / stats.requests(),
+                stats.hedgeWins(),
+                stats.budgetDenied()
+        );
+    }
+
+    private static String formatEndpoints(List<OpenAIClient.EndpointStats> endpoints) {
+        StringBuilder builder = new StringBuilder();
+        for (OpenAIClient.EndpointStats stats : endpoints) {
+            if (!builder.isEmpty()) {
+                builder.append('\n');
+            }
+            builder.append(String.format(
+                    "🔌 `%s` (×%d): ⚡ **%s** | 🔧 **%s** offen | 📨 **%d** | ❌ **%d** (%d in Folge, %d× ausgeworfen) | Ø **%dms**",
+                    stats.name(),
+                    stats.weight(),
+                    formatCircuit(stats),
+                    stats.maxInFlight() <= 0 ? String.valueOf(stats.inFlight()) : stats.inFlight() + "/" + stats.maxInFlight(),
+                    stats.requests(),
+                    stats.errors(),
+                    stats.consecutiveFailures(),
+                    stats.ejections(),
+                    stats.avgLatencyMs()
+            ));
+        }
+        return builder.toString();
+    }
+
+    private static String formatCircuit(OpenAIClient.EndpointStats stats) {
+        return switch (stats.circuitState()) {
+            case "OPEN" -> "ausgeworfen, noch " + Math.max(1L, stats.circuitOpenRemainingMillis() / 1000) + "s";
+            case "HALF_OPEN" -> "Test läuft";
+            default -> "aktiv";
+        };
+    }
+
     private void handleTopChatters(SlashCommandInteractionEvent event) {
         int limit = Math.max(1, Math.min(getOptionalInt(event, "limit", 10), 20));
         String top = buildTopChattersText(event.getGuild().getIdLong(), limit);
@@ -1,22 +1,84 @@
 package io.nebuliton.ai;
 
 import io.nebuliton.Database;
+import io.nebuliton.TextHash;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
 
 public final class ContextStore {
     private final Database database;
+    private final List<KnowledgeListener> knowledgeListeners = new CopyOnWriteArrayList<>();
+    private final GateCache gateCache = new GateCache();
 
     public ContextStore(Database database) {
         this.database = database;
+        loadGateCache();
+    }
+
+    /**
+     * Lädt Blacklist und Privacy-Einstellungen komplett in den {@link GateCache}. Danach hält
+     * ihn jede Schreibmethode per After-Commit-Hook aktuell, also in derselben Reihenfolge wie die Datenbank.
+     */
+    private void loadGateCache() {
+        GateCache.Builder blacklist = new GateCache.Builder();
+        GateCache.Builder privacy = new GateCache.Builder();
+        try (Connection connection = database.getReadConnection()) {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT guild_id, user_id FROM ai_blacklist;");
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    blacklist.blacklisted(resultSet.getLong("guild_id"), resultSet.getLong("user_id"));
+                }
+            }
+            String sql = "SELECT guild_id, user_id, allow_storage, allow_recording, updated_at FROM user_privacy;";
+            try (PreparedStatement statement = connection.prepareStatement(sql);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    privacy.privacy(
+                            resultSet.getLong("guild_id"),
+                            resultSet.getLong("user_id"),
+                            resultSet.getInt("allow_storage") == 1,
+                            resultSet.getInt("allow_recording") == 1,
+                            resultSet.getLong("updated_at")
+                    );
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load blacklist and privacy settings", e);
+        }
+        gateCache.replace(blacklist, privacy);
+    }
+
+    /**
+     * Listener werden als After-Commit-Hook auf dem Writer-Thread aufgerufen, also in Commit-Reihenfolge, und
+     * müssen entsprechend schnell sein.
+     */
+    public void addKnowledgeListener(KnowledgeListener listener) {
+        knowledgeListeners.add(listener);
+    }
+
+    public Database.PoolStats poolStats() {
+        return database.poolStats();
+    }
+
+    public Database.WriterStats writerStats() {
+        return database.writerStats();
     }
 
     public void setUserContext(long guildId, long userId, String context) {
@@ -26,21 +88,21 @@ public final class ContextStore {
                 ON CONFLICT(guild_id, user_id)
                 DO UPDATE SET context = excluded.context, updated_at = excluded.updated_at;
                 """;
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.setString(3, context);
-            statement.setLong(4, Instant.now().toEpochMilli());
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to store user context", e);
-        }
+        writeAndWait("Failed to store user context", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.setString(3, context);
+                statement.setLong(4, Instant.now().toEpochMilli());
+                statement.executeUpdate();
+            }
+            return null;
+        });
     }
 
     public Optional<String> getUserContext(long guildId, long userId) {
         String sql = "SELECT context FROM user_contexts WHERE guild_id = ? AND user_id = ?;";
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setLong(2, userId);
@@ -57,14 +119,14 @@ public final class ContextStore {
 
     public void clearUserContext(long guildId, long userId) {
         String sql = "DELETE FROM user_contexts WHERE guild_id = ? AND user_id = ?;";
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to clear user context", e);
-        }
+        writeAndWait("Failed to clear user context", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.executeUpdate();
+            }
+            return null;
+        });
     }
 
     public void setPrivacy(long guildId, long userId, boolean allowStorage, boolean allowRecording) {
@@ -77,46 +139,26 @@ public final class ContextStore {
                     allow_recording = excluded.allow_recording,
                     updated_at = excluded.updated_at;
                 """;
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.setInt(3, allowStorage ? 1 : 0);
-            statement.setInt(4, allowRecording ? 1 : 0);
-            statement.setLong(5, Instant.now().toEpochMilli());
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to set privacy", e);
-        }
+        long updatedAt = Instant.now().toEpochMilli();
+        writeAndWait("Failed to set privacy", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.setInt(3, allowStorage ? 1 : 0);
+                statement.setInt(4, allowRecording ? 1 : 0);
+                statement.setLong(5, updatedAt);
+                statement.executeUpdate();
+            }
+            return null;
+        }, ignored -> gateCache.setPrivacy(guildId, userId, allowStorage, allowRecording, updatedAt));
     }
 
     public PrivacySettings getPrivacy(long guildId, long userId) {
-        String sql = """
-                SELECT allow_storage, allow_recording, updated_at
-                FROM user_privacy
-                WHERE guild_id = ? AND user_id = ?;
-                """;
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            try (ResultSet resultSet = statement.executeQuery()) {
-                if (resultSet.next()) {
-                    return new PrivacySettings(
-                            resultSet.getInt("allow_storage") == 1,
-                            resultSet.getInt("allow_recording") == 1,
-                            resultSet.getLong("updated_at")
-                    );
-                }
-            }
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to load privacy settings", e);
-        }
-        return new PrivacySettings(true, true, 0L);
+        return gateCache.privacy(guildId, userId);
     }
 
     public boolean isStorageAllowed(long guildId, long userId) {
-        return getPrivacy(guildId, userId).allowStorage();
+        return gateCache.isStorageAllowed(guildId, userId);
     }
 
     public boolean isRecordingAllowed(long guildId, long userId) {
@@ -124,15 +166,90 @@ public final class ContextStore {
         return settings.allowStorage() && settings.allowRecording();
     }
 
-    public void addKnowledge(long guildId, long addedBy, String text) {
-        upsertKnowledge(guildId, addedBy, text, 1.0, "manual");
+    public CompletableFuture<Void> addKnowledge(long guildId, long addedBy, String text) {
+        return upsertKnowledge(guildId, addedBy, text, 1.0, "manual");
+    }
+
+    public CompletableFuture<Void> addLearnedKnowledge(long guildId, long addedBy, String text, double confidence) {
+        return upsertKnowledge(guildId, addedBy, text, confidence, "learned");
     }
 
-    public void addLearnedKnowledge(long guildId, long addedBy, String text, double confidence) {
-        upsertKnowledge(guildId, addedBy, text, confidence, "learned");
+    /**
+     * Legt einen Eintrag an oder führt ihn mit einem bestehenden gleichen Textes zusammen
+     * (höchste Confidence, {@code manual} gewinnt). Der Abgleich läuft über {@code text_hash}
+     * und ist ein einzelnes atomares Statement; solange die text_hash-Migration noch läuft, über den Text.
+     */
+    private CompletableFuture<Void> upsertKnowledge(
+            long guildId,
+            long addedBy,
+            String text,
+            double confidence,
+            String source
+    ) {
+        long now = Instant.now().toEpochMilli();
+        String sql = """
+                INSERT INTO knowledge_entries (guild_id, text, text_hash, confidence, source, added_by, created_at)
+                VALUES (?, ?, ?, ?, ?, ?, ?)
+                ON CONFLICT (guild_id, text_hash) DO UPDATE SET
+                    confidence = max(knowledge_entries.confidence, excluded.confidence),
+                    source = CASE
+                        WHEN lower(knowledge_entries.source) = 'manual' OR lower(excluded.source) = 'manual' THEN 'manual'
+                        ELSE 'learned'
+                    END,
+                    added_by = excluded.added_by,
+                    created_at = excluded.created_at
+                RETURNING id, text, confidence, source, added_by, created_at;
+                """;
+        long textHash = TextHash.of(text);
+        return write("Failed to add knowledge entry", connection -> {
+            // Erst hier entscheiden: die text_hash-Migration wird im selben Batch fertig, in dem sie freigegeben wird
+            if (!database.hasKnowledgeTextHash()) {
+                upsertKnowledgeByText(connection, guildId, addedBy, text, confidence, source, now);
+                return null;
+            }
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setString(2, text);
+                statement.setLong(3, textHash);
+                statement.setDouble(4, confidence);
+                statement.setString(5, source);
+                statement.setLong(6, addedBy);
+                statement.setLong(7, now);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next()) {
+                        throw new SQLException("Upsert returned no row");
+                    }
+                    return new KnowledgeEntry(
+                            resultSet.getLong("id"),
+                            resultSet.getString("text"),
+                            resultSet.getDouble("confidence"),
+                            resultSet.getString("source"),
+                            resultSet.getLong("added_by"),
+                            resultSet.getLong("created_at")
+                    );
+                }
+            }
+        }, entry -> knowledgeListeners.forEach(listener -> {
+            if (entry == null) {
+                listener.knowledgeInvalidated(guildId);
+            } else {
+                listener.knowledgeUpserted(guildId, entry);
+            }
+        }));
     }
 
-    private void upsertKnowledge(long guildId, long addedBy, String text, double confidence, String source) {
+    /**
+     * Alter Weg über {@code lower(trim(text))}, solange die text_hash-Migration noch im Hintergrund läuft.
+     */
+    private void upsertKnowledgeByText(
+            Connection connection,
+            long guildId,
+            long addedBy,
+            String text,
+            double confidence,
+            String source,
+            long now
+    ) throws SQLException {
         String findSql = """
                 SELECT id, confidence, source
                 FROM knowledge_entries
@@ -148,11 +265,9 @@ public final class ContextStore {
                 SET confidence = ?, source = ?, added_by = ?, created_at = ?
                 WHERE id = ? AND guild_id = ?;
                 """;
-        try (Connection connection = database.getConnection();
-             PreparedStatement find = connection.prepareStatement(findSql)) {
+        try (PreparedStatement find = connection.prepareStatement(findSql)) {
             find.setLong(1, guildId);
             find.setString(2, text);
-            long now = Instant.now().toEpochMilli();
             try (ResultSet resultSet = find.executeQuery()) {
                 if (resultSet.next()) {
                     long id = resultSet.getLong("id");
@@ -173,17 +288,15 @@ public final class ContextStore {
                     return;
                 }
             }
-            try (PreparedStatement insert = connection.prepareStatement(insertSql)) {
-                insert.setLong(1, guildId);
-                insert.setString(2, text);
-                insert.setDouble(3, confidence);
-                insert.setString(4, source);
-                insert.setLong(5, addedBy);
-                insert.setLong(6, now);
-                insert.executeUpdate();
-            }
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to add knowledge entry", e);
+        }
+        try (PreparedStatement insert = connection.prepareStatement(insertSql)) {
+            insert.setLong(1, guildId);
+            insert.setString(2, text);
+            insert.setDouble(3, confidence);
+            insert.setString(4, source);
+            insert.setLong(5, addedBy);
+            insert.setLong(6, now);
+            insert.executeUpdate();
         }
     }
 
@@ -196,7 +309,7 @@ public final class ContextStore {
                 LIMIT ?;
                 """;
         List<KnowledgeEntry> entries = new ArrayList<>();
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setInt(2, limit);
@@ -218,7 +331,58 @@ public final class ContextStore {
         return entries;
     }
 
-    public List<KnowledgeEntry> searchKnowledge(long guildId, String query, int limit) {
+    /**
+     * Volltextsuche über den FTS5-Index, sortiert nach bm25. Jeder Suchbegriff wird als Präfix
+     * gesucht, alle Begriffe müssen vorkommen. Solange der Index noch nicht migriert ist,
+     * wird auf die alte LIKE-Suche zurückgefallen.
+     */
+    public List<KnowledgeSearchHit> searchKnowledge(long guildId, String query, int limit) {
+        if (!database.hasKnowledgeSearchIndex()) {
+            return searchKnowledgeLike(guildId, query, limit);
+        }
+        String match = buildMatchQuery(query);
+        if (match.isEmpty()) {
+            return List.of();
+        }
+        String sql = """
+                SELECT k.id, k.text, k.confidence, k.source, k.added_by, k.created_at,
+                       snippet(knowledge_fts, 0, '**', '**', '…', 24) AS snippet,
+                       bm25(knowledge_fts) AS score
+                FROM knowledge_fts
+                JOIN knowledge_entries k ON k.id = knowledge_fts.rowid
+                WHERE knowledge_fts MATCH ? AND k.guild_id = ?
+                ORDER BY score
+                LIMIT ?;
+                """;
+        List<KnowledgeSearchHit> hits = new ArrayList<>();
+        try (Connection connection = database.getReadConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, match);
+            statement.setLong(2, guildId);
+            statement.setInt(3, limit);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    hits.add(new KnowledgeSearchHit(
+                            new KnowledgeEntry(
+                                    resultSet.getLong("id"),
+                                    resultSet.getString("text"),
+                                    resultSet.getDouble("confidence"),
+                                    resultSet.getString("source"),
+                                    resultSet.getLong("added_by"),
+                                    resultSet.getLong("created_at")
+                            ),
+                            resultSet.getString("snippet"),
+                            -resultSet.getDouble("score")
+                    ));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to search knowledge", e);
+        }
+        return hits;
+    }
+
+    private List<KnowledgeSearchHit> searchKnowledgeLike(long guildId, String query, int limit) {
         String sql = """
                 SELECT id, text, confidence, source, added_by, created_at
                 FROM knowledge_entries
@@ -226,40 +390,44 @@ public final class ContextStore {
                 ORDER BY id DESC
                 LIMIT ?;
                 """;
-        List<KnowledgeEntry> entries = new ArrayList<>();
-        try (Connection connection = database.getConnection();
+        List<KnowledgeSearchHit> hits = new ArrayList<>();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setString(2, "%" + query + "%");
             statement.setInt(3, limit);
             try (ResultSet resultSet = statement.executeQuery()) {
                 while (resultSet.next()) {
-                    entries.add(new KnowledgeEntry(
+                    KnowledgeEntry entry = new KnowledgeEntry(
                             resultSet.getLong("id"),
                             resultSet.getString("text"),
                             resultSet.getDouble("confidence"),
                             resultSet.getString("source"),
                             resultSet.getLong("added_by"),
                             resultSet.getLong("created_at")
-                    ));
+                    );
+                    hits.add(new KnowledgeSearchHit(entry, entry.text(), 0.0));
                 }
             }
         } catch (SQLException e) {
             throw new IllegalStateException("Failed to search knowledge", e);
         }
-        return entries;
+        return hits;
     }
 
     public void removeKnowledge(long guildId, long entryId) {
         String sql = "DELETE FROM knowledge_entries WHERE guild_id = ? AND id = ?;";
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, entryId);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to remove knowledge entry", e);
-        }
+        writeAndWait("Failed to remove knowledge entry", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, entryId);
+                return statement.executeUpdate();
+            }
+        }, removed -> {
+            if (removed > 0) {
+                knowledgeListeners.forEach(listener -> listener.knowledgeRemoved(guildId, entryId));
+            }
+        });
     }
 
     public List<KnowledgeEntry> listKnowledgeForReview(long guildId, int limit, double maxConfidence) {
@@ -271,7 +439,7 @@ public final class ContextStore {
                 LIMIT ?;
                 """;
         List<KnowledgeEntry> entries = new ArrayList<>();
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setDouble(2, maxConfidence);
@@ -294,68 +462,219 @@ public final class ContextStore {
         return entries;
     }
 
-    public boolean isBlacklisted(long guildId, long userId) {
-        String sql = "SELECT 1 FROM ai_blacklist WHERE guild_id = ? AND user_id = ?;";
-        try (Connection connection = database.getConnection();
+    /**
+     * Einträge ohne Vektor für das angegebene Modell, älteste zuerst. {@code dimensions <= 0} akzeptiert jede Größe.
+     */
+    public List<KnowledgeEntry> listKnowledgeWithoutEmbedding(long guildId, String model, int dimensions, int limit) {
+        String sql = """
+                SELECT k.id, k.text, k.confidence, k.source, k.added_by, k.created_at
+                FROM knowledge_entries k
+                LEFT JOIN knowledge_embeddings e
+                    ON e.entry_id = k.id AND e.model = ? AND (? <= 0 OR e.dimensions = ?)
+                WHERE k.guild_id = ? AND e.entry_id IS NULL
+                ORDER BY k.id
+                LIMIT ?;
+                """;
+        List<KnowledgeEntry> entries = new ArrayList<>();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
+            statement.setString(1, model);
+            statement.setInt(2, dimensions);
+            statement.setInt(3, dimensions);
+            statement.setLong(4, guildId);
+            statement.setInt(5, limit);
             try (ResultSet resultSet = statement.executeQuery()) {
-                return resultSet.next();
+                while (resultSet.next()) {
+                    entries.add(readKnowledgeEntry(resultSet));
+                }
             }
         } catch (SQLException e) {
-            throw new IllegalStateException("Failed to check blacklist", e);
+            throw new IllegalStateException("Failed to list knowledge without embedding", e);
         }
+        return entries;
     }
 
-    public void addBlacklist(long guildId, long userId, long addedBy, String reason) {
+    /**
+     * Streamt alle gespeicherten Vektoren einer Guild, ohne sie gesammelt auf den Heap zu laden.
+     */
+    public void forEachKnowledgeEmbedding(long guildId, String model, int dimensions, ObjLongConsumer<byte[]> consumer) {
         String sql = """
-                INSERT INTO ai_blacklist (guild_id, user_id, reason, added_by, created_at)
-                VALUES (?, ?, ?, ?, ?)
-                ON CONFLICT(guild_id, user_id)
-                DO UPDATE SET reason = excluded.reason, added_by = excluded.added_by, created_at = excluded.created_at;
+                SELECT e.entry_id, e.vector
+                FROM knowledge_embeddings e
+                JOIN knowledge_entries k ON k.id = e.entry_id
+                WHERE k.guild_id = ? AND e.model = ? AND (? <= 0 OR e.dimensions = ?)
+                ORDER BY e.entry_id;
                 """;
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.setString(3, reason);
-            statement.setLong(4, addedBy);
-            statement.setLong(5, Instant.now().toEpochMilli());
-            statement.executeUpdate();
+            statement.setString(2, model);
+            statement.setInt(3, dimensions);
+            statement.setInt(4, dimensions);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(resultSet.getBytes("vector"), resultSet.getLong("entry_id"));
+                }
+            }
         } catch (SQLException e) {
-            throw new IllegalStateException("Failed to add blacklist entry", e);
+            throw new IllegalStateException("Failed to load knowledge embeddings", e);
         }
     }
 
-    public void removeBlacklist(long guildId, long userId) {
-        String sql = "DELETE FROM ai_blacklist WHERE guild_id = ? AND user_id = ?;";
-        try (Connection connection = database.getConnection();
+    public CompletableFuture<Void> saveKnowledgeEmbeddings(String model, int dimensions, Map<Long, byte[]> vectors) {
+        String sql = """
+                INSERT INTO knowledge_embeddings (entry_id, model, dimensions, vector)
+                SELECT ?, ?, ?, ?
+                WHERE EXISTS (SELECT 1 FROM knowledge_entries WHERE id = ?)
+                ON CONFLICT (entry_id) DO UPDATE SET
+                    model = excluded.model,
+                    dimensions = excluded.dimensions,
+                    vector = excluded.vector;
+                """;
+        return write("Failed to save knowledge embeddings", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (Map.Entry<Long, byte[]> vector : vectors.entrySet()) {
+                    statement.setLong(1, vector.getKey());
+                    statement.setString(2, model);
+                    statement.setInt(3, dimensions);
+                    statement.setBytes(4, vector.getValue());
+                    statement.setLong(5, vector.getKey());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Lädt Einträge per ID, in der Reihenfolge von {@code ids}. Fehlende IDs werden übersprungen.
+     */
+    public List<KnowledgeEntry> getKnowledgeEntries(long guildId, List<Long> ids) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        String placeholders = String.join(", ", Collections.nCopies(ids.size(), "?"));
+        String sql = "SELECT id, text, confidence, source, added_by, created_at FROM knowledge_entries "
+                + "WHERE guild_id = ? AND id IN (" + placeholders + ");";
+        Map<Long, KnowledgeEntry> byId = new HashMap<>();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.executeUpdate();
+            for (int i = 0; i < ids.size(); i++) {
+                statement.setLong(i + 2, ids.get(i));
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    KnowledgeEntry entry = readKnowledgeEntry(resultSet);
+                    byId.put(entry.id(), entry);
+                }
+            }
         } catch (SQLException e) {
-            throw new IllegalStateException("Failed to remove blacklist entry", e);
+            throw new IllegalStateException("Failed to load knowledge entries", e);
+        }
+        List<KnowledgeEntry> entries = new ArrayList<>(byId.size());
+        for (Long id : ids) {
+            KnowledgeEntry entry = byId.get(id);
+            if (entry != null) {
+                entries.add(entry);
+            }
         }
+        return entries;
+    }
+
+    private static KnowledgeEntry readKnowledgeEntry(ResultSet resultSet) throws SQLException {
+        return new KnowledgeEntry(
+                resultSet.getLong("id"),
+                resultSet.getString("text"),
+                resultSet.getDouble("confidence"),
+                resultSet.getString("source"),
+                resultSet.getLong("added_by"),
+                resultSet.getLong("created_at")
+        );
     }
 
-    public void addConversationMessage(long guildId, long userId, String role, String content) {
+    public boolean isBlacklisted(long guildId, long userId) {
+        return gateCache.isBlacklisted(guildId, userId);
+    }
+
+    public void addBlacklist(long guildId, long userId, long addedBy, String reason) {
         String sql = """
+                INSERT INTO ai_blacklist (guild_id, user_id, reason, added_by, created_at)
+                VALUES (?, ?, ?, ?, ?)
+                ON CONFLICT(guild_id, user_id)
+                DO UPDATE SET reason = excluded.reason, added_by = excluded.added_by, created_at = excluded.created_at;
+                """;
+        writeAndWait("Failed to add blacklist entry", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.setString(3, reason);
+                statement.setLong(4, addedBy);
+                statement.setLong(5, Instant.now().toEpochMilli());
+                statement.executeUpdate();
+            }
+            return null;
+        }, ignored -> gateCache.setBlacklisted(guildId, userId, true));
+    }
+
+    public void removeBlacklist(long guildId, long userId) {
+        String sql = "DELETE FROM ai_blacklist WHERE guild_id = ? AND user_id = ?;";
+        writeAndWait("Failed to remove blacklist entry", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.executeUpdate();
+            }
+            return null;
+        }, ignored -> gateCache.setBlacklisted(guildId, userId, false));
+    }
+
+    /**
+     * Fügt die Nachrichten ein und behält danach nur die neuesten {@code keepLimit}, beides in einer Schreiboperation.
+     */
+    public CompletableFuture<Void> appendConversationMessages(
+            long guildId,
+            long userId,
+            List<ConversationMessage> messages,
+            int keepLimit
+    ) {
+        String insertSql = """
                 INSERT INTO conversation_messages (guild_id, user_id, role, content, created_at)
                 VALUES (?, ?, ?, ?, ?);
                 """;
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.setString(3, role);
-            statement.setString(4, content);
-            statement.setLong(5, Instant.now().toEpochMilli());
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to add conversation message", e);
-        }
+        String trimSql = """
+                DELETE FROM conversation_messages
+                WHERE guild_id = ? AND user_id = ?
+                AND id <= (
+                    SELECT id FROM conversation_messages
+                    WHERE guild_id = ? AND user_id = ?
+                    ORDER BY id DESC
+                    LIMIT 1 OFFSET ?
+                );
+                """;
+        return write("Failed to append conversation messages", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(insertSql)) {
+                for (ConversationMessage message : messages) {
+                    statement.setLong(1, guildId);
+                    statement.setLong(2, userId);
+                    statement.setString(3, message.role());
+                    statement.setString(4, message.content());
+                    statement.setLong(5, message.createdAt());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            try (PreparedStatement statement = connection.prepareStatement(trimSql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.setLong(3, guildId);
+                statement.setLong(4, userId);
+                statement.setInt(5, Math.max(1, keepLimit));
+                statement.executeUpdate();
+            }
+            return null;
+        });
     }
 
     public List<ConversationMessage> listConversationMessages(long guildId, long userId, int limit) {
@@ -367,7 +686,7 @@ public final class ContextStore {
                 LIMIT ?;
                 """;
         List<ConversationMessage> messages = new ArrayList<>();
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setLong(2, userId);
@@ -388,44 +707,107 @@ public final class ContextStore {
         return messages;
     }
 
-    public void trimConversation(long guildId, long userId, int keepLimit) {
-        if (keepLimit <= 0) {
-            clearConversation(guildId, userId);
-            return;
+    public void clearConversation(long guildId, long userId) {
+        String sql = "DELETE FROM conversation_messages WHERE guild_id = ? AND user_id = ?;";
+        String summarySql = "DELETE FROM conversation_summaries WHERE guild_id = ? AND user_id = ?;";
+        boolean withSummary = database.hasConversationSummaries();
+        writeAndWait("Failed to clear conversation", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.executeUpdate();
+            }
+            if (withSummary) {
+                try (PreparedStatement statement = connection.prepareStatement(summarySql)) {
+                    statement.setLong(1, guildId);
+                    statement.setLong(2, userId);
+                    statement.executeUpdate();
+                }
+            }
+            return null;
+        });
+    }
+
+    public Optional<ConversationSummary> getConversationSummary(long guildId, long userId) {
+        if (!database.hasConversationSummaries()) {
+            return Optional.empty();
         }
         String sql = """
-                DELETE FROM conversation_messages
-                WHERE guild_id = ? AND user_id = ?
-                AND id NOT IN (
-                    SELECT id FROM conversation_messages
-                    WHERE guild_id = ? AND user_id = ?
-                    ORDER BY id DESC
-                    LIMIT ?
-                );
+                SELECT summary, covered_until, updated_at
+                FROM conversation_summaries
+                WHERE guild_id = ? AND user_id = ?;
                 """;
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setLong(2, userId);
-            statement.setLong(3, guildId);
-            statement.setLong(4, userId);
-            statement.setInt(5, keepLimit);
-            statement.executeUpdate();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return Optional.of(new ConversationSummary(
+                            resultSet.getString("summary"),
+                            resultSet.getLong("covered_until"),
+                            resultSet.getLong("updated_at")
+                    ));
+                }
+            }
         } catch (SQLException e) {
-            throw new IllegalStateException("Failed to trim conversation", e);
+            throw new IllegalStateException("Failed to get conversation summary", e);
         }
+        return Optional.empty();
     }
 
-    public void clearConversation(long guildId, long userId) {
-        String sql = "DELETE FROM conversation_messages WHERE guild_id = ? AND user_id = ?;";
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to clear conversation", e);
+    /**
+     * Speichert die Zusammenfassung und löscht alle Nachrichten bis auf die neuesten {@code keptRows}, beides in
+     * einer Schreiboperation. Der Schnitt läuft über die id, Antworten teilen sich den Zeitstempel mit der Frage.
+     */
+    public CompletableFuture<Void> saveConversationSummary(
+            long guildId,
+            long userId,
+            String summary,
+            long coveredUntil,
+            int keptRows
+    ) {
+        if (!database.hasConversationSummaries()) {
+            return CompletableFuture.completedFuture(null);
         }
+        String upsertSql = """
+                INSERT INTO conversation_summaries (guild_id, user_id, summary, covered_until, updated_at)
+                VALUES (?, ?, ?, ?, ?)
+                ON CONFLICT(guild_id, user_id) DO UPDATE SET
+                    summary = excluded.summary,
+                    covered_until = excluded.covered_until,
+                    updated_at = excluded.updated_at;
+                """;
+        String trimSql = """
+                DELETE FROM conversation_messages
+                WHERE guild_id = ? AND user_id = ?
+                AND id <= (
+                    SELECT id FROM conversation_messages
+                    WHERE guild_id = ? AND user_id = ?
+                    ORDER BY id DESC
+                    LIMIT 1 OFFSET ?
+                );
+                """;
+        long updatedAt = Instant.now().toEpochMilli();
+        return write("Failed to save conversation summary", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(upsertSql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.setString(3, summary);
+                statement.setLong(4, coveredUntil);
+                statement.setLong(5, updatedAt);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = connection.prepareStatement(trimSql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.setLong(3, guildId);
+                statement.setLong(4, userId);
+                statement.setInt(5, Math.max(0, keptRows));
+                statement.executeUpdate();
+            }
+            return null;
+        });
     }
 
     public List<BlacklistEntry> listBlacklist(long guildId, int limit) {
@@ -437,7 +819,7 @@ public final class ContextStore {
                 LIMIT ?;
                 """;
         List<BlacklistEntry> entries = new ArrayList<>();
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setInt(2, limit);
@@ -460,15 +842,33 @@ public final class ContextStore {
     public record KnowledgeEntry(long id, String text, double confidence, String source, long addedBy, long createdAt) {
     }
 
+    public record KnowledgeSearchHit(KnowledgeEntry entry, String snippet, double score) {
+    }
+
+    /**
+     * Wird nach jeder committeten Änderung an {@code knowledge_entries} benachrichtigt.
+     * {@link #knowledgeInvalidated(long)} heißt: der Stand der Guild ist unbekannt und muss neu geladen werden.
+     */
+    public interface KnowledgeListener {
+        void knowledgeUpserted(long guildId, KnowledgeEntry entry);
+
+        void knowledgeRemoved(long guildId, long entryId);
+
+        void knowledgeInvalidated(long guildId);
+    }
+
     public record BlacklistEntry(long userId, String reason, long addedBy, long createdAt) {
     }
 
     public record ConversationMessage(String role, String content, long createdAt) {
     }
 
+    public record ConversationSummary(String summary, long coveredUntil, long updatedAt) {
+    }
+
     public int countKnowledge(long guildId) {
         String sql = "SELECT COUNT(*) FROM knowledge_entries WHERE guild_id = ?;";
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             try (ResultSet resultSet = statement.executeQuery()) {
@@ -484,7 +884,7 @@ public final class ContextStore {
 
     public int countBlacklist(long guildId) {
         String sql = "SELECT COUNT(*) FROM ai_blacklist WHERE guild_id = ?;";
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             try (ResultSet resultSet = statement.executeQuery()) {
@@ -500,7 +900,7 @@ public final class ContextStore {
 
     public int countContexts(long guildId) {
         String sql = "SELECT COUNT(*) FROM user_contexts WHERE guild_id = ?;";
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             try (ResultSet resultSet = statement.executeQuery()) {
@@ -516,7 +916,7 @@ public final class ContextStore {
 
     public int countConversations(long guildId) {
         String sql = "SELECT COUNT(DISTINCT user_id) FROM conversation_messages WHERE guild_id = ?;";
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             try (ResultSet resultSet = statement.executeQuery()) {
@@ -536,7 +936,7 @@ public final class ContextStore {
                 FROM knowledge_entries
                 WHERE guild_id = ? AND source = 'learned' AND confidence <= ?;
                 """;
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setDouble(2, maxConfidence);
@@ -551,54 +951,105 @@ public final class ContextStore {
         return 0;
     }
 
-    public void saveReplyAudit(
+    /**
+     * {@code tokens} ist die Aufteilung des Prompts, bei Zusammenfassungen {@code null}.
+     */
+    public CompletableFuture<Void> saveReplyAudit(
             long guildId,
             long userId,
             String model,
             boolean usedUserContext,
             int historyCount,
             List<Long> knowledgeIds,
+            List<Double> knowledgeScores,
             String knowledgePreview,
             String promptExcerpt,
             String responseExcerpt,
-            long latencyMs
+            long latencyMs,
+            PromptTokens tokens
     ) {
-        String sql = """
+        // knowledge_scores und die Token-Spalten kommen erst mit Migration 5 und 7 und können beim Start noch fehlen
+        boolean withScores = database.hasReplyAuditScores();
+        boolean withTokens = database.hasReplyAuditTokens();
+        boolean withSummaryTokens = database.hasConversationSummaries();
+        StringBuilder sql = new StringBuilder("""
                 INSERT INTO ai_reply_audit (
                     guild_id, user_id, model, used_user_context, history_count, knowledge_ids, knowledge_preview,
-                    prompt_excerpt, response_excerpt, latency_ms, created_at
-                )
-                VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);
-                """;
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.setString(3, model);
-            statement.setInt(4, usedUserContext ? 1 : 0);
-            statement.setInt(5, historyCount);
-            statement.setString(6, joinKnowledgeIds(knowledgeIds));
-            statement.setString(7, knowledgePreview);
-            statement.setString(8, promptExcerpt);
-            statement.setString(9, responseExcerpt);
-            statement.setLong(10, latencyMs);
-            statement.setLong(11, Instant.now().toEpochMilli());
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to save reply audit", e);
+                    prompt_excerpt, response_excerpt, latency_ms, created_at""");
+        int parameters = 11;
+        if (withScores) {
+            sql.append(", knowledge_scores");
+            parameters++;
+        }
+        if (withTokens) {
+            sql.append(", token_budget, prompt_tokens, system_tokens, user_tokens, knowledge_tokens, context_tokens, history_tokens");
+            parameters += 7;
+        }
+        if (withSummaryTokens) {
+            sql.append(", summary_tokens");
+            parameters++;
         }
+        sql.append("\n)\nVALUES (").append("?, ".repeat(parameters - 1)).append("?);");
+        String joinedIds = joinKnowledgeIds(knowledgeIds);
+        String joinedScores = joinKnowledgeScores(knowledgeScores);
+        long createdAt = Instant.now().toEpochMilli();
+        return write("Failed to save reply audit", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.setString(3, model);
+                statement.setInt(4, usedUserContext ? 1 : 0);
+                statement.setInt(5, historyCount);
+                statement.setString(6, joinedIds);
+                statement.setString(7, knowledgePreview);
+                statement.setString(8, promptExcerpt);
+                statement.setString(9, responseExcerpt);
+                statement.setLong(10, latencyMs);
+                statement.setLong(11, createdAt);
+                int index = 12;
+                if (withScores) {
+                    statement.setString(index++, joinedScores);
+                }
+                if (withTokens) {
+                    int[] values = tokens == null ? null : new int[]{
+                            tokens.budget(),
+                            tokens.total(),
+                            tokens.system(),
+                            tokens.user(),
+                            tokens.knowledge(),
+                            tokens.userContext(),
+                            tokens.history()
+                    };
+                    for (int i = 0; i < 7; i++) {
+                        if (values == null) {
+                            statement.setNull(index++, Types.INTEGER);
+                        } else {
+                            statement.setInt(index++, values[i]);
+                        }
+                    }
+                }
+                if (withSummaryTokens) {
+                    if (tokens == null) {
+                        statement.setNull(index, Types.INTEGER);
+                    } else {
+                        statement.setInt(index, tokens.summary());
+                    }
+                }
+                statement.executeUpdate();
+            }
+            return null;
+        });
     }
 
     public Optional<ReplyAudit> getLatestReplyAudit(long guildId, long userId) {
         String sql = """
-                SELECT model, used_user_context, history_count, knowledge_ids, knowledge_preview, prompt_excerpt,
-                       response_excerpt, latency_ms, created_at
+                SELECT *
                 FROM ai_reply_audit
                 WHERE guild_id = ? AND user_id = ?
                 ORDER BY id DESC
                 LIMIT 1;
                 """;
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setLong(2, userId);
@@ -609,11 +1060,13 @@ public final class ContextStore {
                             resultSet.getInt("used_user_context") == 1,
                             resultSet.getInt("history_count"),
                             resultSet.getString("knowledge_ids"),
+                            database.hasReplyAuditScores() ? resultSet.getString("knowledge_scores") : null,
                             resultSet.getString("knowledge_preview"),
                             resultSet.getString("prompt_excerpt"),
                             resultSet.getString("response_excerpt"),
                             resultSet.getLong("latency_ms"),
-                            resultSet.getLong("created_at")
+                            resultSet.getLong("created_at"),
+                            database.hasReplyAuditTokens() ? readPromptTokens(resultSet, database.hasConversationSummaries()) : null
                     ));
                 }
             }
@@ -623,22 +1076,40 @@ public final class ContextStore {
         return Optional.empty();
     }
 
-    public void addFeedback(long guildId, long userId, String rating, String reason) {
+    private static PromptTokens readPromptTokens(ResultSet resultSet, boolean withSummary) throws SQLException {
+        int budget = resultSet.getInt("token_budget");
+        if (resultSet.wasNull()) {
+            return null;
+        }
+        return new PromptTokens(
+                budget,
+                resultSet.getInt("prompt_tokens"),
+                resultSet.getInt("system_tokens"),
+                resultSet.getInt("user_tokens"),
+                resultSet.getInt("knowledge_tokens"),
+                resultSet.getInt("context_tokens"),
+                withSummary ? resultSet.getInt("summary_tokens") : 0,
+                resultSet.getInt("history_tokens")
+        );
+    }
+
+    public CompletableFuture<Void> addFeedback(long guildId, long userId, String rating, String reason) {
         String sql = """
                 INSERT INTO response_feedback (guild_id, user_id, rating, reason, created_at)
                 VALUES (?, ?, ?, ?, ?);
                 """;
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.setString(3, rating);
-            statement.setString(4, reason);
-            statement.setLong(5, Instant.now().toEpochMilli());
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to store feedback", e);
-        }
+        long createdAt = Instant.now().toEpochMilli();
+        return write("Failed to store feedback", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.setString(3, rating);
+                statement.setString(4, reason);
+                statement.setLong(5, createdAt);
+                statement.executeUpdate();
+            }
+            return null;
+        });
     }
 
     public FeedbackStats getFeedbackStats(long guildId, long sinceEpochMs) {
@@ -649,7 +1120,7 @@ public final class ContextStore {
                 FROM response_feedback
                 WHERE guild_id = ? AND created_at >= ?;
                 """;
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setLong(2, sinceEpochMs);
@@ -677,7 +1148,7 @@ public final class ContextStore {
                 LIMIT ?;
                 """;
         List<UserMessageCount> results = new ArrayList<>();
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setInt(2, limit);
@@ -700,17 +1171,17 @@ public final class ContextStore {
                 INSERT INTO voice_notes (guild_id, user_id, title, content, created_at)
                 VALUES (?, ?, ?, ?, ?);
                 """;
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.setString(3, title);
-            statement.setString(4, content);
-            statement.setLong(5, Instant.now().toEpochMilli());
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to add voice note", e);
-        }
+        writeAndWait("Failed to add voice note", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.setString(3, title);
+                statement.setString(4, content);
+                statement.setLong(5, Instant.now().toEpochMilli());
+                statement.executeUpdate();
+            }
+            return null;
+        });
     }
 
     public List<VoiceNote> listVoiceNotes(long guildId, int limit) {
@@ -722,7 +1193,7 @@ public final class ContextStore {
                 LIMIT ?;
                 """;
         List<VoiceNote> notes = new ArrayList<>();
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setInt(2, limit);
@@ -745,14 +1216,14 @@ public final class ContextStore {
 
     public void removeVoiceNote(long guildId, long noteId) {
         String sql = "DELETE FROM voice_notes WHERE guild_id = ? AND id = ?;";
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, noteId);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to remove voice note", e);
-        }
+        writeAndWait("Failed to remove voice note", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, noteId);
+                statement.executeUpdate();
+            }
+            return null;
+        });
     }
 
     public void addVoiceRecording(long guildId, long userId, String title, String fileName, String fileUrl) {
@@ -760,18 +1231,18 @@ public final class ContextStore {
                 INSERT INTO voice_recordings (guild_id, user_id, title, file_name, file_url, created_at)
                 VALUES (?, ?, ?, ?, ?, ?);
                 """;
-        try (Connection connection = database.getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, guildId);
-            statement.setLong(2, userId);
-            statement.setString(3, title);
-            statement.setString(4, fileName);
-            statement.setString(5, fileUrl);
-            statement.setLong(6, Instant.now().toEpochMilli());
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to add voice recording", e);
-        }
+        writeAndWait("Failed to add voice recording", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, guildId);
+                statement.setLong(2, userId);
+                statement.setString(3, title);
+                statement.setString(4, fileName);
+                statement.setString(5, fileUrl);
+                statement.setLong(6, Instant.now().toEpochMilli());
+                statement.executeUpdate();
+            }
+            return null;
+        });
     }
 
     public List<VoiceRecording> listVoiceRecordings(long guildId, int limit) {
@@ -783,7 +1254,7 @@ public final class ContextStore {
                 LIMIT ?;
                 """;
         List<VoiceRecording> recordings = new ArrayList<>();
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setInt(2, limit);
@@ -812,7 +1283,7 @@ public final class ContextStore {
                 WHERE guild_id = ? AND id = ?
                 LIMIT 1;
                 """;
-        try (Connection connection = database.getConnection();
+        try (Connection connection = database.getReadConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
             statement.setLong(1, guildId);
             statement.setLong(2, recordingId);
@@ -834,6 +1305,63 @@ public final class ContextStore {
         return Optional.empty();
     }
 
+    private static String buildMatchQuery(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String term : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (!match.isEmpty()) {
+                match.append(' ');
+            }
+            match.append('"').append(term).append("\"*");
+        }
+        return match.toString();
+    }
+
+    private <T> T writeAndWait(String failureMessage, Database.SqlWork<T> work) {
+        return writeAndWait(failureMessage, work, null);
+    }
+
+    private <T> T writeAndWait(String failureMessage, Database.SqlWork<T> work, Consumer<? super T> afterCommit) {
+        try {
+            return database.write(work, afterCommit).join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException(failureMessage, e.getCause());
+        }
+    }
+
+    private CompletableFuture<Void> write(String failureMessage, Database.SqlWork<?> work) {
+        return write(failureMessage, work, null);
+    }
+
+    private <T> CompletableFuture<Void> write(
+            String failureMessage,
+            Database.SqlWork<T> work,
+            Consumer<? super T> afterCommit
+    ) {
+        return database.write(work, afterCommit).<Void>handle((ignored, error) -> {
+            if (error != null) {
+                throw new IllegalStateException(failureMessage, error);
+            }
+            return null;
+        });
+    }
+
+    private String joinKnowledgeScores(List<Double> scores) {
+        if (scores == null || scores.isEmpty()) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Double score : scores) {
+            if (!builder.isEmpty()) {
+                builder.append(',');
+            }
+            builder.append(score == null ? "" : String.format(Locale.ROOT, "%.2f", score));
+        }
+        return builder.toString();
+    }
+
     private String joinKnowledgeIds(List<Long> ids) {
         if (ids == null || ids.isEmpty()) {
             return "";
@@ -856,11 +1384,29 @@ public final class ContextStore {
             boolean usedUserContext,
             int historyCount,
             String knowledgeIds,
+            String knowledgeScores,
             String knowledgePreview,
             String promptExcerpt,
             String responseExcerpt,
             long latencyMs,
-            long createdAt
+            long createdAt,
+            PromptTokens tokens
+    ) {
+    }
+
+    /**
+     * Tokens des Prompts nach Teil, jeweils mit dem Rahmen der Chat-Nachrichten; {@code total} enthält zusätzlich
+     * die Einleitung der Antwort.
+     */
+    public record PromptTokens(
+            int budget,
+            int total,
+            int system,
+            int user,
+            int knowledge,
+            int userContext,
+            int summary,
+            int history
     ) {
     }
 
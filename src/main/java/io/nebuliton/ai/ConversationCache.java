@@ -0,0 +1,453 @@
+package io.nebuliton.ai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Die letzten Nachrichten jeder Konversation als Ringpuffer im Speicher.
+ *
+ * Der Puffer ist die Quelle für den Prompt; {@code conversation_messages} wird nur noch nachgezogen. Ein
+ * Puffer wird beim ersten Zugriff aus der Datenbank geladen. Neue Nachrichten sammeln sich als pending und
+ * werden periodisch pro User in einer Schreiboperation eingefügt und gekürzt. Übersteigen alle Puffer
+ * zusammen das Speicherlimit, fliegen die am längsten ungenutzten raus, vorher wird ihr Rest geschrieben.
+ *
+ * Mit einem {@link Summarizer} wird ein voller Puffer verdichtet: die ältesten Nachrichten bis auf
+ * {@code keepMessages} gehen samt bisheriger Zusammenfassung in eine neue Zusammenfassung, danach fliegen sie aus
+ * Puffer und Tabelle. Schlägt das fehl, bleibt der Ringpuffer die harte Grenze; der nächste Versuch wartet eine mit
+ * jedem Fehlschlag wachsende Pause ab.
+ */
+final class ConversationCache implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ConversationCache.class);
+    private static final int BUFFER_OVERHEAD_BYTES = 128;
+    private static final int MESSAGE_OVERHEAD_BYTES = 64;
+    private static final long SUMMARY_RETRY_BASE_MILLIS = 30_000L;
+    private static final long SUMMARY_RETRY_MAX_MILLIS = 600_000L;
+
+    private final ContextStore contextStore;
+    private final int capacity;
+    private final long maxBytes;
+    private final Summarizer summarizer;
+    private final int keepMessages;
+    private final Map<Key, Buffer> buffers = new LinkedHashMap<>(256, 0.75f, true);
+    /** Letzter Flush verdrängter Puffer pro User, geschützt über {@code buffers} */
+    private final Map<Key, CompletableFuture<Void>> evictions = new HashMap<>();
+    private final Queue<Buffer> dirty = new ConcurrentLinkedQueue<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final ScheduledExecutorService flusher;
+
+    ConversationCache(ContextStore contextStore, int capacity, long maxBytes, long flushIntervalMillis) {
+        this(contextStore, capacity, maxBytes, flushIntervalMillis, null, 0);
+    }
+
+    /**
+     * {@code summarizer} darf {@code null} sein, dann gehen ältere Nachrichten wie bisher einfach verloren.
+     */
+    ConversationCache(
+            ContextStore contextStore,
+            int capacity,
+            long maxBytes,
+            long flushIntervalMillis,
+            Summarizer summarizer,
+            int keepMessages
+    ) {
+        this.contextStore = contextStore;
+        this.capacity = Math.max(1, capacity);
+        this.maxBytes = maxBytes;
+        this.summarizer = summarizer;
+        this.keepMessages = Math.max(0, Math.min(keepMessages, this.capacity - 1));
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "conversation-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(50L, flushIntervalMillis);
+        flusher.scheduleWithFixedDelay(this::flushDirty, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Zusammenfassung (oder {@code null}) und die letzten Nachrichten, älteste zuerst.
+     */
+    History history(long guildId, long userId) {
+        while (true) {
+            Buffer buffer = buffer(guildId, userId);
+            synchronized (buffer) {
+                if (!buffer.evicted) {
+                    return new History(buffer.summary, buffer.snapshot());
+                }
+            }
+        }
+    }
+
+    void append(long guildId, long userId, List<ContextStore.ConversationMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        while (true) {
+            Buffer buffer = buffer(guildId, userId);
+            synchronized (buffer) {
+                if (buffer.evicted) {
+                    continue;
+                }
+                long before = buffer.bytes;
+                for (ContextStore.ConversationMessage message : messages) {
+                    buffer.add(message);
+                    buffer.pending.add(message);
+                }
+                totalBytes.addAndGet(buffer.bytes - before);
+                if (!buffer.queued) {
+                    buffer.queued = true;
+                    dirty.add(buffer);
+                }
+                compactIfNeeded(buffer);
+            }
+            evictIfNeeded(buffer);
+            return;
+        }
+    }
+
+    /**
+     * Startet die Verdichtung, sobald der Puffer voll ist. Muss unter dem Puffer-Lock laufen; das Ergebnis wird
+     * nur übernommen, wenn der Puffer inzwischen weder geleert noch verdrängt wurde.
+     */
+    private void compactIfNeeded(Buffer buffer) {
+        if (summarizer == null || buffer.compacting || buffer.size < capacity) {
+            return;
+        }
+        if (buffer.summaryFailures > 0 && System.currentTimeMillis() < buffer.summaryRetryAt) {
+            return;
+        }
+        List<ContextStore.ConversationMessage> batch = buffer.snapshot().subList(0, buffer.size - keepMessages);
+        if (batch.isEmpty()) {
+            return;
+        }
+        buffer.compacting = true;
+        long generation = buffer.generation;
+        Key key = buffer.key;
+        CompletableFuture<String> summary;
+        try {
+            summary = summarizer.summarize(key.guildId(), key.userId(), buffer.summary, List.copyOf(batch));
+        } catch (Exception e) {
+            summary = CompletableFuture.failedFuture(e);
+        }
+        summary.whenComplete((text, error) -> {
+            synchronized (buffer) {
+                buffer.compacting = false;
+                if (error != null || text == null || text.isBlank()) {
+                    buffer.summaryFailed();
+                    if (error != null && AIManager.isOverload(error)) {
+                        LOG.debug("Konversation von User {} in Guild {} nicht verdichtet, zu viel los",
+                                key.userId(), key.guildId());
+                    } else if (error != null) {
+                        LOG.warn("Konversation von User {} in Guild {} konnte nicht verdichtet werden: {}",
+                                key.userId(), key.guildId(), error.getMessage());
+                    }
+                    return;
+                }
+                buffer.summaryFailures = 0;
+                if (buffer.evicted || buffer.generation != generation) {
+                    return;
+                }
+                long before = buffer.bytes;
+                buffer.compact(batch, text.trim());
+                totalBytes.addAndGet(buffer.bytes - before);
+                long coveredUntil = batch.get(batch.size() - 1).createdAt();
+                // Neuer als die letzte verdichtete Nachricht sind in der Tabelle nur die schon geschriebenen Behaltenen
+                int keptRows = Math.max(0, buffer.size - buffer.pending.size());
+                contextStore.saveConversationSummary(key.guildId(), key.userId(), buffer.summary, coveredUntil, keptRows)
+                        .exceptionally(failure -> {
+                            LOG.warn("Zusammenfassung von User {} in Guild {} konnte nicht gespeichert werden: {}",
+                                    key.userId(), key.guildId(), failure.getMessage());
+                            return null;
+                        });
+            }
+        });
+    }
+
+    /**
+     * Leert Puffer und Tabelle. Läuft unter dem Puffer-Lock, damit kein älterer Flush danach noch einfügt.
+     */
+    void clear(long guildId, long userId) {
+        Buffer buffer;
+        synchronized (buffers) {
+            buffer = buffers.get(new Key(guildId, userId));
+        }
+        if (buffer == null) {
+            contextStore.clearConversation(guildId, userId);
+            return;
+        }
+        synchronized (buffer) {
+            long before = buffer.bytes;
+            buffer.reset();
+            totalBytes.addAndGet(buffer.bytes - before);
+            contextStore.clearConversation(guildId, userId);
+        }
+    }
+
+    long memoryBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Schreibt alles Ausstehende und wartet darauf, z.B. beim Herunterfahren.
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        Buffer buffer;
+        while ((buffer = dirty.poll()) != null) {
+            synchronized (buffer) {
+                writes.add(flushLocked(buffer));
+            }
+        }
+        for (CompletableFuture<Void> write : writes) {
+            try {
+                write.join();
+            } catch (Exception e) {
+                LOG.warn("Konversation konnte beim Beenden nicht gespeichert werden: {}", e.getMessage());
+            }
+        }
+    }
+
+    private Buffer buffer(long guildId, long userId) {
+        Key key = new Key(guildId, userId);
+        Buffer buffer;
+        CompletableFuture<Void> eviction;
+        synchronized (buffers) {
+            buffer = buffers.computeIfAbsent(key, ignored -> {
+                totalBytes.addAndGet(BUFFER_OVERHEAD_BYTES);
+                return new Buffer(key, capacity);
+            });
+            eviction = evictions.get(key);
+        }
+        synchronized (buffer) {
+            if (!buffer.loaded && !buffer.evicted) {
+                if (eviction != null) {
+                    // Der Rest eines verdrängten Puffers muss committed sein, bevor aus der Tabelle geladen wird
+                    eviction.join();
+                }
+                long before = buffer.bytes;
+                // Lokal gepufferte Nachrichten gibt es vor dem Laden nicht, die Tabelle ist vollständig
+                for (ContextStore.ConversationMessage message : contextStore.listConversationMessages(guildId, userId, capacity)) {
+                    buffer.add(message);
+                }
+                if (summarizer != null) {
+                    contextStore.getConversationSummary(guildId, userId)
+                            .ifPresent(summary -> buffer.setSummary(summary.summary()));
+                }
+                buffer.loaded = true;
+                totalBytes.addAndGet(buffer.bytes - before);
+            }
+        }
+        evictIfNeeded(buffer);
+        return buffer;
+    }
+
+    private void flushDirty() {
+        Buffer buffer;
+        while ((buffer = dirty.poll()) != null) {
+            synchronized (buffer) {
+                flushLocked(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reicht die pending-Nachrichten als eine Schreiboperation ein. Muss unter dem Puffer-Lock laufen, damit
+     * die Reihenfolge gegenüber {@link #clear} stimmt; gewartet wird hier nicht.
+     */
+    private CompletableFuture<Void> flushLocked(Buffer buffer) {
+        buffer.queued = false;
+        if (buffer.pending.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<ContextStore.ConversationMessage> messages = List.copyOf(buffer.pending);
+        buffer.pending.clear();
+        Key key = buffer.key;
+        try {
+            return contextStore.appendConversationMessages(key.guildId(), key.userId(), messages, capacity)
+                    .exceptionally(error -> {
+                        LOG.warn("Konversation von User {} in Guild {} konnte nicht gespeichert werden: {}",
+                                key.userId(), key.guildId(), error.getMessage());
+                        return null;
+                    });
+        } catch (Exception e) {
+            LOG.warn("Konversation von User {} in Guild {} konnte nicht gespeichert werden: {}",
+                    key.userId(), key.guildId(), e.getMessage());
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * {@code keep} ist der gerade benutzte Puffer und bleibt, auch wenn er allein über dem Limit liegt.
+     * Ein Opfer wird erst aus der Map genommen, wenn sein Flush eingereiht ist; bis dahin laufen Zugriffe
+     * darauf in die Schleife ihres Aufrufers. Gewartet wird hier nicht, sondern erst beim nächsten Laden.
+     */
+    private void evictIfNeeded(Buffer keep) {
+        if (maxBytes <= 0 || totalBytes.get() <= maxBytes) {
+            return;
+        }
+        // Etwas Luft schaffen, damit nicht jede weitere Nachricht erneut evicted
+        long target = maxBytes - maxBytes / 10;
+        List<Buffer> victims = new ArrayList<>();
+        synchronized (buffers) {
+            long remaining = totalBytes.get();
+            Iterator<Buffer> iterator = buffers.values().iterator();
+            while (remaining > target && iterator.hasNext()) {
+                Buffer buffer = iterator.next();
+                if (buffer == keep) {
+                    continue;
+                }
+                victims.add(buffer);
+                remaining -= buffer.bytes;
+            }
+        }
+        for (Buffer buffer : victims) {
+            CompletableFuture<Void> write;
+            synchronized (buffer) {
+                if (buffer.evicted) {
+                    continue;
+                }
+                write = flushLocked(buffer);
+                buffer.evicted = true;
+                totalBytes.addAndGet(-buffer.bytes);
+            }
+            synchronized (buffers) {
+                buffers.remove(buffer.key, buffer);
+                evictions.put(buffer.key, write);
+            }
+            write.whenComplete((ignored, error) -> {
+                synchronized (buffers) {
+                    evictions.remove(buffer.key, write);
+                }
+            });
+        }
+    }
+
+    /**
+     * Erzeugt aus der bisherigen Zusammenfassung (oder {@code null}) und den ältesten Nachrichten eine neue.
+     */
+    @FunctionalInterface
+    interface Summarizer {
+        CompletableFuture<String> summarize(
+                long guildId,
+                long userId,
+                String previousSummary,
+                List<ContextStore.ConversationMessage> messages
+        );
+    }
+
+    record History(String summary, List<ContextStore.ConversationMessage> messages) {
+    }
+
+    private record Key(long guildId, long userId) {
+    }
+
+    private static final class Buffer {
+        private final Key key;
+        private final ContextStore.ConversationMessage[] ring;
+        private final List<ContextStore.ConversationMessage> pending = new ArrayList<>();
+        private int head;
+        private int size;
+        private long bytes = BUFFER_OVERHEAD_BYTES;
+        private String summary;
+        private long generation;
+        private boolean loaded;
+        private boolean queued;
+        private boolean evicted;
+        private boolean compacting;
+        private int summaryFailures;
+        private long summaryRetryAt;
+
+        private Buffer(Key key, int capacity) {
+            this.key = key;
+            this.ring = new ContextStore.ConversationMessage[capacity];
+        }
+
+        private void add(ContextStore.ConversationMessage message) {
+            int slot = (head + size) % ring.length;
+            if (size == ring.length) {
+                bytes -= sizeOf(ring[head]);
+                head = (head + 1) % ring.length;
+            } else {
+                size++;
+            }
+            ring[slot] = message;
+            bytes += sizeOf(message);
+        }
+
+        private void summaryFailed() {
+            summaryFailures++;
+            long delay = SUMMARY_RETRY_BASE_MILLIS << Math.min(summaryFailures - 1, 5);
+            summaryRetryAt = System.currentTimeMillis() + Math.min(delay, SUMMARY_RETRY_MAX_MILLIS);
+        }
+
+        private void setSummary(String text) {
+            bytes += sizeOf(text) - sizeOf(summary);
+            summary = text;
+        }
+
+        /**
+         * Ersetzt die zusammengefassten Nachrichten durch die Zusammenfassung. Was der Ring inzwischen schon
+         * überschrieben hat, fehlt einfach; noch nicht geschriebene Nachrichten landen gar nicht mehr in der Tabelle.
+         */
+        private void compact(List<ContextStore.ConversationMessage> batch, String text) {
+            Set<ContextStore.ConversationMessage> covered = Collections.newSetFromMap(new IdentityHashMap<>());
+            covered.addAll(batch);
+            while (size > 0 && covered.contains(ring[head])) {
+                bytes -= sizeOf(ring[head]);
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+            }
+            pending.removeIf(covered::contains);
+            setSummary(text);
+        }
+
+        private List<ContextStore.ConversationMessage> snapshot() {
+            List<ContextStore.ConversationMessage> messages = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                messages.add(ring[(head + i) % ring.length]);
+            }
+            return messages;
+        }
+
+        private void reset() {
+            Arrays.fill(ring, null);
+            pending.clear();
+            head = 0;
+            size = 0;
+            bytes = BUFFER_OVERHEAD_BYTES;
+            summary = null;
+            generation++;
+            loaded = true;
+        }
+
+        private static long sizeOf(ContextStore.ConversationMessage message) {
+            String content = message.content();
+            return MESSAGE_OVERHEAD_BYTES + (content == null ? 0 : content.length() * 2L);
+        }
+
+        private static long sizeOf(String text) {
+            return text == null ? 0 : text.length() * 2L;
+        }
+    }
+}
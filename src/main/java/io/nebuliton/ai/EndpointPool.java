@@ -0,0 +1,293 @@
+package io.nebuliton.ai;
+
+import io.nebuliton.config.Config;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Die OpenAI-kompatiblen Backends, auf die der Client seine Requests verteilt.
+ *
+ * Jeder Request geht an das Backend mit den wenigsten offenen Requests pro Gewicht. Jedes Backend hat einen
+ * eigenen {@link CircuitBreaker}: nach zu vielen Fehlern in Folge fliegt es aus der Verteilung und bekommt nach
+ * der Pause einen einzelnen Request als Probe, der es bei Erfolg wieder aufnimmt.
+ */
+final class EndpointPool {
+    private final List<Endpoint> endpoints;
+    private final AtomicLong unavailable = new AtomicLong();
+
+    EndpointPool(Config.OpenAI config) {
+        long openMillis = TimeUnit.SECONDS.toMillis(config.circuitOpenSeconds);
+        List<Endpoint> list = new ArrayList<>();
+        if (config.endpoints == null || config.endpoints.isEmpty()) {
+            list.add(new Endpoint(
+                    hostOf(config.baseUrl),
+                    config.baseUrl,
+                    config.apiKey,
+                    null,
+                    1,
+                    0,
+                    true,
+                    new CircuitBreaker(config.circuitFailureThreshold, openMillis)
+            ));
+        } else {
+            for (Config.Endpoint endpoint : config.endpoints) {
+                list.add(new Endpoint(
+                        isBlank(endpoint.name) ? hostOf(endpoint.baseUrl) : endpoint.name,
+                        endpoint.baseUrl,
+                        isBlank(endpoint.apiKey) ? config.apiKey : endpoint.apiKey,
+                        isBlank(endpoint.model) ? null : endpoint.model,
+                        Math.max(1, endpoint.weight),
+                        Math.max(0, endpoint.maxInFlight),
+                        endpoint.embeddings,
+                        new CircuitBreaker(config.circuitFailureThreshold, openMillis)
+                ));
+            }
+        }
+        this.endpoints = List.copyOf(list);
+    }
+
+    /**
+     * Belegt das am wenigsten ausgelastete Backend, das gerade Requests annimmt, oder liefert {@code null}.
+     * {@code avoid} kommt nur dran, wenn sonst keins frei ist. Das Ergebnis muss mit {@link Lease#finish}
+     * oder {@link Lease#release} wieder freigegeben werden.
+     */
+    Lease select(Endpoint avoid, boolean embeddings) {
+        int size = endpoints.size();
+        double[] load = new double[size];
+        // Zufälliger Start, damit gleich ausgelastete Backends abwechselnd drankommen
+        int offset = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            Endpoint endpoint = endpoints.get((offset + i) % size);
+            if (embeddings && !endpoint.embeddings) {
+                load[i] = Double.NaN;
+            } else {
+                load[i] = (endpoint.inFlight.get() + 1) / (double) endpoint.weight + (endpoint == avoid ? size : 0);
+            }
+        }
+        for (int round = 0; round < size; round++) {
+            int best = -1;
+            for (int i = 0; i < size; i++) {
+                if (!Double.isNaN(load[i]) && (best < 0 || load[i] < load[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            load[best] = Double.NaN;
+            Endpoint endpoint = endpoints.get((offset + best) % size);
+            CircuitBreaker.Permit permit = endpoint.tryAcquire();
+            if (permit != null) {
+                return new Lease(endpoint, permit);
+            }
+        }
+        return null;
+    }
+
+    boolean anyAccepting() {
+        return hasAlternative(null);
+    }
+
+    /**
+     * {@code true}, wenn außer {@code endpoint} noch ein Backend Requests annimmt.
+     */
+    boolean hasAlternative(Endpoint endpoint) {
+        for (Endpoint candidate : endpoints) {
+            if (candidate != endpoint && candidate.accepting()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Der Fehler, wenn {@link #select} nichts gefunden hat: offene Breaker überall oder alle Backends am Limit.
+     */
+    OpenAIException unavailableError(boolean embeddings) {
+        unavailable.incrementAndGet();
+        long remaining = Long.MAX_VALUE;
+        for (Endpoint endpoint : endpoints) {
+            if (embeddings && !endpoint.embeddings) {
+                continue;
+            }
+            if (endpoint.breaker.allowsRequests()) {
+                return new OpenAIException(
+                        OpenAIException.Kind.THROTTLED,
+                        0,
+                        -1L,
+                        "All OpenAI endpoints are at their in-flight limit",
+                        null
+                );
+            }
+            remaining = Math.min(remaining, endpoint.breaker.remainingOpenMillis());
+        }
+        return OpenAIException.circuitOpen(remaining == Long.MAX_VALUE ? 0L : remaining);
+    }
+
+    long unavailableCount() {
+        return unavailable.get();
+    }
+
+    List<OpenAIClient.EndpointStats> stats() {
+        List<OpenAIClient.EndpointStats> stats = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            stats.add(endpoint.stats());
+        }
+        return stats;
+    }
+
+    private static String hostOf(String baseUrl) {
+        try {
+            String host = URI.create(baseUrl).getHost();
+            return host == null ? baseUrl : host;
+        } catch (IllegalArgumentException e) {
+            return baseUrl;
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    static final class Endpoint {
+        private final String name;
+        private final String baseUrl;
+        private final String apiKey;
+        private final String model;
+        private final int weight;
+        private final int maxInFlight;
+        private final boolean embeddings;
+        private final CircuitBreaker breaker;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong successes = new AtomicLong();
+        private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+        private Endpoint(
+                String name,
+                String baseUrl,
+                String apiKey,
+                String model,
+                int weight,
+                int maxInFlight,
+                boolean embeddings,
+                CircuitBreaker breaker
+        ) {
+            this.name = name;
+            this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+            this.apiKey = apiKey;
+            this.model = model;
+            this.weight = weight;
+            this.maxInFlight = maxInFlight;
+            this.embeddings = embeddings;
+            this.breaker = breaker;
+        }
+
+        String name() {
+            return name;
+        }
+
+        String apiKey() {
+            return apiKey;
+        }
+
+        URI uri(String path) {
+            return URI.create(baseUrl + path);
+        }
+
+        /**
+         * Das eigene Modell des Backends, sonst das angefragte.
+         */
+        String model(String requested) {
+            return model == null ? requested : model;
+        }
+
+        private void finish(OpenAIException failure, long startedAt, CircuitBreaker.Permit permit) {
+            inFlight.decrementAndGet();
+            requests.incrementAndGet();
+            if (failure == null) {
+                successes.incrementAndGet();
+                totalLatencyNanos.addAndGet(System.nanoTime() - startedAt);
+                breaker.onSuccess(permit);
+                return;
+            }
+            errors.incrementAndGet();
+            if (failure.kind().providerFailure()) {
+                breaker.onFailure(permit);
+            } else {
+                breaker.onSuccess(permit);
+            }
+        }
+
+        private void release(CircuitBreaker.Permit permit) {
+            inFlight.decrementAndGet();
+            breaker.release(permit);
+        }
+
+        private CircuitBreaker.Permit tryAcquire() {
+            while (true) {
+                int current = inFlight.get();
+                if (maxInFlight > 0 && current >= maxInFlight) {
+                    return null;
+                }
+                if (inFlight.compareAndSet(current, current + 1)) {
+                    break;
+                }
+            }
+            CircuitBreaker.Permit permit = breaker.allowsRequests() ? breaker.tryAcquire() : null;
+            if (permit == null) {
+                inFlight.decrementAndGet();
+            }
+            return permit;
+        }
+
+        private boolean accepting() {
+            return (maxInFlight <= 0 || inFlight.get() < maxInFlight) && breaker.allowsRequests();
+        }
+
+        private OpenAIClient.EndpointStats stats() {
+            long ok = successes.get();
+            return new OpenAIClient.EndpointStats(
+                    name,
+                    breaker.state().name(),
+                    breaker.remainingOpenMillis(),
+                    breaker.consecutiveFailures(),
+                    breaker.openings(),
+                    weight,
+                    inFlight.get(),
+                    maxInFlight,
+                    requests.get(),
+                    errors.get(),
+                    ok <= 0 ? 0L : TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos.get() / ok)
+            );
+        }
+    }
+
+    /**
+     * Ein belegtes Backend samt der Erlaubnis seines Breakers; wird genau einmal abgeschlossen.
+     */
+    record Lease(Endpoint endpoint, CircuitBreaker.Permit permit) {
+        /**
+         * Verbucht das Ergebnis; {@code failure == null} heißt Erfolg. Fehler, die nichts über die Erreichbarkeit
+         * sagen, zählen für den Breaker als Erfolg.
+         */
+        void finish(OpenAIException failure, long startedAt) {
+            endpoint.finish(failure, startedAt, permit);
+        }
+
+        /**
+         * Ohne Urteil über das Backend, z.B. wenn der Request unterbrochen wurde.
+         */
+        void release() {
+            endpoint.release(permit);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package io.nebuliton.ai;
+
+import java.util.Arrays;
+
+/**
+ * Blacklist und Privacy-Einstellungen im Speicher, damit der Mention-Pfad ohne SQLite auskommt.
+ *
+ * Beide Tabellen sind Open-Addressing-Hashtabellen über {@code (guildId, userId)} mit primitiven Arrays.
+ * Lesen ist lock-frei; jede Änderung baut eine neue Tabelle und tauscht sie per volatile-Referenz aus.
+ * Das lohnt sich, weil geschrieben nur über Admin- und Privacy-Befehle wird.
+ */
+final class GateCache {
+    private static final long PRESENT = 1L << 2;
+    private static final long ALLOW_STORAGE = 1L;
+    private static final long ALLOW_RECORDING = 1L << 1;
+
+    private volatile Table blacklist = Table.EMPTY;
+    private volatile Table privacy = Table.EMPTY;
+
+    boolean isBlacklisted(long guildId, long userId) {
+        return blacklist.get(guildId, userId) != 0L;
+    }
+
+    boolean isStorageAllowed(long guildId, long userId) {
+        long value = privacy.get(guildId, userId);
+        return value == 0L || (value & ALLOW_STORAGE) != 0L;
+    }
+
+    ContextStore.PrivacySettings privacy(long guildId, long userId) {
+        long value = privacy.get(guildId, userId);
+        if (value == 0L) {
+            return new ContextStore.PrivacySettings(true, true, 0L);
+        }
+        return new ContextStore.PrivacySettings(
+                (value & ALLOW_STORAGE) != 0L,
+                (value & ALLOW_RECORDING) != 0L,
+                value >>> 3
+        );
+    }
+
+    synchronized void setBlacklisted(long guildId, long userId, boolean blacklisted) {
+        blacklist = blacklisted ? blacklist.with(guildId, userId, PRESENT) : blacklist.without(guildId, userId);
+    }
+
+    synchronized void setPrivacy(long guildId, long userId, boolean allowStorage, boolean allowRecording, long updatedAt) {
+        privacy = privacy.with(guildId, userId, encode(allowStorage, allowRecording, updatedAt));
+    }
+
+    /**
+     * Ersetzt beide Tabellen auf einmal, z.B. nach dem Laden beim Start.
+     */
+    synchronized void replace(Builder blacklistRows, Builder privacyRows) {
+        blacklist = blacklistRows.build();
+        privacy = privacyRows.build();
+    }
+
+    int blacklistSize() {
+        return blacklist.size;
+    }
+
+    int privacySize() {
+        return privacy.size;
+    }
+
+    static long encode(boolean allowStorage, boolean allowRecording, long updatedAt) {
+        return (updatedAt << 3) | PRESENT | (allowStorage ? ALLOW_STORAGE : 0L) | (allowRecording ? ALLOW_RECORDING : 0L);
+    }
+
+    static final class Builder {
+        private long[] keys = new long[32];
+        private long[] values = new long[16];
+        private int size;
+
+        void blacklisted(long guildId, long userId) {
+            add(guildId, userId, PRESENT);
+        }
+
+        void privacy(long guildId, long userId, boolean allowStorage, boolean allowRecording, long updatedAt) {
+            add(guildId, userId, encode(allowStorage, allowRecording, updatedAt));
+        }
+
+        private void add(long guildId, long userId, long value) {
+            if (size == values.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            keys[size * 2] = guildId;
+            keys[size * 2 + 1] = userId;
+            values[size] = value;
+            size++;
+        }
+
+        private Table build() {
+            Table table = new Table(Table.capacityFor(size));
+            for (int i = 0; i < size; i++) {
+                table.put(keys[i * 2], keys[i * 2 + 1], values[i]);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Nach dem Aufbau unveränderlich. Ein Wert von 0 markiert einen freien Slot.
+     */
+    private static final class Table {
+        private static final Table EMPTY = new Table(2);
+
+        private final long[] keys;
+        private final long[] values;
+        private final int mask;
+        private int size;
+
+        private Table(int capacity) {
+            this.keys = new long[capacity * 2];
+            this.values = new long[capacity];
+            this.mask = capacity - 1;
+        }
+
+        private static int capacityFor(int entries) {
+            // Höchstens halb voll, damit die Sondierungsketten kurz bleiben
+            return Math.max(2, Integer.highestOneBit(Math.max(1, entries) * 2 - 1) << 1);
+        }
+
+        private long get(long guildId, long userId) {
+            for (int slot = slot(guildId, userId); ; slot = (slot + 1) & mask) {
+                long value = values[slot];
+                if (value == 0L || (keys[slot * 2] == guildId && keys[slot * 2 + 1] == userId)) {
+                    return value;
+                }
+            }
+        }
+
+        private Table with(long guildId, long userId, long value) {
+            Table copy = new Table(capacityFor(size + 1));
+            copyInto(copy, guildId, userId);
+            copy.put(guildId, userId, value);
+            return copy;
+        }
+
+        private Table without(long guildId, long userId) {
+            if (get(guildId, userId) == 0L) {
+                return this;
+            }
+            Table copy = new Table(capacityFor(size - 1));
+            copyInto(copy, guildId, userId);
+            return copy;
+        }
+
+        private void copyInto(Table target, long skipGuildId, long skipUserId) {
+            for (int slot = 0; slot < values.length; slot++) {
+                if (values[slot] == 0L) {
+                    continue;
+                }
+                long guildId = keys[slot * 2];
+                long userId = keys[slot * 2 + 1];
+                if (guildId != skipGuildId || userId != skipUserId) {
+                    target.put(guildId, userId, values[slot]);
+                }
+            }
+        }
+
+        private void put(long guildId, long userId, long value) {
+            int slot = slot(guildId, userId);
+            while (values[slot] != 0L) {
+                if (keys[slot * 2] == guildId && keys[slot * 2 + 1] == userId) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot * 2] = guildId;
+            keys[slot * 2 + 1] = userId;
+            values[slot] = value;
+            size++;
+        }
+
+        private int slot(long guildId, long userId) {
+            long hash = guildId * 0x9E3779B97F4A7C15L + userId;
+            hash ^= hash >>> 33;
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash ^= hash >>> 33;
+            return (int) hash & mask;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.nebuliton.ai;
+
+import io.nebuliton.config.Config;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Entscheidet, wann ein zweiter, gleicher Request hinterhergeschickt wird.
+ *
+ * Gemessen wird die Zeit bis zur Antwort, bei Streams bis zum ersten Textstück. Braucht ein Request länger als
+ * das konfigurierte Perzentil der letzten Messungen, darf ein Hedge los, solange das Budget reicht: jeder
+ * Request bringt {@code hedgeBudgetPercent / 100} Guthaben, ein Hedge kostet eins.
+ */
+final class HedgePolicy {
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RESORT_EVERY = 16;
+    /** Nach einer ruhigen Phase nicht beliebig viele Hedges auf einmal */
+    private static final double MAX_CREDIT = 10.0;
+
+    private final boolean enabled;
+    private final double percentile;
+    private final double creditPerRequest;
+    private final LatencyWindow completions = new LatencyWindow();
+    private final LatencyWindow firstTokens = new LatencyWindow();
+
+    private double credit;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong wins = new AtomicLong();
+    private final AtomicLong denied = new AtomicLong();
+
+    HedgePolicy(Config.OpenAI config) {
+        this.enabled = config.hedgeRequests;
+        this.percentile = Math.max(50, Math.min(99, config.hedgePercentile));
+        this.creditPerRequest = Math.max(0, config.hedgeBudgetPercent) / 100.0;
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Wartezeit bis zum Hedge oder {@code -1}, solange es zu wenige Messungen gibt.
+     */
+    long delayMillis(boolean stream) {
+        long nanos = (stream ? firstTokens : completions).percentile(percentile);
+        return nanos < 0 ? -1L : Math.max(1L, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    void onRequest() {
+        requests.incrementAndGet();
+        synchronized (this) {
+            credit = Math.min(MAX_CREDIT, credit + creditPerRequest);
+        }
+    }
+
+    boolean tryHedge() {
+        synchronized (this) {
+            if (credit < 1.0) {
+                denied.incrementAndGet();
+                return false;
+            }
+            credit -= 1.0;
+        }
+        hedged.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Die Latenz vom Start des Aufrufs bis zur Antwort, die gewonnen hat; {@code hedge} heißt, der Hedge war
+     * schneller.
+     */
+    void onResponse(boolean stream, long nanos, boolean hedge) {
+        (stream ? firstTokens : completions).add(nanos);
+        if (hedge) {
+            wins.incrementAndGet();
+        }
+    }
+
+    OpenAIClient.HedgeStats stats() {
+        return new OpenAIClient.HedgeStats(
+                enabled,
+                delayMillis(false),
+                delayMillis(true),
+                requests.get(),
+                hedged.get(),
+                wins.get(),
+                denied.get()
+        );
+    }
+
+    /**
+     * Die letzten {@link #WINDOW} Messungen; sortiert wird nur alle {@link #RESORT_EVERY} neuen Werte.
+     */
+    private static final class LatencyWindow {
+        private final long[] samples = new long[WINDOW];
+        private long[] sorted = new long[0];
+        private int next;
+        private int count;
+        private int sinceSort;
+
+        synchronized void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % WINDOW;
+            count = Math.min(WINDOW, count + 1);
+            sinceSort++;
+        }
+
+        synchronized long percentile(double percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1L;
+            }
+            if (sinceSort >= RESORT_EVERY || sorted.length != count) {
+                sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                sinceSort = 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package io.nebuliton.ai;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * HNSW-Graph für Kosinus-Ähnlichkeit auf normierten float16-Vektoren.
+ *
+ * Vektoren, Eintrags-IDs und die Nachbarlisten der Ebene 0 liegen in Direct-Buffern außerhalb des
+ * Heaps. Auf dem Heap bleiben nur die dünn besetzten oberen Ebenen und die ID-Zuordnung.
+ * Nicht thread-safe: Aufrufer synchronisieren Lesen und Schreiben.
+ */
+final class HnswGraph {
+    private static final int M = 16;
+    private static final int M0 = 2 * M;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final double LEVEL_FACTOR = 1.0 / Math.log(M);
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+    static {
+        for (int i = 0; i < HALF_TO_FLOAT.length; i++) {
+            HALF_TO_FLOAT[i] = Float.float16ToFloat((short) i);
+        }
+    }
+
+    private final int dimensions;
+    private ByteBuffer vectors;
+    private ShortBuffer halves;
+    private ByteBuffer entryIds;
+    private ByteBuffer layer0;
+    private int capacity;
+    private int size;
+
+    private final Map<Integer, int[][]> upperLayers = new HashMap<>();
+    private final Map<Long, Integer> nodesById = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    HnswGraph(int dimensions, int initialCapacity) {
+        this.dimensions = dimensions;
+        allocate(Math.max(16, initialCapacity));
+    }
+
+    int dimensions() {
+        return dimensions;
+    }
+
+    int size() {
+        return nodesById.size();
+    }
+
+    boolean contains(long entryId) {
+        return nodesById.containsKey(entryId);
+    }
+
+    /**
+     * Fügt einen float16-kodierten Vektor ein (siehe {@link #encode(float[])}).
+     */
+    void add(long entryId, byte[] encoded) {
+        if (encoded.length != dimensions * Short.BYTES || nodesById.containsKey(entryId)) {
+            return;
+        }
+        if (size == capacity) {
+            allocate(capacity * 2);
+        }
+        int node = size++;
+        vectors.put(node * dimensions * Short.BYTES, encoded);
+        entryIds.putLong(node * Long.BYTES, entryId);
+        layer0.putInt(node * (M0 + 1) * Integer.BYTES, 0);
+        nodesById.put(entryId, node);
+
+        int level = randomLevel();
+        if (level > 0) {
+            int[][] layers = new int[level][];
+            for (int i = 0; i < level; i++) {
+                layers[i] = new int[]{0};
+            }
+            upperLayers.put(node, layers);
+        }
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        float[] query = decode(node);
+        int current = entryPoint;
+        for (int layer = maxLevel; layer > level; layer--) {
+            current = greedy(query, current, layer);
+        }
+        for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+            List<Candidate> candidates = searchLayer(query, current, EF_CONSTRUCTION, layer);
+            for (Candidate neighbor : selectNeighbors(candidates, M)) {
+                link(node, neighbor.node, layer);
+                link(neighbor.node, node, layer);
+            }
+            current = candidates.getFirst().node;
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Markiert den Eintrag als gelöscht. Der Knoten bleibt für die Navigation im Graph erhalten.
+     */
+    void remove(long entryId) {
+        Integer node = nodesById.remove(entryId);
+        if (node != null) {
+            deleted.set(node);
+        }
+    }
+
+    int deletedCount() {
+        return deleted.cardinality();
+    }
+
+    /**
+     * Die {@code limit} ähnlichsten Einträge mit Kosinus-Ähnlichkeit {@code >= minSimilarity}, bester zuerst.
+     */
+    List<Neighbor> search(float[] query, int limit, int ef, double minSimilarity) {
+        if (entryPoint < 0 || limit <= 0 || query.length != dimensions) {
+            return List.of();
+        }
+        float[] normalized = normalize(query.clone());
+        int current = entryPoint;
+        for (int layer = maxLevel; layer > 0; layer--) {
+            current = greedy(normalized, current, layer);
+        }
+        List<Neighbor> result = new ArrayList<>(limit);
+        for (Candidate candidate : searchLayer(normalized, current, Math.max(ef, limit), 0)) {
+            if (deleted.get(candidate.node)) {
+                continue;
+            }
+            double similarity = 1.0 - candidate.distance;
+            if (similarity < minSimilarity || result.size() == limit) {
+                break;
+            }
+            result.add(new Neighbor(entryIds.getLong(candidate.node * Long.BYTES), similarity));
+        }
+        return result;
+    }
+
+    static byte[] encode(float[] vector) {
+        float[] normalized = normalize(vector.clone());
+        ByteBuffer buffer = ByteBuffer.allocate(normalized.length * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (float value : normalized) {
+            buffer.putShort(Float.floatToFloat16(value));
+        }
+        return buffer.array();
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0.0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        if (norm > 0.0) {
+            float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= scale;
+            }
+        }
+        return vector;
+    }
+
+    private int greedy(float[] query, int start, int layer) {
+        int current = start;
+        float best = distance(query, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int scanned = current;
+            int count = neighborCount(scanned, layer);
+            for (int i = 0; i < count; i++) {
+                int neighbor = neighbor(scanned, layer, i);
+                float distance = distance(query, neighbor);
+                if (distance < best) {
+                    best = distance;
+                    current = neighbor;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Beam-Suche auf einer Ebene. Liefert bis zu {@code ef} Kandidaten, nächster zuerst.
+     */
+    private List<Candidate> searchLayer(float[] query, int start, int ef, int layer) {
+        BitSet visited = new BitSet(size);
+        PriorityQueue<Candidate> frontier = new PriorityQueue<>((a, b) -> Float.compare(a.distance, b.distance));
+        PriorityQueue<Candidate> nearest = new PriorityQueue<>((a, b) -> Float.compare(b.distance, a.distance));
+        Candidate first = new Candidate(start, distance(query, start));
+        visited.set(start);
+        frontier.add(first);
+        nearest.add(first);
+        while (!frontier.isEmpty()) {
+            Candidate closest = frontier.poll();
+            if (closest.distance > nearest.peek().distance && nearest.size() >= ef) {
+                break;
+            }
+            int count = neighborCount(closest.node, layer);
+            for (int i = 0; i < count; i++) {
+                int neighbor = neighbor(closest.node, layer, i);
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+                float distance = distance(query, neighbor);
+                if (nearest.size() < ef || distance < nearest.peek().distance) {
+                    Candidate candidate = new Candidate(neighbor, distance);
+                    frontier.add(candidate);
+                    nearest.add(candidate);
+                    if (nearest.size() > ef) {
+                        nearest.poll();
+                    }
+                }
+            }
+        }
+        List<Candidate> ordered = new ArrayList<>(nearest);
+        ordered.sort((a, b) -> Float.compare(a.distance, b.distance));
+        return ordered;
+    }
+
+    /**
+     * Verbindet {@code from -> to}. Ist die Liste voll, wird sie mit {@link #selectNeighbors} neu ausgedünnt.
+     */
+    private void link(int from, int to, int layer) {
+        int maxLinks = layer == 0 ? M0 : M;
+        int count = neighborCount(from, layer);
+        for (int i = 0; i < count; i++) {
+            if (neighbor(from, layer, i) == to) {
+                return;
+            }
+        }
+        if (count < maxLinks) {
+            setNeighbor(from, layer, count, to);
+            setNeighborCount(from, layer, count + 1);
+            return;
+        }
+        float[] origin = decode(from);
+        List<Candidate> candidates = new ArrayList<>(count + 1);
+        candidates.add(new Candidate(to, distance(origin, to)));
+        for (int i = 0; i < count; i++) {
+            int neighbor = neighbor(from, layer, i);
+            candidates.add(new Candidate(neighbor, distance(origin, neighbor)));
+        }
+        candidates.sort((a, b) -> Float.compare(a.distance, b.distance));
+        List<Candidate> kept = selectNeighbors(candidates, maxLinks);
+        for (int i = 0; i < kept.size(); i++) {
+            setNeighbor(from, layer, i, kept.get(i).node);
+        }
+        setNeighborCount(from, layer, kept.size());
+    }
+
+    /**
+     * Auswahl-Heuristik aus dem HNSW-Paper: ein Kandidat kommt nur dazu, wenn er näher an der Basis liegt
+     * als an allen bereits gewählten Nachbarn. So bleiben auch Ausreißer erreichbar, statt von dichten
+     * Clustern aus allen Nachbarlisten verdrängt zu werden. Freie Plätze werden danach mit den nächsten
+     * verworfenen Kandidaten aufgefüllt, sonst wird der Graph bei stark geclusterten Daten zu dünn.
+     * {@code candidates} ist nach Distanz sortiert.
+     */
+    private List<Candidate> selectNeighbors(List<Candidate> candidates, int maxLinks) {
+        List<Candidate> selected = new ArrayList<>(maxLinks);
+        List<Candidate> pruned = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (selected.size() == maxLinks) {
+                break;
+            }
+            float[] vector = decode(candidate.node);
+            boolean diverse = true;
+            for (Candidate chosen : selected) {
+                if (distance(vector, chosen.node) < candidate.distance) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected.add(candidate);
+            } else {
+                pruned.add(candidate);
+            }
+        }
+        for (int i = 0; i < pruned.size() && selected.size() < maxLinks; i++) {
+            selected.add(pruned.get(i));
+        }
+        return selected;
+    }
+
+    private int neighborCount(int node, int layer) {
+        if (layer == 0) {
+            return layer0.getInt(node * (M0 + 1) * Integer.BYTES);
+        }
+        int[][] layers = upperLayers.get(node);
+        return layers == null || layers.length < layer ? 0 : layers[layer - 1][0];
+    }
+
+    private void setNeighborCount(int node, int layer, int count) {
+        if (layer == 0) {
+            layer0.putInt(node * (M0 + 1) * Integer.BYTES, count);
+        } else {
+            upperLayers.get(node)[layer - 1][0] = count;
+        }
+    }
+
+    private int neighbor(int node, int layer, int index) {
+        if (layer == 0) {
+            return layer0.getInt((node * (M0 + 1) + 1 + index) * Integer.BYTES);
+        }
+        return upperLayers.get(node)[layer - 1][1 + index];
+    }
+
+    private void setNeighbor(int node, int layer, int index, int neighbor) {
+        if (layer == 0) {
+            layer0.putInt((node * (M0 + 1) + 1 + index) * Integer.BYTES, neighbor);
+            return;
+        }
+        int[][] layers = upperLayers.get(node);
+        int[] links = layers[layer - 1];
+        if (links.length <= 1 + index) {
+            links = Arrays.copyOf(links, M + 1);
+            layers[layer - 1] = links;
+        }
+        links[1 + index] = neighbor;
+    }
+
+    /**
+     * {@code 1 - cos}, der Vektor im Graph ist bereits normiert.
+     */
+    private float distance(float[] query, int node) {
+        ShortBuffer vector = halves;
+        int base = node * dimensions;
+        // Vier unabhängige Summen statt einer Abhängigkeitskette über alle Dimensionen
+        float dot0 = 0f;
+        float dot1 = 0f;
+        float dot2 = 0f;
+        float dot3 = 0f;
+        int i = 0;
+        for (; i + 3 < dimensions; i += 4) {
+            dot0 += query[i] * HALF_TO_FLOAT[vector.get(base + i) & 0xFFFF];
+            dot1 += query[i + 1] * HALF_TO_FLOAT[vector.get(base + i + 1) & 0xFFFF];
+            dot2 += query[i + 2] * HALF_TO_FLOAT[vector.get(base + i + 2) & 0xFFFF];
+            dot3 += query[i + 3] * HALF_TO_FLOAT[vector.get(base + i + 3) & 0xFFFF];
+        }
+        for (; i < dimensions; i++) {
+            dot0 += query[i] * HALF_TO_FLOAT[vector.get(base + i) & 0xFFFF];
+        }
+        return 1f - (dot0 + dot1 + dot2 + dot3);
+    }
+
+    private float[] decode(int node) {
+        int base = node * dimensions;
+        float[] vector = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            vector[i] = HALF_TO_FLOAT[halves.get(base + i) & 0xFFFF];
+        }
+        return vector;
+    }
+
+    private int randomLevel() {
+        double random = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return Math.min(Byte.MAX_VALUE, (int) (-Math.log(random) * LEVEL_FACTOR));
+    }
+
+    private void allocate(int newCapacity) {
+        ByteBuffer newVectors = ByteBuffer.allocateDirect(newCapacity * dimensions * Short.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer newIds = ByteBuffer.allocateDirect(newCapacity * Long.BYTES).order(ByteOrder.nativeOrder());
+        ByteBuffer newLayer0 = ByteBuffer.allocateDirect(newCapacity * (M0 + 1) * Integer.BYTES)
+                .order(ByteOrder.nativeOrder());
+        if (vectors != null) {
+            newVectors.put(0, vectors, 0, size * dimensions * Short.BYTES);
+            newIds.put(0, entryIds, 0, size * Long.BYTES);
+            newLayer0.put(0, layer0, 0, size * (M0 + 1) * Integer.BYTES);
+        }
+        vectors = newVectors;
+        halves = newVectors.asShortBuffer();
+        entryIds = newIds;
+        layer0 = newLayer0;
+        capacity = newCapacity;
+    }
+
+    record Neighbor(long entryId, double similarity) {
+    }
+
+    private record Candidate(int node, float distance) {
+    }
+}
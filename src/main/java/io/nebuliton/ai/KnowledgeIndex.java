@@ -0,0 +1,547 @@
+package io.nebuliton.ai;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Das Server-Wissen im Speicher: pro Guild eine unveränderliche Aufnahme mit den Einträgen, der Token-Zahl jeder
+ * Prompt-Zeile und einem invertierten BM25-Index darüber. Sie ist die einzige Kopie der Einträge auf dem Heap,
+ * BM25- und semantische Suche lösen ihre Treffer beide darüber auf.
+ *
+ * Eine Guild wird beim ersten Zugriff aus der Datenbank geladen. Danach werden Änderungen aus
+ * {@link ContextStore.KnowledgeListener} gesammelt, auf einem eigenen Thread in einem Durchgang auf die letzte
+ * Aufnahme angewendet (Copy-on-Write, unberührte Posting-Listen werden geteilt) und per volatile-Referenz
+ * veröffentlicht. Leser nehmen keine Locks und gehen für eine unveränderte Guild nie an die Datenbank. Gelöschte
+ * Einträge bleiben als Tombstones in den Posting-Listen, bis sich ein Neuaufbau lohnt. Guilds, die
+ * {@link #IDLE_MINUTES} Minuten niemand abgefragt hat, fliegen aus dem Speicher und werden bei Bedarf neu geladen.
+ */
+final class KnowledgeIndex implements ContextStore.KnowledgeListener {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int COMPACT_MIN_DEAD = 1024;
+    private static final long IDLE_MINUTES = 30;
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Set<String> STOPWORDS = Set.of(
+            "der", "die", "das", "den", "dem", "des", "ein", "eine", "einen", "einem", "einer", "und", "oder",
+            "ist", "sind", "war", "hat", "haben", "wie", "was", "wer", "wo", "im", "in", "am", "an", "auf", "zu",
+            "mit", "von", "für", "fur", "bei", "es", "er", "sie", "ich", "du", "wir", "ihr", "man", "nicht", "auch",
+            "noch", "so", "dass", "mal", "ja", "nein", "kann", "mir", "mich", "dir", "dich", "uns", "the", "and",
+            "or", "is", "are", "to", "of", "on", "for", "it", "you", "what", "who", "how"
+    );
+
+    private final ContextStore contextStore;
+    private final Tokenizer tokenizer;
+    private final Map<Long, Holder> guilds = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService builder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "knowledge-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    KnowledgeIndex(ContextStore contextStore, Tokenizer tokenizer) {
+        this.contextStore = contextStore;
+        this.tokenizer = tokenizer;
+        contextStore.addKnowledgeListener(this);
+        builder.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Die aktuelle Aufnahme der Guild. Ist sie noch nicht im Speicher, lädt der erste Aufrufer sie synchron.
+     */
+    Snapshot snapshot(long guildId) {
+        Holder holder = guilds.computeIfAbsent(guildId, ignored -> new Holder());
+        holder.lastAccess = System.nanoTime();
+        Snapshot snapshot = holder.snapshot;
+        return snapshot != null ? snapshot : load(guildId, holder);
+    }
+
+    @Override
+    public void knowledgeUpserted(long guildId, ContextStore.KnowledgeEntry entry) {
+        enqueue(guildId, new Change(entry.id(), entry));
+    }
+
+    @Override
+    public void knowledgeRemoved(long guildId, long entryId) {
+        enqueue(guildId, new Change(entryId, null));
+    }
+
+    @Override
+    public void knowledgeInvalidated(long guildId) {
+        guilds.remove(guildId);
+    }
+
+    private void enqueue(long guildId, Change change) {
+        Holder holder = guilds.get(guildId);
+        if (holder == null) {
+            return;
+        }
+        holder.changes.add(change);
+        schedule(holder);
+    }
+
+    private void schedule(Holder holder) {
+        if (holder.scheduled.compareAndSet(false, true)) {
+            builder.execute(() -> rebuild(holder));
+        }
+    }
+
+    /**
+     * Lädt ohne den Builder-Thread. Änderungen, die währenddessen committed werden, bleiben in der Queue und
+     * werden danach nachgespielt; was das Laden schon enthielt, wird einfach noch einmal angewendet.
+     */
+    private Snapshot load(long guildId, Holder holder) {
+        synchronized (holder.loadLock) {
+            if (holder.snapshot == null) {
+                List<ContextStore.KnowledgeEntry> entries;
+                try {
+                    entries = contextStore.listKnowledge(guildId, Integer.MAX_VALUE);
+                } catch (RuntimeException e) {
+                    guilds.remove(guildId, holder);
+                    throw e;
+                }
+                holder.snapshot = Snapshot.of(entries.toArray(ContextStore.KnowledgeEntry[]::new), tokenizer);
+                if (!holder.changes.isEmpty()) {
+                    schedule(holder);
+                }
+            }
+            return holder.snapshot;
+        }
+    }
+
+    private void rebuild(Holder holder) {
+        holder.scheduled.set(false);
+        Snapshot current = holder.snapshot;
+        if (current == null) {
+            return;
+        }
+        Map<Long, ContextStore.KnowledgeEntry> changes = new HashMap<>();
+        Change change;
+        while ((change = holder.changes.poll()) != null) {
+            changes.put(change.entryId(), change.entry());
+        }
+        if (!changes.isEmpty()) {
+            holder.snapshot = current.apply(changes, tokenizer);
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        long idle = TimeUnit.MINUTES.toNanos(IDLE_MINUTES);
+        guilds.values().removeIf(holder -> now - holder.lastAccess > idle);
+    }
+
+    static List<String> terms(String text) {
+        if (text == null || text.isBlank()) {
+            return List.of();
+        }
+        // Diakritika nur falten, wenn überhaupt Nicht-ASCII vorkommt: spart beim Laden großer Guilds den Normalizer
+        String folded = isAscii(text)
+                ? text
+                : MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        List<String> terms = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= folded.length(); ) {
+            int codePoint = i < folded.length() ? folded.codePointAt(i) : ' ';
+            i += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                term.appendCodePoint(Character.toLowerCase(codePoint));
+                continue;
+            }
+            if (term.length() >= MIN_TERM_LENGTH) {
+                String value = term.toString();
+                if (!STOPWORDS.contains(value)) {
+                    terms.add(value);
+                }
+            }
+            term.setLength(0);
+        }
+        return terms;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    record Match(ContextStore.KnowledgeEntry entry, double score) {
+    }
+
+    /**
+     * Unveränderliche Aufnahme einer Guild. Einträge liegen in Slots, die über Aufnahmen hinweg stabil bleiben, damit
+     * Posting-Listen nicht umnummeriert werden müssen; {@code ids} ist sortiert und zeigt auf den Slot.
+     */
+    static final class Snapshot {
+        /** Pro Slot, {@code null} markiert einen gelöschten Eintrag */
+        private final ContextStore.KnowledgeEntry[] entries;
+        private final int[] tokens;
+        private final int[] lengths;
+        private final long[] ids;
+        private final int[] slotsById;
+        private final Map<String, Posting> postings;
+        private final int live;
+        private final long totalLength;
+
+        private Snapshot(Builder builder, long[] ids, int[] slotsById) {
+            this.entries = Arrays.copyOf(builder.entries, builder.slots);
+            this.tokens = Arrays.copyOf(builder.tokens, builder.slots);
+            this.lengths = Arrays.copyOf(builder.lengths, builder.slots);
+            this.ids = ids;
+            this.slotsById = slotsById;
+            this.postings = builder.postings;
+            this.live = builder.live;
+            this.totalLength = builder.totalLength;
+        }
+
+        private static Snapshot of(ContextStore.KnowledgeEntry[] entries, Tokenizer tokenizer) {
+            Arrays.sort(entries, (left, right) -> Long.compare(left.id(), right.id()));
+            Builder builder = new Builder(entries.length);
+            long[] ids = new long[entries.length];
+            int[] slots = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                ids[i] = entries[i].id();
+                slots[i] = builder.add(entries[i], PromptAssembler.knowledgeLineTokens(tokenizer, entries[i].text()));
+            }
+            return new Snapshot(builder, ids, slots);
+        }
+
+        /**
+         * Slot des Eintrags oder {@code -1}.
+         */
+        int indexOf(long entryId) {
+            int index = Arrays.binarySearch(ids, entryId);
+            return index < 0 ? -1 : slotsById[index];
+        }
+
+        ContextStore.KnowledgeEntry entry(int index) {
+            return entries[index];
+        }
+
+        int tokens(int index) {
+            return tokens[index];
+        }
+
+        int size() {
+            return live;
+        }
+
+        /**
+         * Liefert höchstens {@code limit} Einträge mit BM25-Score {@code >= minScore}, bester zuerst.
+         */
+        List<Match> search(String query, int limit, double minScore) {
+            if (limit <= 0 || live == 0) {
+                return List.of();
+            }
+            String[] queryTerms = new LinkedHashSet<>(terms(query)).toArray(String[]::new);
+            double avgLength = Math.max(1.0, (double) totalLength / live);
+            Posting[] matched = new Posting[queryTerms.length];
+            int matchedCount = 0;
+            int candidates = 0;
+            for (String term : queryTerms) {
+                Posting posting = postings.get(term);
+                if (posting != null && posting.df > 0) {
+                    matched[matchedCount++] = posting;
+                    candidates += posting.size;
+                }
+            }
+            if (candidates == 0) {
+                return List.of();
+            }
+            SlotScores scores = new SlotScores(Math.min(candidates, entries.length), entries.length);
+            for (int p = 0; p < matchedCount; p++) {
+                Posting posting = matched[p];
+                double idf = Math.log(1.0 + (live - posting.df + 0.5) / (posting.df + 0.5));
+                for (int i = 0; i < posting.size; i++) {
+                    int slot = posting.slots[i];
+                    if (entries[slot] == null) {
+                        continue;
+                    }
+                    int tf = posting.tfs[i];
+                    double norm = K1 * (1.0 - B + B * lengths[slot] / avgLength);
+                    scores.add(slot, (float) (idf * tf * (K1 + 1.0) / (tf + norm)));
+                }
+            }
+
+            PriorityQueue<Integer> top = new PriorityQueue<>(limit + 1, (left, right) -> compare(scores, left, right));
+            for (int i = 0; i < scores.size; i++) {
+                if (scores.scores[i] < minScore) {
+                    continue;
+                }
+                top.add(i);
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+            List<Match> matches = new ArrayList<>(top.size());
+            while (!top.isEmpty()) {
+                int position = top.poll();
+                matches.add(new Match(entries[scores.slots[position]], scores.scores[position]));
+            }
+            return matches.reversed();
+        }
+
+        /**
+         * Schwächster Treffer zuerst: niedrigerer Score, bei Gleichstand geringere Confidence, dann älter.
+         */
+        private int compare(SlotScores scores, int left, int right) {
+            int byScore = Float.compare(scores.scores[left], scores.scores[right]);
+            if (byScore != 0) {
+                return byScore;
+            }
+            ContextStore.KnowledgeEntry leftEntry = entries[scores.slots[left]];
+            ContextStore.KnowledgeEntry rightEntry = entries[scores.slots[right]];
+            int byConfidence = Double.compare(leftEntry.confidence(), rightEntry.confidence());
+            if (byConfidence != 0) {
+                return byConfidence;
+            }
+            return Long.compare(leftEntry.id(), rightEntry.id());
+        }
+
+        /**
+         * Neue Aufnahme mit den Änderungen; {@code null} als Wert entfernt den Eintrag. Unveränderte Einträge
+         * behalten Slot und Token-Zahl.
+         */
+        private Snapshot apply(Map<Long, ContextStore.KnowledgeEntry> changes, Tokenizer tokenizer) {
+            Builder builder = new Builder(this);
+            long[] changedIds = changes.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+            int[] changedSlots = new int[changedIds.length];
+            for (int i = 0; i < changedIds.length; i++) {
+                ContextStore.KnowledgeEntry entry = changes.get(changedIds[i]);
+                int slot = indexOf(changedIds[i]);
+                if (slot >= 0 && entry != null && entries[slot].text().equals(entry.text())) {
+                    builder.entries[slot] = entry;
+                    changedSlots[i] = slot;
+                    continue;
+                }
+                if (slot >= 0) {
+                    builder.remove(slot);
+                }
+                changedSlots[i] = entry == null
+                        ? -1
+                        : builder.add(entry, PromptAssembler.knowledgeLineTokens(tokenizer, entry.text()));
+            }
+
+            int capacity = ids.length + changedIds.length;
+            long[] mergedIds = new long[capacity];
+            int[] mergedSlots = new int[capacity];
+            int size = 0;
+            int next = 0;
+            for (int i = 0; i < changedIds.length; i++) {
+                for (; next < ids.length && ids[next] < changedIds[i]; next++, size++) {
+                    mergedIds[size] = ids[next];
+                    mergedSlots[size] = slotsById[next];
+                }
+                if (next < ids.length && ids[next] == changedIds[i]) {
+                    next++;
+                }
+                if (changedSlots[i] >= 0) {
+                    mergedIds[size] = changedIds[i];
+                    mergedSlots[size] = changedSlots[i];
+                    size++;
+                }
+            }
+            for (; next < ids.length; next++, size++) {
+                mergedIds[size] = ids[next];
+                mergedSlots[size] = slotsById[next];
+            }
+
+            int dead = builder.slots - builder.live;
+            if (dead >= COMPACT_MIN_DEAD && dead > builder.live) {
+                // Neu aufbauen: die Slots folgen wieder der ID-Reihenfolge, Tombstones verschwinden
+                Builder compacted = new Builder(size);
+                for (int i = 0; i < size; i++) {
+                    int slot = mergedSlots[i];
+                    mergedSlots[i] = compacted.add(builder.entries[slot], builder.tokens[slot]);
+                }
+                builder = compacted;
+            }
+            return new Snapshot(builder, Arrays.copyOf(mergedIds, size), Arrays.copyOf(mergedSlots, size));
+        }
+    }
+
+    /**
+     * Baut eine Aufnahme auf dem Builder-Thread. Posting-Listen der Vorgänger-Aufnahme werden erst beim ersten
+     * Schreibzugriff kopiert, der Rest wird geteilt.
+     */
+    private static final class Builder {
+        private final Map<String, Posting> postings;
+        private final Set<String> copied = new HashSet<>();
+        private ContextStore.KnowledgeEntry[] entries;
+        private int[] tokens;
+        private int[] lengths;
+        private int slots;
+        private int live;
+        private long totalLength;
+
+        private Builder(int capacity) {
+            int initial = Math.max(16, capacity);
+            this.postings = new HashMap<>();
+            this.entries = new ContextStore.KnowledgeEntry[initial];
+            this.tokens = new int[initial];
+            this.lengths = new int[initial];
+        }
+
+        private Builder(Snapshot base) {
+            int initial = Math.max(16, base.entries.length);
+            this.postings = new HashMap<>(base.postings);
+            this.entries = Arrays.copyOf(base.entries, initial);
+            this.tokens = Arrays.copyOf(base.tokens, initial);
+            this.lengths = Arrays.copyOf(base.lengths, initial);
+            this.slots = base.entries.length;
+            this.live = base.live;
+            this.totalLength = base.totalLength;
+        }
+
+        private int add(ContextStore.KnowledgeEntry entry, int lineTokens) {
+            Map<String, Integer> frequencies = new HashMap<>();
+            List<String> terms = terms(entry.text());
+            for (String term : terms) {
+                frequencies.merge(term, 1, Integer::sum);
+            }
+            if (slots == entries.length) {
+                int capacity = entries.length * 2;
+                entries = Arrays.copyOf(entries, capacity);
+                tokens = Arrays.copyOf(tokens, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            int slot = slots++;
+            entries[slot] = entry;
+            tokens[slot] = lineTokens;
+            lengths[slot] = terms.size();
+            for (Map.Entry<String, Integer> frequency : frequencies.entrySet()) {
+                posting(frequency.getKey()).add(slot, frequency.getValue());
+            }
+            live++;
+            totalLength += terms.size();
+            return slot;
+        }
+
+        private void remove(int slot) {
+            for (String term : new HashSet<>(terms(entries[slot].text()))) {
+                posting(term).df--;
+            }
+            totalLength -= lengths[slot];
+            entries[slot] = null;
+            live--;
+        }
+
+        private Posting posting(String term) {
+            Posting posting = postings.get(term);
+            if (copied.add(term)) {
+                posting = posting == null ? new Posting() : posting.copy();
+                postings.put(term, posting);
+            }
+            return posting;
+        }
+    }
+
+    /**
+     * Scores der Slots, die eine Suche trifft, in Trefferreihenfolge. Offene Adressierung über die Slot-Nummer,
+     * damit eine Suche nur so viel Speicher braucht, wie sie Postings liest, statt ein Array über die ganze Guild.
+     */
+    private static final class SlotScores {
+        /** Position + 1, 0 markiert einen freien Platz */
+        private final int[] table;
+        private final int mask;
+        private final boolean direct;
+        private final int[] slots;
+        private final float[] scores;
+        private int size;
+
+        private SlotScores(int maxSlots, int slotCount) {
+            // Trifft die Suche einen großen Teil der Guild, ist eine Tabelle über alle Slots ohne Hashing billiger
+            this.direct = slotCount <= maxSlots * 4L;
+            int capacity = direct ? slotCount : Integer.highestOneBit(Math.max(1, maxSlots) * 2 - 1) << 1;
+            this.table = new int[capacity];
+            this.mask = direct ? -1 : capacity - 1;
+            this.slots = new int[maxSlots];
+            this.scores = new float[maxSlots];
+        }
+
+        private void add(int slot, float score) {
+            int hash = slot * 0x9E3779B9;
+            for (int i = direct ? slot : (hash ^ (hash >>> 16)) & mask; ; i = (i + 1) & mask) {
+                int position = table[i] - 1;
+                if (position < 0) {
+                    table[i] = size + 1;
+                    slots[size] = slot;
+                    scores[size] = score;
+                    size++;
+                    return;
+                }
+                if (slots[position] == slot) {
+                    scores[position] += score;
+                    return;
+                }
+            }
+        }
+    }
+
+    private record Change(long entryId, ContextStore.KnowledgeEntry entry) {
+    }
+
+    private static final class Holder {
+        private final Queue<Change> changes = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Object loadLock = new Object();
+        private volatile Snapshot snapshot;
+        private volatile long lastAccess = System.nanoTime();
+    }
+
+    /**
+     * Nach der Veröffentlichung unveränderlich. Eine Kopie teilt die Arrays und hängt nur hinter {@code size} an;
+     * Leser älterer Aufnahmen sehen davon nichts, weil sie nur bis zu ihrem eigenen {@code size} lesen.
+     */
+    private static final class Posting {
+        private int[] slots;
+        private int[] tfs;
+        private int size;
+        private int df;
+
+        private Posting() {
+            this(new int[4], new int[4], 0, 0);
+        }
+
+        private Posting(int[] slots, int[] tfs, int size, int df) {
+            this.slots = slots;
+            this.tfs = tfs;
+            this.size = size;
+            this.df = df;
+        }
+
+        private Posting copy() {
+            return new Posting(slots, tfs, size, df);
+        }
+
+        private void add(int slot, int tf) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+                tfs = Arrays.copyOf(tfs, size * 2);
+            }
+            slots[size] = slot;
+            tfs[size] = tf;
+            size++;
+            df++;
+        }
+    }
+}
@@ -1,78 +1,732 @@
 package io.nebuliton.ai;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.nebuliton.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
 public final class OpenAIClient {
+    private static final Logger LOG = LoggerFactory.getLogger(OpenAIClient.class);
+
     private final HttpClient httpClient;
-    private final ObjectMapper mapper = new ObjectMapper();
-    private final String apiKey;
-    private final String baseUrl;
     private final Duration timeout;
+    private final int maxRetries;
+    private final long retryBaseMillis;
+    private final long retryMaxMillis;
+    private final EndpointPool endpoints;
+    private final AdmissionController admission;
+    private final Tokenizer tokenizer;
+    private final HedgePolicy hedges;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retriesExhausted = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
 
     public OpenAIClient(Config.OpenAI config) {
-        this.apiKey = config.apiKey;
-        this.baseUrl = config.baseUrl;
         this.timeout = Duration.ofSeconds(config.timeoutSeconds);
+        this.maxRetries = config.maxRetries;
+        this.retryBaseMillis = config.retryBaseMillis;
+        this.retryMaxMillis = config.retryMaxMillis;
+        this.endpoints = new EndpointPool(config);
+        this.admission = new AdmissionController(config);
+        this.tokenizer = new Tokenizer(config.model);
+        this.hedges = new HedgePolicy(config);
         this.httpClient = HttpClient.newBuilder()
                 .connectTimeout(this.timeout)
                 .build();
     }
 
-    public String createChatCompletion(String model, List<ChatMessage> messages, double temperature, int maxTokens)
-            throws IOException, InterruptedException {
-        ObjectNode payload = mapper.createObjectNode();
-        payload.put("model", model);
-        payload.put("temperature", temperature);
-        payload.put("max_tokens", maxTokens);
+    /**
+     * Schickt die Anfrage per {@code sendAsync}; kein Thread wartet auf die Antwort. Fehler kommen als
+     * {@link OpenAIException} im Future an, vorübergehende erst nach den Wiederholungen. Hat ein Backend ein
+     * eigenes Modell konfiguriert, ersetzt es {@code model}.
+     */
+    public CompletableFuture<String> createChatCompletion(
+            String model,
+            List<ChatMessage> messages,
+            double temperature,
+            int maxTokens
+    ) {
+        return createChatCompletion(model, messages, temperature, maxTokens, Priority.INTERACTIVE);
+    }
 
-        ArrayNode messageArray = payload.putArray("messages");
-        for (ChatMessage message : messages) {
-            ObjectNode node = messageArray.addObject();
-            node.put("role", message.role());
-            node.put("content", message.content());
+    /**
+     * Mit {@link Priority#BACKGROUND} lässt der Request bei knappem Budget interaktiven den Vortritt.
+     */
+    public CompletableFuture<String> createChatCompletion(
+            String model,
+            List<ChatMessage> messages,
+            double temperature,
+            int maxTokens,
+            Priority priority
+    ) {
+        int estimatedTokens = estimateTokens(messages, maxTokens);
+        return execute(new Call(estimatedTokens, priority, false, (leg, endpoint) -> {
+            HttpRequest request;
+            try {
+                request = chatRequest(endpoint, ChatJson.chatRequest(
+                        endpoint.model(model),
+                        messages,
+                        temperature,
+                        maxTokens,
+                        false,
+                        false
+                ));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return send(leg, request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+                try {
+                    if (response.statusCode() >= 400) {
+                        throw errorResponse(response, new String(response.body(), StandardCharsets.UTF_8));
+                    }
+
+                    ChatJson.Choice choice = ChatJson.parseCompletion(response.body());
+                    if (choice.content() == null) {
+                        throw OpenAIException.invalidResponse("OpenAI API returned no message content");
+                    }
+                    logTruncation(choice.finishReason());
+                    return new Completion(choice.content().trim(), choice.totalTokens());
+                } catch (OpenAIException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        })).thenApply(Completion::text);
+    }
+
+    /**
+     * Wie {@link #createChatCompletion}, aber mit {@code "stream": true}. {@code onDelta} bekommt jedes Textstück,
+     * sobald es ankommt, auf einem Thread des HttpClient. Das Future liefert den vollständigen Text.
+     * Wiederholt wird nur, solange noch kein Textstück ausgeliefert wurde.
+     */
+    public CompletableFuture<String> streamChatCompletion(
+            String model,
+            List<ChatMessage> messages,
+            double temperature,
+            int maxTokens,
+            Consumer<String> onDelta
+    ) {
+        int estimatedTokens = estimateTokens(messages, maxTokens);
+        return execute(new Call(estimatedTokens, Priority.INTERACTIVE, true, (leg, endpoint) -> {
+            HttpRequest request;
+            try {
+                // Ohne include_usage fehlt im Stream der Verbrauch zum Verrechnen
+                request = chatRequest(endpoint, ChatJson.chatRequest(
+                        endpoint.model(model),
+                        messages,
+                        temperature,
+                        maxTokens,
+                        true,
+                        admission.tracksTokens()
+                ));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            // Bei einem Hedge schreibt nur der Stream mit, der zuerst Text liefert
+            Consumer<String> gated = delta -> {
+                if (leg.claim()) {
+                    onDelta.accept(delta);
+                }
+            };
+            // Fehlerantworten kommen nicht als Event-Stream, sondern als normales JSON
+            HttpResponse.BodyHandler<Completion> handler = info -> info.statusCode() >= 400
+                    ? HttpResponse.BodySubscribers.mapping(
+                            HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8),
+                            body -> new Completion(body, -1)
+                    )
+                    : HttpResponse.BodySubscribers.fromLineSubscriber(
+                            new EventStreamSubscriber(gated),
+                            EventStreamSubscriber::completion,
+                            StandardCharsets.UTF_8,
+                            null
+                    );
+            return send(leg, request, handler).thenApply(response -> {
+                Completion completion = response.body();
+                if (response.statusCode() >= 400) {
+                    throw new CompletionException(errorResponse(response, completion.text()));
+                }
+                if (completion.text().isBlank()) {
+                    throw new CompletionException(OpenAIException.invalidResponse("OpenAI API returned no message content"));
+                }
+                return new Completion(completion.text().trim(), completion.totalTokens());
+            });
+        })).thenApply(Completion::text);
+    }
+
+    /**
+     * Liefert für jeden Input einen Vektor, in derselben Reihenfolge. {@code dimensions <= 0} nutzt
+     * die Standardgröße des Modells. Geht nur an Backends mit {@code embeddings: true} und wiederholt nicht:
+     * der Aufrufer hat mit BM25 schon einen Fallback. Wartet wie Completions ohne Thread auf das RPM/TPM-Budget
+     * und verrechnet danach {@code usage}; Nachberechnen im Hintergrund läuft mit {@link Priority#BACKGROUND}.
+     */
+    public CompletableFuture<float[][]> createEmbeddings(
+            String model,
+            List<String> inputs,
+            int dimensions,
+            Priority priority
+    ) {
+        byte[] body;
+        try {
+            body = ChatJson.embeddingRequest(model, inputs, dimensions);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(OpenAIException.from(e));
+        }
+        int estimatedTokens = 0;
+        for (String input : inputs) {
+            estimatedTokens += tokenizer.count(input);
         }
+        return admission.acquire(estimatedTokens, priority)
+                .exceptionallyCompose(denied -> CompletableFuture.failedFuture(OpenAIException.from(unwrap(denied))))
+                .thenCompose(permit -> sendEmbeddings(permit, body, inputs.size()));
+    }
 
+    private CompletableFuture<float[][]> sendEmbeddings(AdmissionController.Permit permit, byte[] body, int expected) {
+        EndpointPool.Lease lease = endpoints.select(null, true);
+        if (lease == null) {
+            permit.settle(0);
+            return CompletableFuture.failedFuture(endpoints.unavailableError(true));
+        }
+        EndpointPool.Endpoint endpoint = lease.endpoint();
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(resolveEndpoint("/chat/completions")))
+                .uri(endpoint.uri("/embeddings"))
                 .timeout(timeout)
-                .header("Authorization", "Bearer " + apiKey)
+                .header("Authorization", "Bearer " + endpoint.apiKey())
                 .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(payload)))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
                 .build();
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() >= 400) {
-            throw new IOException("OpenAI API error: " + response.statusCode() + " " + response.body());
+        long startedAt = System.nanoTime();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).handle((response, error) -> {
+            int usedTokens = -1;
+            try {
+                if (error != null) {
+                    Throwable cause = unwrap(error);
+                    if (cause instanceof CancellationException) {
+                        lease.release();
+                        throw new CompletionException(cause);
+                    }
+                    OpenAIException failure = OpenAIException.from(cause);
+                    lease.finish(failure, startedAt);
+                    throw new CompletionException(failure);
+                }
+                if (response.statusCode() >= 400) {
+                    OpenAIException failure = errorResponse(response, new String(response.body(), StandardCharsets.UTF_8));
+                    lease.finish(failure, startedAt);
+                    throw new CompletionException(failure);
+                }
+                lease.finish(null, startedAt);
+                ChatJson.Embeddings embeddings = ChatJson.parseEmbeddings(response.body(), expected);
+                usedTokens = embeddings.totalTokens();
+                return embeddings.vectors();
+            } catch (OpenAIException e) {
+                throw new CompletionException(e);
+            } finally {
+                permit.settle(usedTokens);
+            }
+        });
+    }
+
+    public ResilienceStats resilienceStats() {
+        return new ResilienceStats(
+                retries.get(),
+                retriesExhausted.get(),
+                failovers.get(),
+                endpoints.unavailableCount(),
+                endpoints.stats()
+        );
+    }
+
+    public AdmissionStats admissionStats() {
+        return admission.stats();
+    }
+
+    public HedgeStats hedgeStats() {
+        return hedges.stats();
+    }
+
+    /**
+     * Zählt mit dem Encoding des konfigurierten Modells, dasselbe teilen sich Prompt-Budget und Zulassung.
+     */
+    Tokenizer tokenizer() {
+        return tokenizer;
+    }
+
+    /**
+     * Prompt plus maximale Antwort, so wie der Provider gegen das Token-Limit rechnet.
+     */
+    private int estimateTokens(List<ChatMessage> messages, int maxTokens) {
+        int total = Tokenizer.TOKENS_PER_REPLY + Math.max(0, maxTokens);
+        for (ChatMessage message : messages) {
+            total += tokenizer.count(message);
         }
+        return total;
+    }
 
-        JsonNode root = mapper.readTree(response.body());
-        JsonNode content = root.path("choices").path(0).path("message").path("content");
-        if (content.isMissingNode()) {
-            throw new IOException("OpenAI API returned no message content");
+    /**
+     * Startet den Aufruf und schickt bei aktivem Hedging einen zweiten hinterher, wenn nach dem konfigurierten
+     * Perzentil noch keine Antwort da ist. Hintergrund-Requests werden nie gehedgt.
+     */
+    private CompletableFuture<Completion> execute(Call call) {
+        boolean hedging = hedges.enabled() && call.priority == Priority.INTERACTIVE;
+        if (hedging) {
+            hedges.onRequest();
+        }
+        Leg primary = call.launch(false, null);
+        long delay = hedging ? hedges.delayMillis(call.stream) : -1L;
+        if (delay >= 0) {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+                if (call.winner.get() == null && !call.result.isDone() && hedges.tryHedge()) {
+                    // Lieber ein anderes Backend als das, an dem der erste hängt
+                    call.launch(true, primary.endpoint);
+                }
+            });
         }
+        return call.result;
+    }
 
-        return content.asText().trim();
+    /**
+     * Ein Versuch eines Legs. Vorübergehende Fehler werden mit exponentiellem Backoff und Jitter wiederholt,
+     * ohne dabei einen Thread schlafen zu lassen. Jeder Versuch wartet erst auf die Budgets, geht dann an ein
+     * Backend aus dem Pool und verrechnet danach den tatsächlichen Verbrauch.
+     */
+    private void attempt(Leg leg, EndpointPool.Endpoint previous, int attempt) {
+        if (leg.cancelled) {
+            return;
+        }
+        // Sind alle Backends raus, gar nicht erst aufs Budget warten
+        if (!endpoints.anyAccepting()) {
+            leg.call.failed(leg, endpoints.unavailableError(false));
+            return;
+        }
+        admission.acquire(leg.call.estimatedTokens, leg.call.priority).whenComplete((permit, denied) -> {
+            if (denied != null) {
+                leg.call.failed(leg, OpenAIException.from(unwrap(denied)));
+                return;
+            }
+            if (leg.cancelled) {
+                permit.settle(0);
+                return;
+            }
+            EndpointPool.Lease lease = endpoints.select(previous, false);
+            if (lease == null) {
+                permit.settle(0);
+                leg.call.failed(leg, endpoints.unavailableError(false));
+                return;
+            }
+            EndpointPool.Endpoint endpoint = lease.endpoint();
+            leg.endpoint = endpoint;
+            long startedAt = System.nanoTime();
+            CompletableFuture<Completion> running;
+            try {
+                running = leg.call.send.apply(leg, endpoint);
+            } catch (RuntimeException e) {
+                running = CompletableFuture.failedFuture(e);
+            }
+            running.whenComplete((completion, error) -> {
+                permit.settle(completion == null ? -1 : completion.totalTokens());
+                if (error == null) {
+                    lease.finish(null, startedAt);
+                    leg.call.succeeded(leg, completion);
+                    return;
+                }
+                if (leg.cancelled) {
+                    // Abgebrochen, weil der andere Leg schneller war; sagt nichts über das Backend
+                    lease.release();
+                    return;
+                }
+                OpenAIException failure = OpenAIException.from(unwrap(error));
+                lease.finish(failure, startedAt);
+                retry(leg, endpoint, attempt, failure);
+            });
+        });
+    }
+
+    private void retry(Leg leg, EndpointPool.Endpoint failed, int attempt, OpenAIException failure) {
+        boolean retryable = failure.kind().retryable() && leg.call.retryAllowed();
+        long delay = -1L;
+        if (retryable && attempt < maxRetries) {
+            if (endpoints.hasAlternative(failed)) {
+                // Ein anderes Backend ist nicht überlastet, also ohne Backoff dorthin
+                failovers.incrementAndGet();
+                delay = 0L;
+            } else {
+                delay = backoffMillis(attempt, failure);
+            }
+        }
+        if (delay < 0) {
+            if (failure.kind().retryable()) {
+                retriesExhausted.incrementAndGet();
+            }
+            leg.call.failed(leg, failure);
+            return;
+        }
+        retries.incrementAndGet();
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                .execute(() -> attempt(leg, failed, attempt + 1));
+    }
+
+    /**
+     * Schickt ab und merkt sich den Austausch, damit ein verlorener Hedge ihn abbrechen kann.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> send(
+            Leg leg,
+            HttpRequest request,
+            HttpResponse.BodyHandler<T> handler
+    ) {
+        CompletableFuture<HttpResponse<T>> exchange = httpClient.sendAsync(request, handler);
+        leg.exchange = exchange;
+        if (leg.cancelled) {
+            exchange.cancel(true);
+        }
+        return exchange;
+    }
+
+    /**
+     * Wartezeit vor dem nächsten Versuch am selben Backend oder {@code -1}, wenn keiner mehr kommt.
+     * {@code Retry-After} gilt als Untergrenze; verlangt der Server länger als {@code openai.retryMaxMillis},
+     * wird aufgegeben.
+     */
+    private long backoffMillis(int attempt, OpenAIException failure) {
+        long ceiling = Math.min(retryMaxMillis, retryBaseMillis << Math.min(attempt, 20));
+        // Equal Jitter: die Hälfte fest, die andere zufällig, damit ein Burst nicht im Gleichschritt wiederkommt
+        long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        long retryAfter = failure.retryAfterMillis();
+        if (retryAfter > retryMaxMillis) {
+            return -1L;
+        }
+        return Math.max(delay, retryAfter);
+    }
+
+    private static OpenAIException errorResponse(HttpResponse<?> response, String body) {
+        return OpenAIException.fromResponse(response.statusCode(), body, retryAfterMillis(response));
+    }
+
+    /**
+     * Liest {@code retry-after-ms} (OpenAI) oder {@code Retry-After} in Sekunden bzw. als HTTP-Datum.
+     */
+    private static long retryAfterMillis(HttpResponse<?> response) {
+        try {
+            Optional<String> millis = response.headers().firstValue("retry-after-ms");
+            if (millis.isPresent()) {
+                return Math.max(0L, (long) Double.parseDouble(millis.get().trim()));
+            }
+            Optional<String> header = response.headers().firstValue("retry-after");
+            if (header.isEmpty()) {
+                return -1L;
+            }
+            String value = header.get().trim();
+            if (!value.isEmpty() && Character.isDigit(value.charAt(0))) {
+                return Math.max(0L, (long) (Double.parseDouble(value) * 1000));
+            }
+            ZonedDateTime at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0L, at.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return -1L;
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    private HttpRequest chatRequest(EndpointPool.Endpoint endpoint, byte[] body) {
+        return HttpRequest.newBuilder()
+                .uri(endpoint.uri("/chat/completions"))
+                .timeout(timeout)
+                .header("Authorization", "Bearer " + endpoint.apiKey())
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
     }
 
-    private String resolveEndpoint(String path) {
-        if (baseUrl.endsWith("/")) {
-            return baseUrl.substring(0, baseUrl.length() - 1) + path;
+    private static void logTruncation(String finishReason) {
+        if ("length".equals(finishReason)) {
+            LOG.debug("Antwort wurde bei maxTokens abgeschnitten (finish_reason=length)");
         }
-        return baseUrl + path;
     }
 
     public record ChatMessage(String role, String content) {
     }
+
+    /**
+     * Wer bei knappem Provider-Budget zuerst dran ist.
+     */
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    public record AdmissionStats(
+            long requestsPerMinute,
+            long tokensPerMinute,
+            long availableRequests,
+            long availableTokens,
+            int queuedInteractive,
+            int queuedBackground,
+            long admitted,
+            long shed,
+            long avgWaitMicros
+    ) {
+    }
+
+    /**
+     * Antworttext plus {@code usage.total_tokens}, {@code -1} wenn die API keinen Verbrauch geliefert hat.
+     */
+    private record Completion(String text, int totalTokens) {
+    }
+
+    /**
+     * {@code unavailable} zählt Requests, für die kein Backend frei war.
+     */
+    public record ResilienceStats(
+            long retries,
+            long retriesExhausted,
+            long failovers,
+            long unavailable,
+            List<EndpointStats> endpoints
+    ) {
+    }
+
+    public record EndpointStats(
+            String name,
+            String circuitState,
+            long circuitOpenRemainingMillis,
+            int consecutiveFailures,
+            long ejections,
+            int weight,
+            int inFlight,
+            int maxInFlight,
+            long requests,
+            long errors,
+            long avgLatencyMs
+    ) {
+    }
+
+    /**
+     * {@code thresholdMillis} sind {@code -1}, solange es zu wenige Messungen gibt.
+     */
+    public record HedgeStats(
+            boolean enabled,
+            long completionThresholdMillis,
+            long firstTokenThresholdMillis,
+            long requests,
+            long hedged,
+            long hedgeWins,
+            long budgetDenied
+    ) {
+    }
+
+    /**
+     * Ein Aufruf der API mit bis zu zwei Legs, dem ersten und einem Hedge. Es zählt der Leg, der zuerst
+     * antwortet (bei Streams mit dem ersten Textstück); der andere wird abgebrochen. Fehlschlagen tut der
+     * Aufruf erst, wenn kein Leg mehr läuft.
+     */
+    private final class Call {
+        private final int estimatedTokens;
+        private final Priority priority;
+        private final boolean stream;
+        private final BiFunction<Leg, EndpointPool.Endpoint, CompletableFuture<Completion>> send;
+        private final CompletableFuture<Completion> result = new CompletableFuture<>();
+        private final AtomicReference<Leg> winner = new AtomicReference<>();
+        private final List<Leg> legs = new CopyOnWriteArrayList<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private final long startedAt = System.nanoTime();
+
+        private Call(
+                int estimatedTokens,
+                Priority priority,
+                boolean stream,
+                BiFunction<Leg, EndpointPool.Endpoint, CompletableFuture<Completion>> send
+        ) {
+            this.estimatedTokens = estimatedTokens;
+            this.priority = priority;
+            this.stream = stream;
+            this.send = send;
+        }
+
+        private Leg launch(boolean hedge, EndpointPool.Endpoint avoid) {
+            Leg leg = new Leg(this, hedge);
+            running.incrementAndGet();
+            legs.add(leg);
+            if (winner.get() != null) {
+                leg.cancel();
+            }
+            attempt(leg, avoid, 0);
+            return leg;
+        }
+
+        private boolean claim(Leg leg) {
+            if (!winner.compareAndSet(null, leg)) {
+                return winner.get() == leg;
+            }
+            if (priority == Priority.INTERACTIVE) {
+                // Ab Beginn des Aufrufs, sonst wirkt ein gewinnender Hedge um seine Verzögerung schneller
+                hedges.onResponse(stream, System.nanoTime() - startedAt, leg.hedge);
+            }
+            for (Leg other : legs) {
+                if (other != leg) {
+                    other.cancel();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Ein Stream, der schon Text ausgeliefert hat, wird nicht wiederholt.
+         */
+        private boolean retryAllowed() {
+            return !stream || winner.get() == null;
+        }
+
+        private void succeeded(Leg leg, Completion completion) {
+            if (claim(leg)) {
+                result.complete(completion);
+            }
+        }
+
+        private void failed(Leg leg, OpenAIException failure) {
+            if (winner.get() == leg || (running.decrementAndGet() == 0 && winner.get() == null)) {
+                result.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Eine Folge von Versuchen innerhalb eines {@link Call}, mit eigenen Wiederholungen.
+     */
+    private static final class Leg {
+        private final Call call;
+        private final boolean hedge;
+        private volatile boolean cancelled;
+        private volatile EndpointPool.Endpoint endpoint;
+        private volatile CompletableFuture<?> exchange;
+
+        private Leg(Call call, boolean hedge) {
+            this.call = call;
+            this.hedge = hedge;
+        }
+
+        private boolean claim() {
+            return call.claim(this);
+        }
+
+        private void cancel() {
+            cancelled = true;
+            CompletableFuture<?> running = exchange;
+            if (running != null) {
+                running.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Liest Server-Sent Events zeilenweise. {@code data:}-Zeilen sammeln sich bis zur Leerzeile, dann wird das
+     * Event ausgewertet; {@code [DONE]} beendet den Stream.
+     */
+    private final class EventStreamSubscriber implements Flow.Subscriber<String> {
+        private final Consumer<String> onDelta;
+        private final StringBuilder text = new StringBuilder();
+        private final StringBuilder data = new StringBuilder();
+        private int totalTokens = -1;
+        private boolean done;
+
+        private EventStreamSubscriber(Consumer<String> onDelta) {
+            this.onDelta = onDelta;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(String line) {
+            if (done) {
+                return;
+            }
+            if (line.isEmpty()) {
+                dispatch();
+            } else if (line.startsWith("data:")) {
+                if (!data.isEmpty()) {
+                    data.append('\n');
+                }
+                data.append(line, line.startsWith("data: ") ? 6 : 5, line.length());
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+            dispatch();
+        }
+
+        private void dispatch() {
+            if (data.isEmpty()) {
+                return;
+            }
+            String event = data.toString();
+            data.setLength(0);
+            if ("[DONE]".equals(event)) {
+                done = true;
+                return;
+            }
+            ChatJson.Choice choice;
+            try {
+                choice = ChatJson.parseChunk(event);
+            } catch (OpenAIException e) {
+                // Kaputte oder fremde Events (z.B. Keep-alives mancher Proxys) überspringen
+                return;
+            }
+            // Mit include_usage kommt der Verbrauch in einem letzten Event ohne choices
+            if (choice.totalTokens() >= 0) {
+                totalTokens = choice.totalTokens();
+            }
+            logTruncation(choice.finishReason());
+            String delta = choice.content();
+            if (delta == null || delta.isEmpty()) {
+                return;
+            }
+            text.append(delta);
+            try {
+                onDelta.accept(delta);
+            } catch (RuntimeException e) {
+                // Ein Fehler beim Anzeigen darf den Stream nicht abbrechen, der volle Text kommt trotzdem
+            }
+        }
+
+        private Completion completion() {
+            return new Completion(text.toString(), totalTokens);
+        }
+    }
 }
@@ -0,0 +1,136 @@
+package io.nebuliton.ai;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Fehler der OpenAI-API, eingeordnet nach Ursache. Daran entscheidet der Client, ob ein neuer Versuch lohnt und
+ * ob der Fehler gegen die Erreichbarkeit des Providers zählt.
+ */
+public final class OpenAIException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final Kind kind;
+    private final int status;
+    private final long retryAfterMillis;
+
+    OpenAIException(Kind kind, int status, long retryAfterMillis, String message, Throwable cause) {
+        super(message, cause);
+        this.kind = kind;
+        this.status = status;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Ordnet eine Fehlerantwort ein. {@code retryAfterMillis < 0} heißt: kein {@code Retry-After}-Header.
+     */
+    static OpenAIException fromResponse(int status, String body, long retryAfterMillis) {
+        String text = body == null ? "" : body;
+        Kind kind;
+        if (status == 401 || status == 403) {
+            kind = Kind.AUTH;
+        } else if (text.contains("insufficient_quota")) {
+            kind = Kind.QUOTA;
+        } else if (status == 429) {
+            kind = Kind.RATE_LIMITED;
+        } else if (status >= 500) {
+            kind = Kind.SERVER_ERROR;
+        } else if (text.contains("context_length") || text.contains("maximum context")) {
+            kind = Kind.CONTEXT_LENGTH;
+        } else {
+            kind = Kind.BAD_REQUEST;
+        }
+        return new OpenAIException(kind, status, retryAfterMillis, "OpenAI API error: " + status + " " + text, null);
+    }
+
+    /**
+     * Ordnet Transportfehler (Timeout, Verbindung) ein; bereits eingeordnete Fehler bleiben, wie sie sind.
+     */
+    static OpenAIException from(Throwable error) {
+        if (error instanceof OpenAIException classified) {
+            return classified;
+        }
+        if (error instanceof RejectedExecutionException) {
+            return new OpenAIException(Kind.THROTTLED, 0, -1L, error.getMessage(), error);
+        }
+        if (error instanceof HttpTimeoutException) {
+            return new OpenAIException(Kind.TIMEOUT, 0, -1L, "OpenAI request timed out", error);
+        }
+        if (error instanceof ConnectException || error instanceof ClosedChannelException) {
+            return new OpenAIException(Kind.CONNECTION, 0, -1L, "Connection to OpenAI failed: " + error.getMessage(), error);
+        }
+        if (error instanceof IOException) {
+            return new OpenAIException(Kind.CONNECTION, 0, -1L, "OpenAI request failed: " + error.getMessage(), error);
+        }
+        return new OpenAIException(Kind.INVALID_RESPONSE, 0, -1L, String.valueOf(error.getMessage()), error);
+    }
+
+    static OpenAIException invalidResponse(String message) {
+        return new OpenAIException(Kind.INVALID_RESPONSE, 0, -1L, message, null);
+    }
+
+    static OpenAIException circuitOpen(long remainingMillis) {
+        return new OpenAIException(
+                Kind.CIRCUIT_OPEN,
+                0,
+                remainingMillis,
+                "OpenAI circuit breaker is open for another " + remainingMillis + "ms",
+                null
+        );
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    /**
+     * Wartezeit aus {@code Retry-After} in Millisekunden, oder {@code -1}.
+     */
+    public long retryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public enum Kind {
+        RATE_LIMITED(true, true),
+        SERVER_ERROR(true, true),
+        TIMEOUT(true, true),
+        CONNECTION(true, true),
+        AUTH(false, false),
+        QUOTA(false, false),
+        CONTEXT_LENGTH(false, false),
+        BAD_REQUEST(false, false),
+        INVALID_RESPONSE(false, false),
+        /** Vom eigenen Budget abgelehnt, bevor der Request rausging. */
+        THROTTLED(false, false),
+        CIRCUIT_OPEN(false, false);
+
+        private final boolean retryable;
+        private final boolean providerFailure;
+
+        Kind(boolean retryable, boolean providerFailure) {
+            this.retryable = retryable;
+            this.providerFailure = providerFailure;
+        }
+
+        /**
+         * Vorübergehend, ein neuer Versuch kann klappen.
+         */
+        public boolean retryable() {
+            return retryable;
+        }
+
+        /**
+         * Spricht dafür, dass der Provider überlastet oder nicht erreichbar ist; zählt für den Circuit Breaker.
+         */
+        public boolean providerFailure() {
+            return providerFailure;
+        }
+    }
+}
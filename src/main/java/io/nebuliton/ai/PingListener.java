@@ -1,10 +1,15 @@
 package io.nebuliton.ai;
 
 import io.nebuliton.config.Config;
+import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public final class PingListener extends ListenerAdapter {
     private final AIManager aiManager;
@@ -56,29 +61,51 @@ public final class PingListener extends ListenerAdapter {
             prompt = prompt.substring(0, config.ux.maxUserMessageLength);
         }
 
-        if (config.ux.typingIndicator) {
-            event.getChannel().sendTyping().queue();
-        }
-
         String displayName = event.getMember() != null
                 ? event.getMember().getEffectiveName()
                 : event.getAuthor().getName();
 
-        aiManager.generateReply(guildId, userId, displayName, prompt)
+        StreamingReply streaming = config.ux.streamReplies
+                ? new StreamingReply(event.getMessage(), config.ux.streamEditIntervalMillis, aiManager.discordRequests())
+                : null;
+        CompletableFuture<String> pending =
+                aiManager.generateReply(guildId, userId, displayName, prompt, streaming == null ? null : streaming::update);
+        // Bei Überlast ist das Future schon abgelehnt, dann kein Tippen ohne Antwort
+        if (config.ux.typingIndicator && !pending.isDone()) {
+            event.getChannel().sendTyping().queue();
+        }
+        long channelId = event.getChannel().getIdLong();
+        pending
                 .thenAccept(reply -> {
-                    event.getMessage().reply(reply)
-                            .setAllowedMentions(Collections.emptyList())
-                            .queue();
+                    if (streaming != null) {
+                        streaming.finish(reply);
+                    } else {
+                        reply(event.getMessage(), reply);
+                    }
                     storeConversation(guildId, userId, hasUserContent ? userMessage : null, reply);
                 })
                 .exceptionally(error -> {
-                    event.getMessage().reply(config.ux.errorReply)
-                            .setAllowedMentions(Collections.emptyList())
-                            .queue();
+                    String text = AIManager.isOverload(error)
+                            ? aiManager.busyReply(guildId, channelId).orElse(null)
+                            : config.ux.errorReply;
+                    if (text == null) {
+                        return null;
+                    }
+                    if (streaming != null) {
+                        streaming.finish(text);
+                    } else {
+                        reply(event.getMessage(), text);
+                    }
                     return null;
                 });
     }
 
+    private void reply(Message source, String text) {
+        aiManager.discordRequests().submit(() -> source.reply(text)
+                .setAllowedMentions(Collections.emptyList())
+                .submit());
+    }
+
     private String stripMention(String content, String botId) {
         String mention = "<@" + botId + ">";
         String mentionNick = "<@!" + botId + ">";
@@ -101,21 +128,13 @@ public final class PingListener extends ListenerAdapter {
         }
         try {
             int maxLen = Math.max(1, config.ux.maxConversationMessageLength);
+            long now = Instant.now().toEpochMilli();
+            List<ContextStore.ConversationMessage> messages = new ArrayList<>(2);
             if (userMessage != null && !userMessage.isBlank()) {
-                contextStore.addConversationMessage(
-                        guildId,
-                        userId,
-                        "user",
-                        truncate(userMessage, maxLen)
-                );
+                messages.add(new ContextStore.ConversationMessage("user", truncate(userMessage, maxLen), now));
             }
-            contextStore.addConversationMessage(
-                    guildId,
-                    userId,
-                    "assistant",
-                    truncate(assistantMessage, maxLen)
-            );
-            contextStore.trimConversation(guildId, userId, config.ux.maxConversationMessages);
+            messages.add(new ContextStore.ConversationMessage("assistant", truncate(assistantMessage, maxLen), now));
+            aiManager.rememberConversation(guildId, userId, messages);
         } catch (Exception ignored) {
         }
     }
@@ -0,0 +1,179 @@
+package io.nebuliton.ai;
+
+import io.nebuliton.config.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Baut den Prompt für eine Antwort innerhalb von {@code openai.maxPromptTokens}.
+ *
+ * Gefüllt wird nach Priorität: System-Prompt, Nachricht des Users, Server-Wissen (bester Treffer zuerst, höchstens
+ * {@code ux.maxKnowledgeTokens}), User-Kontext, Zusammenfassung der älteren Unterhaltung, dann History von neu nach
+ * alt. Was nicht mehr ganz passt, fällt weg; nur die Nachricht des Users wird notfalls gekürzt. Die Reihenfolge im
+ * Prompt bleibt die gewohnte.
+ */
+final class PromptAssembler {
+    private static final String KNOWLEDGE_HEADER = "Server-Wissen:";
+    private static final String CONTEXT_PREFIX = "User-Kontext (nur nutzen, wenn relevant): ";
+    private static final String SUMMARY_PREFIX = "Bisheriges Gespräch mit dem User (Zusammenfassung): ";
+    /** So viel bleibt von der Nachricht des Users, selbst wenn der System-Prompt das Budget schon aufbraucht */
+    private static final int MIN_USER_TOKENS = 64;
+
+    private final Tokenizer tokenizer;
+    private final int budget;
+    private final int maxKnowledgeTokens;
+
+    PromptAssembler(Tokenizer tokenizer, Config config) {
+        this.tokenizer = tokenizer;
+        this.budget = config.openai.maxPromptTokens;
+        this.maxKnowledgeTokens = config.ux.maxKnowledgeTokens;
+    }
+
+    /**
+     * Kosten einer Wissenszeile {@code "- text"} im Prompt; der {@link KnowledgeIndex} speichert sie pro Eintrag vorab.
+     */
+    static int knowledgeLineTokens(Tokenizer tokenizer, String text) {
+        return tokenizer.count("- " + text) + 1;
+    }
+
+    Prompt assemble(
+            List<String> systemParts,
+            String userMessage,
+            KnowledgeIndex.Snapshot snapshot,
+            List<KnowledgeIndex.Match> matches,
+            String userContext,
+            String summary,
+            List<ContextStore.ConversationMessage> history
+    ) {
+        int remaining = budget - Tokenizer.TOKENS_PER_REPLY;
+
+        List<OpenAIClient.ChatMessage> system = new ArrayList<>(systemParts.size());
+        int systemTokens = 0;
+        for (String part : systemParts) {
+            OpenAIClient.ChatMessage message = new OpenAIClient.ChatMessage("system", part);
+            system.add(message);
+            systemTokens += tokenizer.count(message);
+        }
+        remaining -= systemTokens;
+
+        String userText = userMessage;
+        int userTokens = Tokenizer.TOKENS_PER_MESSAGE + tokenizer.count(userText);
+        if (userTokens > Math.max(remaining, MIN_USER_TOKENS + Tokenizer.TOKENS_PER_MESSAGE)) {
+            userText = tokenizer.truncate(userText, Math.max(remaining - Tokenizer.TOKENS_PER_MESSAGE, MIN_USER_TOKENS));
+            userTokens = Tokenizer.TOKENS_PER_MESSAGE + tokenizer.count(userText);
+        }
+        remaining -= userTokens;
+
+        List<KnowledgeIndex.Match> knowledge = new ArrayList<>();
+        OpenAIClient.ChatMessage knowledgeMessage = null;
+        int knowledgeTokens = 0;
+        int knowledgeBudget = maxKnowledgeTokens > 0 ? Math.min(remaining, maxKnowledgeTokens) : remaining;
+        int used = Tokenizer.TOKENS_PER_MESSAGE + tokenizer.count(KNOWLEDGE_HEADER) + 1;
+        for (KnowledgeIndex.Match match : matches) {
+            int line = snapshot.tokens(snapshot.indexOf(match.entry().id()));
+            if (used + line > knowledgeBudget) {
+                break;
+            }
+            used += line;
+            knowledge.add(match);
+        }
+        if (!knowledge.isEmpty()) {
+            StringBuilder text = new StringBuilder(KNOWLEDGE_HEADER).append('\n');
+            for (KnowledgeIndex.Match match : knowledge) {
+                text.append("- ").append(match.entry().text()).append('\n');
+            }
+            knowledgeMessage = new OpenAIClient.ChatMessage("system", text.toString().trim());
+            knowledgeTokens = tokenizer.count(knowledgeMessage);
+            remaining -= knowledgeTokens;
+        }
+
+        OpenAIClient.ChatMessage contextMessage = null;
+        int contextTokens = 0;
+        if (userContext != null && !userContext.isBlank()) {
+            OpenAIClient.ChatMessage candidate = new OpenAIClient.ChatMessage("system", CONTEXT_PREFIX + userContext);
+            int cost = tokenizer.count(candidate);
+            if (cost <= remaining) {
+                contextMessage = candidate;
+                contextTokens = cost;
+                remaining -= cost;
+            }
+        }
+
+        OpenAIClient.ChatMessage summaryMessage = null;
+        int summaryTokens = 0;
+        if (summary != null && !summary.isBlank()) {
+            OpenAIClient.ChatMessage candidate = new OpenAIClient.ChatMessage("system", SUMMARY_PREFIX + summary);
+            int cost = tokenizer.count(candidate);
+            if (cost <= remaining) {
+                summaryMessage = candidate;
+                summaryTokens = cost;
+                remaining -= cost;
+            }
+        }
+
+        List<OpenAIClient.ChatMessage> recent = new ArrayList<>();
+        int historyTokens = 0;
+        for (int i = history.size() - 1; i >= 0; i--) {
+            ContextStore.ConversationMessage message = history.get(i);
+            if (message.content() == null || message.content().isBlank()) {
+                continue;
+            }
+            String role = message.role();
+            if (!"user".equals(role) && !"assistant".equals(role)) {
+                continue;
+            }
+            OpenAIClient.ChatMessage candidate = new OpenAIClient.ChatMessage(role, message.content());
+            int cost = tokenizer.count(candidate);
+            if (cost > remaining) {
+                break;
+            }
+            recent.add(candidate);
+            historyTokens += cost;
+            remaining -= cost;
+        }
+        Collections.reverse(recent);
+
+        List<OpenAIClient.ChatMessage> messages = new ArrayList<>(system.size() + recent.size() + 4);
+        messages.addAll(system);
+        if (knowledgeMessage != null) {
+            messages.add(knowledgeMessage);
+        }
+        if (contextMessage != null) {
+            messages.add(contextMessage);
+        }
+        if (summaryMessage != null) {
+            messages.add(summaryMessage);
+        }
+        messages.addAll(recent);
+        messages.add(new OpenAIClient.ChatMessage("user", userText));
+
+        return new Prompt(
+                messages,
+                knowledge,
+                contextMessage != null,
+                recent.size(),
+                new ContextStore.PromptTokens(
+                        budget,
+                        Tokenizer.TOKENS_PER_REPLY + systemTokens + userTokens + knowledgeTokens + contextTokens
+                                + summaryTokens + historyTokens,
+                        systemTokens,
+                        userTokens,
+                        knowledgeTokens,
+                        contextTokens,
+                        summaryTokens,
+                        historyTokens
+                )
+        );
+    }
+
+    record Prompt(
+            List<OpenAIClient.ChatMessage> messages,
+            List<KnowledgeIndex.Match> knowledge,
+            boolean usedUserContext,
+            int includedHistory,
+            ContextStore.PromptTokens tokens
+    ) {
+    }
+}
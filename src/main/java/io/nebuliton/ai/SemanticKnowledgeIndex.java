@@ -0,0 +1,225 @@
+package io.nebuliton.ai;
+
+import io.nebuliton.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Semantische Suche über das Server-Wissen per Embeddings und {@link HnswGraph}.
+ *
+ * Vektoren werden als float16 in {@code knowledge_embeddings} gespeichert. Beim ersten Zugriff auf eine
+ * Guild werden fehlende Vektoren im Hintergrund nachberechnet und der Graph aufgebaut; bis dahin liefert
+ * {@link #search} nichts und der Aufrufer fällt auf BM25 zurück. Alle Änderungen am Graph laufen über
+ * einen einzelnen Embedder-Thread, damit Laden und Listener-Events in Commit-Reihenfolge bleiben.
+ */
+final class SemanticKnowledgeIndex implements ContextStore.KnowledgeListener {
+    private static final Logger LOG = LoggerFactory.getLogger(SemanticKnowledgeIndex.class);
+    private static final int EMBEDDING_BATCH = 64;
+    private static final int EF_SEARCH = 64;
+
+    private final ContextStore contextStore;
+    private final OpenAIClient client;
+    private final String model;
+    private final int dimensions;
+    private final Map<Long, GuildGraph> guilds = new ConcurrentHashMap<>();
+    private final ExecutorService embedder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "knowledge-embedder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SemanticKnowledgeIndex(ContextStore contextStore, OpenAIClient client, Config.OpenAI config) {
+        this.contextStore = contextStore;
+        this.client = client;
+        this.model = config.embeddingModel;
+        this.dimensions = config.embeddingDimensions;
+        contextStore.addKnowledgeListener(this);
+    }
+
+    /**
+     * Der Vektor des Prompts, ohne Thread zu blockieren, oder {@code null}, solange der Graph der Guild noch
+     * aufgebaut wird oder leer ist; dann fällt der Aufrufer auf BM25 zurück.
+     */
+    CompletableFuture<float[]> embedQuery(long guildId, String prompt) {
+        GuildGraph guild = guilds.computeIfAbsent(guildId, id -> {
+            GuildGraph created = new GuildGraph();
+            embedder.execute(() -> load(id, created));
+            return created;
+        });
+        HnswGraph graph = guild.graph;
+        if (graph == null || graph.size() == 0 || prompt == null || prompt.isBlank()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return client.createEmbeddings(model, List.of(prompt), dimensions, OpenAIClient.Priority.INTERACTIVE)
+                .thenApply(vectors -> vectors[0]);
+    }
+
+    /**
+     * Die nächsten Einträge zu {@code query} aus {@link #embedQuery}, oder leer, wenn die Guild keinen Graph hat.
+     * Die Einträge selbst kommen aus {@code snapshot}; was dort (noch) fehlt, wird übersprungen.
+     */
+    Optional<List<KnowledgeIndex.Match>> search(
+            long guildId,
+            KnowledgeIndex.Snapshot snapshot,
+            float[] query,
+            int limit,
+            double minSimilarity
+    ) {
+        GuildGraph guild = guilds.get(guildId);
+        if (guild == null || guild.graph == null) {
+            return Optional.empty();
+        }
+        if (limit <= 0) {
+            return Optional.of(List.of());
+        }
+
+        List<HnswGraph.Neighbor> neighbors;
+        guild.lock.readLock().lock();
+        try {
+            neighbors = guild.graph.search(query, limit, EF_SEARCH, minSimilarity);
+        } finally {
+            guild.lock.readLock().unlock();
+        }
+
+        List<KnowledgeIndex.Match> matches = new ArrayList<>(neighbors.size());
+        for (HnswGraph.Neighbor neighbor : neighbors) {
+            int index = snapshot.indexOf(neighbor.entryId());
+            if (index >= 0) {
+                matches.add(new KnowledgeIndex.Match(snapshot.entry(index), neighbor.similarity()));
+            }
+        }
+        return Optional.of(matches);
+    }
+
+    @Override
+    public void knowledgeUpserted(long guildId, ContextStore.KnowledgeEntry entry) {
+        GuildGraph guild = guilds.get(guildId);
+        if (guild != null) {
+            embedder.execute(() -> embedAndAdd(guildId, guild, entry));
+        }
+    }
+
+    @Override
+    public void knowledgeRemoved(long guildId, long entryId) {
+        GuildGraph guild = guilds.get(guildId);
+        if (guild == null) {
+            return;
+        }
+        embedder.execute(() -> {
+            if (guild.graph == null) {
+                return;
+            }
+            guild.lock.writeLock().lock();
+            try {
+                guild.graph.remove(entryId);
+            } finally {
+                guild.lock.writeLock().unlock();
+            }
+            // Viele Tombstones verschlechtern die Navigation, dann lieber neu aufbauen
+            if (guild.graph.deletedCount() > Math.max(1024, guild.graph.size() / 4)) {
+                knowledgeInvalidated(guildId);
+            }
+        });
+    }
+
+    @Override
+    public void knowledgeInvalidated(long guildId) {
+        guilds.remove(guildId);
+    }
+
+    private void load(long guildId, GuildGraph guild) {
+        long startedAt = System.currentTimeMillis();
+        try {
+            int embedded = backfill(guildId);
+            HnswGraph[] graph = new HnswGraph[1];
+            contextStore.forEachKnowledgeEmbedding(guildId, model, dimensions, (vector, entryId) -> {
+                if (graph[0] == null) {
+                    graph[0] = new HnswGraph(vector.length / Short.BYTES, 1024);
+                }
+                graph[0].add(entryId, vector);
+            });
+            guild.graph = graph[0] == null ? new HnswGraph(Math.max(1, dimensions), 16) : graph[0];
+            LOG.info("Semantischer Index für Guild {} aufgebaut: {} Einträge, {} neu eingebettet ({}ms)",
+                    guildId, guild.graph.size(), embedded, System.currentTimeMillis() - startedAt);
+        } catch (Exception e) {
+            LOG.warn("Semantischer Index für Guild {} fehlgeschlagen: {}", guildId, e.getMessage());
+            guilds.remove(guildId, guild);
+        }
+    }
+
+    /**
+     * Berechnet fehlende Vektoren in Batches nach. Bricht beim ersten API-Fehler ab, der Rest folgt beim nächsten Laden.
+     */
+    private int backfill(long guildId) throws Exception {
+        int embedded = 0;
+        while (true) {
+            List<ContextStore.KnowledgeEntry> missing =
+                    contextStore.listKnowledgeWithoutEmbedding(guildId, model, dimensions, EMBEDDING_BATCH);
+            if (missing.isEmpty()) {
+                return embedded;
+            }
+            List<String> texts = missing.stream().map(ContextStore.KnowledgeEntry::text).toList();
+            float[][] vectors = embed(texts, OpenAIClient.Priority.BACKGROUND);
+            if (dimensions > 0 && vectors[0].length != dimensions) {
+                throw new IOException(model + " returned " + vectors[0].length + " dimensions instead of " + dimensions);
+            }
+            Map<Long, byte[]> encoded = new LinkedHashMap<>();
+            for (int i = 0; i < missing.size(); i++) {
+                encoded.put(missing.get(i).id(), HnswGraph.encode(vectors[i]));
+            }
+            contextStore.saveKnowledgeEmbeddings(model, vectors[0].length, encoded).join();
+            embedded += missing.size();
+            if (missing.size() < EMBEDDING_BATCH) {
+                return embedded;
+            }
+        }
+    }
+
+    private void embedAndAdd(long guildId, GuildGraph guild, ContextStore.KnowledgeEntry entry) {
+        if (guild.graph == null || guild.graph.contains(entry.id())) {
+            return;
+        }
+        try {
+            float[] vector = embed(List.of(entry.text()), OpenAIClient.Priority.BACKGROUND)[0];
+            byte[] encoded = HnswGraph.encode(vector);
+            contextStore.saveKnowledgeEmbeddings(model, vector.length, Map.of(entry.id(), encoded)).join();
+            guild.lock.writeLock().lock();
+            try {
+                if (guild.graph.size() == 0 && guild.graph.dimensions() != vector.length) {
+                    guild.graph = new HnswGraph(vector.length, 16);
+                }
+                guild.graph.add(entry.id(), encoded);
+            } finally {
+                guild.lock.writeLock().unlock();
+            }
+        } catch (Exception e) {
+            LOG.warn("Embedding für Wissenseintrag #{} in Guild {} fehlgeschlagen: {}", entry.id(), guildId, e.getMessage());
+        }
+    }
+
+    private float[][] embed(List<String> texts, OpenAIClient.Priority priority) throws IOException, InterruptedException {
+        try {
+            return client.createEmbeddings(model, texts, dimensions, priority).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException failure ? failure : new IOException(e.getCause());
+        }
+    }
+
+    private static final class GuildGraph {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile HnswGraph graph;
+    }
+}
@@ -0,0 +1,91 @@
+package io.nebuliton.ai;
+
+import net.dv8tion.jda.api.entities.Message;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Eine Discord-Antwort, die während des Streamings wächst.
+ *
+ * Der erste sichtbare Text wird sofort als Reply gepostet, danach wird höchstens alle {@code editIntervalMillis}
+ * editiert. Es ist immer nur ein Request unterwegs; Zwischenstände, die in der Zeit ankommen, werden durch den
+ * jeweils neuesten ersetzt. {@link #finish} setzt den endgültigen Text in jedem Fall.
+ *
+ * Alle Requests laufen über das Discord-Limit. Ist es ausgeschöpft, werden Zwischenstände übersprungen; der
+ * erste Post und der fertige Text warten dagegen auf einen Platz.
+ */
+final class StreamingReply {
+    private final Message source;
+    private final long editIntervalMillis;
+    private final AsyncLimiter discordRequests;
+    private CompletableFuture<Message> message;
+    private CompletableFuture<?> inFlight = CompletableFuture.completedFuture(null);
+    private String latest;
+    private String sent;
+    private long sentAt;
+    private boolean finished;
+
+    StreamingReply(Message source, long editIntervalMillis, AsyncLimiter discordRequests) {
+        this.source = source;
+        this.editIntervalMillis = editIntervalMillis;
+        this.discordRequests = discordRequests;
+    }
+
+    synchronized void update(String text) {
+        if (finished || text == null || text.isBlank()) {
+            return;
+        }
+        latest = text;
+        if (!inFlight.isDone() || latest.equals(sent)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (message != null && now - sentAt < editIntervalMillis) {
+            return;
+        }
+        String snapshot = latest;
+        if (message == null) {
+            message = discordRequests.submit(() -> source.reply(snapshot).setAllowedMentions(Collections.emptyList()).submit());
+            inFlight = message;
+        } else {
+            CompletableFuture<Message> posted = message;
+            CompletableFuture<Message> edit = discordRequests.trySubmit(() -> posted.thenCompose(reply -> reply
+                    .editMessage(snapshot)
+                    .setAllowedMentions(Collections.emptyList())
+                    .submit()));
+            if (edit == null) {
+                return;
+            }
+            inFlight = edit;
+        }
+        sent = snapshot;
+        sentAt = now;
+    }
+
+    /**
+     * Setzt den fertigen Text, nach einem eventuell noch laufenden Edit. Ist das Editieren nicht möglich
+     * (z.B. Nachricht gelöscht), wird neu geantwortet.
+     */
+    synchronized void finish(String text) {
+        finished = true;
+        if (message == null) {
+            discordRequests.submit(() -> source.reply(text).setAllowedMentions(Collections.emptyList()).submit());
+            return;
+        }
+        if (text.equals(sent) && inFlight.isDone() && !inFlight.isCompletedExceptionally()) {
+            return;
+        }
+        sent = text;
+        CompletableFuture<Message> posted = message;
+        inFlight = inFlight.handle((ignored, error) -> null)
+                .thenCompose(ignored -> posted)
+                .thenCompose(reply -> discordRequests.submit(() -> reply.editMessage(text)
+                        .setAllowedMentions(Collections.emptyList())
+                        .submit()))
+                .exceptionally(error -> {
+                    source.reply(text).setAllowedMentions(Collections.emptyList()).queue();
+                    return null;
+                });
+    }
+}
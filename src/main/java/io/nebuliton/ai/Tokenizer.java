@@ -0,0 +1,66 @@
+package io.nebuliton.ai;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+import com.knuddels.jtokkit.api.EncodingResult;
+import com.knuddels.jtokkit.api.EncodingType;
+
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Zählt Tokens lokal mit dem BPE-Encoding der Modellfamilie (jtokkit). Modelle, die jtokkit nicht kennt, z.B.
+ * über ein eigenes Backend, werden mit cl100k gezählt; für Llama & Co. ist das nur eine Näherung.
+ */
+final class Tokenizer {
+    /** Rahmen um jede Chat-Nachricht (Rolle, Trenner) */
+    static final int TOKENS_PER_MESSAGE = 3;
+    /** Einleitung der Antwort, die jeder Request zusätzlich kostet */
+    static final int TOKENS_PER_REPLY = 3;
+
+    private static final EncodingRegistry REGISTRY = Encodings.newLazyEncodingRegistry();
+
+    private final Encoding encoding;
+
+    Tokenizer(String model) {
+        this.encoding = encodingFor(model);
+    }
+
+    private static Encoding encodingFor(String model) {
+        String name = model == null ? "" : model.trim().toLowerCase(Locale.ROOT);
+        Optional<Encoding> known = REGISTRY.getEncodingForModel(name);
+        if (known.isPresent()) {
+            return known.get();
+        }
+        // Neuere OpenAI-Modelle kennt jtokkit noch nicht, sie nutzen alle o200k
+        if (name.startsWith("gpt-4o") || name.startsWith("gpt-4.1") || name.startsWith("gpt-5")
+                || name.startsWith("chatgpt-") || name.matches("o\\d.*")) {
+            return REGISTRY.getEncoding(EncodingType.O200K_BASE);
+        }
+        return REGISTRY.getEncoding(EncodingType.CL100K_BASE);
+    }
+
+    String encodingName() {
+        return encoding.getName();
+    }
+
+    int count(String text) {
+        return text == null || text.isEmpty() ? 0 : encoding.countTokensOrdinary(text);
+    }
+
+    int count(OpenAIClient.ChatMessage message) {
+        return TOKENS_PER_MESSAGE + count(message.content());
+    }
+
+    /**
+     * Die ersten {@code maxTokens} Tokens des Texts, oder der Text selbst, wenn er passt.
+     */
+    String truncate(String text, int maxTokens) {
+        if (text == null || maxTokens <= 0) {
+            return "";
+        }
+        EncodingResult result = encoding.encodeOrdinary(text, maxTokens);
+        return result.isTruncated() ? encoding.decode(result.getTokens()) : text;
+    }
+}
@@ -0,0 +1,28 @@
+package io.nebuliton.ai;
+
+/**
+ * Dringlichkeit von Provider-Requests, in absteigender Reihenfolge. Niedrigere Klassen haben eigene Limits für
+ * gleichzeitige Requests und kommen nach {@code openai.starvationMillis} Wartezeit trotzdem dran.
+ */
+public enum WorkClass {
+    /** Antworten auf Mentions, jemand wartet im Chat. */
+    REPLY("Antworten"),
+    /** Slash-Commands und Panel-Aktionen wie /summarize. */
+    COMMAND("Commands"),
+    /** Fact-Checks, Lernen und andere Arbeit, auf die niemand direkt wartet. */
+    BACKGROUND("Hintergrund");
+
+    private final String label;
+
+    WorkClass(String label) {
+        this.label = label;
+    }
+
+    public String label() {
+        return label;
+    }
+
+    OpenAIClient.Priority priority() {
+        return this == BACKGROUND ? OpenAIClient.Priority.BACKGROUND : OpenAIClient.Priority.INTERACTIVE;
+    }
+}
@@ -0,0 +1,105 @@
+package io.nebuliton.ai;
+
+import io.nebuliton.config.Config;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Führt blockierende Arbeit aus: mit {@code execution.virtualThreads} ein virtueller Thread pro Aufgabe, sonst
+ * ein fester Pool aus {@code execution.workerThreads} Threads.
+ *
+ * Die eigentliche Begrenzung passiert an den Ressourcen ({@link Bulkhead}, {@link AsyncLimiter}), hier wird nur
+ * gezählt, wie viele Aufgaben auf einen Thread warten, laufen und fertig sind.
+ */
+final class WorkerPool implements Executor, AutoCloseable {
+    private static final int PLATFORM_QUEUE_CAPACITY = 200;
+
+    private final ExecutorService delegate;
+    private final boolean virtual;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+
+    WorkerPool(Config.Execution config) {
+        this.virtual = config.virtualThreads;
+        if (virtual) {
+            this.delegate = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ai-worker-", 0).factory());
+        } else {
+            this.delegate = new ThreadPoolExecutor(
+                    config.workerThreads,
+                    config.workerThreads,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(PLATFORM_QUEUE_CAPACITY),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "ai-worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+            );
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        long submittedAt = System.nanoTime();
+        queued.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                queued.decrementAndGet();
+                totalQueueNanos.addAndGet(System.nanoTime() - submittedAt);
+                active.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * {@code true}, wenn neue Aufgaben abgelehnt würden; virtuelle Threads haben keine Queue.
+     */
+    boolean saturated() {
+        return !virtual && queued.get() >= PLATFORM_QUEUE_CAPACITY;
+    }
+
+    int queued() {
+        return queued.get();
+    }
+
+    int active() {
+        return active.get();
+    }
+
+    long completed() {
+        return completed.get();
+    }
+
+    long avgQueueWaitMicros() {
+        long count = completed.get() + active.get();
+        return count <= 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(totalQueueNanos.get() / count);
+    }
+
+    @Override
+    public void close() {
+        delegate.shutdown();
+    }
+}
@@ -16,6 +16,7 @@ public class Config {
     public Discord discord = new Discord();
     public OpenAI openai = new OpenAI();
     public Database database = new Database();
+    public Execution execution = new Execution();
     public UX ux = new UX();
     public Presence presence = new Presence();
 
@@ -85,7 +86,56 @@ public class Config {
             sb.append("  model: \"").append(openai.model).append("\"\n");
             sb.append("  temperature: ").append(openai.temperature).append("\n");
             sb.append("  maxTokens: ").append(openai.maxTokens).append("\n");
+            sb.append("  maxPromptTokens: ").append(openai.maxPromptTokens).append("\n");
             sb.append("  timeoutSeconds: ").append(openai.timeoutSeconds).append("\n");
+            sb.append("  maxInFlight: ").append(openai.maxInFlight).append("\n");
+            sb.append("  minInFlight: ").append(openai.minInFlight).append("\n");
+            sb.append("  adaptiveConcurrency: ").append(openai.adaptiveConcurrency).append("\n");
+            sb.append("  maxQueuedRequests: ").append(openai.maxQueuedRequests).append("\n");
+            sb.append("  commandConcurrencyPercent: ").append(openai.commandConcurrencyPercent).append("\n");
+            sb.append("  backgroundConcurrencyPercent: ").append(openai.backgroundConcurrencyPercent).append("\n");
+            sb.append("  starvationMillis: ").append(openai.starvationMillis).append("\n");
+            sb.append("  replyDeadlineMillis: ").append(openai.replyDeadlineMillis).append("\n");
+            sb.append("  commandDeadlineMillis: ").append(openai.commandDeadlineMillis).append("\n");
+            sb.append("  guildMaxInFlight: ").append(openai.guildMaxInFlight).append("\n");
+            if (openai.guildQuotas.isEmpty()) {
+                sb.append("  guildQuotas: []\n");
+            } else {
+                sb.append("  guildQuotas:\n");
+                for (GuildQuota quota : openai.guildQuotas) {
+                    sb.append("    - id: ").append(quota.id).append("\n");
+                    sb.append("      weight: ").append(quota.weight).append("\n");
+                    sb.append("      maxInFlight: ").append(quota.maxInFlight).append("\n");
+                }
+            }
+            sb.append("  maxRetries: ").append(openai.maxRetries).append("\n");
+            sb.append("  retryBaseMillis: ").append(openai.retryBaseMillis).append("\n");
+            sb.append("  retryMaxMillis: ").append(openai.retryMaxMillis).append("\n");
+            sb.append("  circuitFailureThreshold: ").append(openai.circuitFailureThreshold).append("\n");
+            sb.append("  circuitOpenSeconds: ").append(openai.circuitOpenSeconds).append("\n");
+            sb.append("  requestsPerMinute: ").append(openai.requestsPerMinute).append("\n");
+            sb.append("  tokensPerMinute: ").append(openai.tokensPerMinute).append("\n");
+            sb.append("  backgroundReservePercent: ").append(openai.backgroundReservePercent).append("\n");
+            sb.append("  admissionMaxWaitMillis: ").append(openai.admissionMaxWaitMillis).append("\n");
+            sb.append("  hedgeRequests: ").append(openai.hedgeRequests).append("\n");
+            sb.append("  hedgePercentile: ").append(openai.hedgePercentile).append("\n");
+            sb.append("  hedgeBudgetPercent: ").append(openai.hedgeBudgetPercent).append("\n");
+            if (openai.endpoints.isEmpty()) {
+                sb.append("  endpoints: []\n");
+            } else {
+                sb.append("  endpoints:\n");
+                for (Endpoint endpoint : openai.endpoints) {
+                    sb.append("    - name: \"").append(escapeYaml(endpoint.name)).append("\"\n");
+                    sb.append("      baseUrl: \"").append(escapeYaml(endpoint.baseUrl)).append("\"\n");
+                    sb.append("      apiKey: \"").append(escapeYaml(endpoint.apiKey)).append("\"\n");
+                    sb.append("      model: \"").append(escapeYaml(endpoint.model)).append("\"\n");
+                    sb.append("      weight: ").append(endpoint.weight).append("\n");
+                    sb.append("      maxInFlight: ").append(endpoint.maxInFlight).append("\n");
+                    sb.append("      embeddings: ").append(endpoint.embeddings).append("\n");
+                }
+            }
+            sb.append("  embeddingModel: \"").append(openai.embeddingModel).append("\"\n");
+            sb.append("  embeddingDimensions: ").append(openai.embeddingDimensions).append("\n");
             sb.append("  systemPrompt: |\n");
             for (String line : openai.systemPrompt.split("\n")) {
                 sb.append("    ").append(line).append("\n");
@@ -94,19 +144,47 @@ public class Config {
             // Database
             sb.append("\ndatabase:\n");
             sb.append("  path: \"").append(database.path).append("\"\n");
+            sb.append("  poolSize: ").append(database.poolSize).append("\n");
+            sb.append("  poolTimeoutMillis: ").append(database.poolTimeoutMillis).append("\n");
+            sb.append("  readerMmapSizeMb: ").append(database.readerMmapSizeMb).append("\n");
+            sb.append("  writeBatchSize: ").append(database.writeBatchSize).append("\n");
+            sb.append("  writeBatchWindowMillis: ").append(database.writeBatchWindowMillis).append("\n");
+            sb.append("  writeQueueCapacity: ").append(database.writeQueueCapacity).append("\n");
+            sb.append("  onlineMigrationRows: ").append(database.onlineMigrationRows).append("\n");
+
+            // Execution
+            sb.append("\nexecution:\n");
+            sb.append("  virtualThreads: ").append(execution.virtualThreads).append("\n");
+            sb.append("  workerThreads: ").append(execution.workerThreads).append("\n");
+            sb.append("  databaseConcurrency: ").append(execution.databaseConcurrency).append("\n");
+            sb.append("  discordConcurrency: ").append(execution.discordConcurrency).append("\n");
+            sb.append("  acquireTimeoutMillis: ").append(execution.acquireTimeoutMillis).append("\n");
 
             // UX
             sb.append("\nux:\n");
             sb.append("  cooldownSeconds: ").append(ux.cooldownSeconds).append("\n");
             sb.append("  cooldownReply: \"").append(escapeYaml(ux.cooldownReply)).append("\"\n");
             sb.append("  errorReply: \"").append(escapeYaml(ux.errorReply)).append("\"\n");
+            sb.append("  busyReply: \"").append(escapeYaml(ux.busyReply)).append("\"\n");
+            sb.append("  busyReplyCooldownSeconds: ").append(ux.busyReplyCooldownSeconds).append("\n");
             sb.append("  typingIndicator: ").append(ux.typingIndicator).append("\n");
+            sb.append("  streamReplies: ").append(ux.streamReplies).append("\n");
+            sb.append("  streamEditIntervalMillis: ").append(ux.streamEditIntervalMillis).append("\n");
             sb.append("  maxUserMessageLength: ").append(ux.maxUserMessageLength).append("\n");
             sb.append("  maxContextLength: ").append(ux.maxContextLength).append("\n");
             sb.append("  maxKnowledgeLength: ").append(ux.maxKnowledgeLength).append("\n");
             sb.append("  maxKnowledgeEntries: ").append(ux.maxKnowledgeEntries).append("\n");
+            sb.append("  maxKnowledgeTokens: ").append(ux.maxKnowledgeTokens).append("\n");
+            sb.append("  knowledgeMinScore: ").append(ux.knowledgeMinScore).append("\n");
+            sb.append("  knowledgeRetrieval: \"").append(ux.knowledgeRetrieval).append("\"\n");
+            sb.append("  knowledgeMinSimilarity: ").append(ux.knowledgeMinSimilarity).append("\n");
             sb.append("  maxConversationMessages: ").append(ux.maxConversationMessages).append("\n");
             sb.append("  maxConversationMessageLength: ").append(ux.maxConversationMessageLength).append("\n");
+            sb.append("  conversationCacheMb: ").append(ux.conversationCacheMb).append("\n");
+            sb.append("  conversationFlushMillis: ").append(ux.conversationFlushMillis).append("\n");
+            sb.append("  conversationSummaries: ").append(ux.conversationSummaries).append("\n");
+            sb.append("  summaryKeepMessages: ").append(ux.summaryKeepMessages).append("\n");
+            sb.append("  maxSummaryTokens: ").append(ux.maxSummaryTokens).append("\n");
 
             Files.writeString(path, sb.toString(), StandardCharsets.UTF_8);
         } catch (IOException e) {
@@ -126,9 +204,18 @@ public class Config {
         if (openai == null) {
             openai = new OpenAI();
         }
+        if (openai.endpoints == null) {
+            openai.endpoints = new ArrayList<>();
+        }
+        if (openai.guildQuotas == null) {
+            openai.guildQuotas = new ArrayList<>();
+        }
         if (database == null) {
             database = new Database();
         }
+        if (execution == null) {
+            execution = new Execution();
+        }
         if (ux == null) {
             ux = new UX();
         }
@@ -156,12 +243,96 @@ public class Config {
         if (openai.maxTokens <= 0) {
             throw new IllegalStateException("openai.maxTokens must be > 0");
         }
+        if (openai.maxInFlight <= 0 || openai.maxQueuedRequests < 0) {
+            throw new IllegalStateException("openai.maxInFlight must be > 0 and openai.maxQueuedRequests >= 0");
+        }
+        if (openai.minInFlight <= 0 || openai.minInFlight > openai.maxInFlight) {
+            throw new IllegalStateException("openai.minInFlight must be between 1 and openai.maxInFlight");
+        }
+        if (openai.commandConcurrencyPercent < 1 || openai.commandConcurrencyPercent > 100
+                || openai.backgroundConcurrencyPercent < 1 || openai.backgroundConcurrencyPercent > 100) {
+            throw new IllegalStateException("openai.commandConcurrencyPercent and openai.backgroundConcurrencyPercent must be between 1 and 100");
+        }
+        if (openai.starvationMillis < 0 || openai.replyDeadlineMillis < 0 || openai.commandDeadlineMillis < 0) {
+            throw new IllegalStateException("openai.starvationMillis and the openai deadlines must be >= 0");
+        }
+        if (openai.maxPromptTokens <= 0) {
+            throw new IllegalStateException("openai.maxPromptTokens must be > 0");
+        }
+        if (openai.guildMaxInFlight < 0) {
+            throw new IllegalStateException("openai.guildMaxInFlight must be >= 0");
+        }
+        for (GuildQuota quota : openai.guildQuotas) {
+            if (quota == null || quota.id <= 0 || quota.weight <= 0 || quota.maxInFlight < 0) {
+                throw new IllegalStateException("openai.guildQuotas entries need an id, weight > 0 and maxInFlight >= 0");
+            }
+        }
+        if (openai.maxRetries < 0 || openai.retryBaseMillis <= 0 || openai.retryMaxMillis < openai.retryBaseMillis) {
+            throw new IllegalStateException("openai.maxRetries must be >= 0 and 0 < openai.retryBaseMillis <= openai.retryMaxMillis");
+        }
+        if (openai.circuitFailureThreshold <= 0 || openai.circuitOpenSeconds <= 0) {
+            throw new IllegalStateException("openai.circuitFailureThreshold and openai.circuitOpenSeconds must be > 0");
+        }
+        if (openai.requestsPerMinute < 0 || openai.tokensPerMinute < 0 || openai.admissionMaxWaitMillis < 0
+                || openai.backgroundReservePercent < 0 || openai.backgroundReservePercent > 90) {
+            throw new IllegalStateException("openai admission limits must be >= 0 and openai.backgroundReservePercent <= 90");
+        }
+        if (openai.hedgePercentile < 50 || openai.hedgePercentile > 99
+                || openai.hedgeBudgetPercent < 0 || openai.hedgeBudgetPercent > 50) {
+            throw new IllegalStateException("openai.hedgePercentile must be 50..99 and openai.hedgeBudgetPercent 0..50");
+        }
+        for (Endpoint endpoint : openai.endpoints) {
+            if (endpoint == null || isBlank(endpoint.baseUrl)) {
+                throw new IllegalStateException("openai.endpoints entries need a baseUrl");
+            }
+            if (endpoint.weight <= 0 || endpoint.maxInFlight < 0) {
+                throw new IllegalStateException("openai.endpoints weight must be > 0 and maxInFlight >= 0");
+            }
+        }
         if (ux.maxContextLength <= 0 || ux.maxKnowledgeLength <= 0 || ux.maxUserMessageLength <= 0) {
             throw new IllegalStateException("UX limits must be > 0");
         }
+        if (database.poolSize <= 0 || database.poolTimeoutMillis <= 0) {
+            throw new IllegalStateException("database.poolSize and database.poolTimeoutMillis must be > 0");
+        }
+        if (database.readerMmapSizeMb < 0) {
+            throw new IllegalStateException("database.readerMmapSizeMb must be >= 0");
+        }
+        if (database.writeBatchSize <= 0 || database.writeBatchWindowMillis < 0 || database.writeQueueCapacity <= 0) {
+            throw new IllegalStateException("database write batching limits are invalid");
+        }
+        if (execution.workerThreads <= 0 || execution.databaseConcurrency <= 0
+                || execution.discordConcurrency <= 0 || execution.acquireTimeoutMillis <= 0) {
+            throw new IllegalStateException("execution limits must be > 0");
+        }
+        if (ux.maxKnowledgeEntries < 0 || ux.maxKnowledgeTokens < 0 || ux.knowledgeMinScore < 0) {
+            throw new IllegalStateException("ux.maxKnowledgeEntries, ux.maxKnowledgeTokens and ux.knowledgeMinScore must be >= 0");
+        }
+        if (!"bm25".equalsIgnoreCase(ux.knowledgeRetrieval) && !"semantic".equalsIgnoreCase(ux.knowledgeRetrieval)) {
+            throw new IllegalStateException("ux.knowledgeRetrieval must be 'bm25' or 'semantic'");
+        }
+        if ("semantic".equalsIgnoreCase(ux.knowledgeRetrieval) && isBlank(openai.embeddingModel)) {
+            throw new IllegalStateException("openai.embeddingModel is required for semantic knowledge retrieval");
+        }
+        if ("semantic".equalsIgnoreCase(ux.knowledgeRetrieval) && !openai.endpoints.isEmpty()
+                && openai.endpoints.stream().noneMatch(endpoint -> endpoint.embeddings)) {
+            throw new IllegalStateException("semantic knowledge retrieval needs at least one openai.endpoints entry with embeddings: true");
+        }
         if (ux.maxConversationMessages < 0 || ux.maxConversationMessageLength <= 0) {
             throw new IllegalStateException("Conversation memory limits are invalid");
         }
+        if (ux.streamEditIntervalMillis < 250) {
+            throw new IllegalStateException("ux.streamEditIntervalMillis must be >= 250");
+        }
+        if (ux.conversationCacheMb <= 0 || ux.conversationFlushMillis <= 0) {
+            throw new IllegalStateException("ux.conversationCacheMb and ux.conversationFlushMillis must be > 0");
+        }
+        if (ux.conversationSummaries && ux.maxConversationMessages > 0
+                && (ux.summaryKeepMessages < 0 || ux.summaryKeepMessages >= ux.maxConversationMessages
+                || ux.maxSummaryTokens <= 0)) {
+            throw new IllegalStateException(
+                    "ux.summaryKeepMessages must be 0..maxConversationMessages-1 and ux.maxSummaryTokens > 0");
+        }
     }
 
     private static boolean isBlank(String value) {
@@ -206,7 +377,34 @@ public class Config {
                   model: "gpt-4o-mini"
                   temperature: 0.7
                   maxTokens: 320
+                  maxPromptTokens: 4000  # Budget für System-Prompt, Wissen, Kontext und History zusammen
                   timeoutSeconds: 30
+                  maxInFlight: 16  # Obergrenze gleichzeitiger API-Requests
+                  minInFlight: 2
+                  adaptiveConcurrency: true  # Limit folgt der Latenz, false = immer maxInFlight
+                  maxQueuedRequests: 200
+                  commandConcurrencyPercent: 50  # Anteil am Limit für /summarize und Panel-Aktionen
+                  backgroundConcurrencyPercent: 25  # Anteil am Limit für Fact-Checks
+                  starvationMillis: 5000  # länger wartende Commands/Fact-Checks kommen vor Antworten dran
+                  replyDeadlineMillis: 20000  # Antworten, die bis dahin nicht fertig würden, werden verworfen, 0 = nie
+                  commandDeadlineMillis: 60000
+                  guildMaxInFlight: 8  # gleichzeitige Requests pro Server, 0 = unbegrenzt
+                  guildQuotas: []  # pro Server: id, weight, maxInFlight
+                  maxRetries: 2  # bei 429/5xx/Timeout, mit Backoff und Retry-After
+                  retryBaseMillis: 500
+                  retryMaxMillis: 8000
+                  circuitFailureThreshold: 5  # Fehler in Folge, bis Anfragen pausieren
+                  circuitOpenSeconds: 30
+                  requestsPerMinute: 0  # Limits deines OpenAI-Accounts, 0 = nicht begrenzen
+                  tokensPerMinute: 0
+                  backgroundReservePercent: 20
+                  admissionMaxWaitMillis: 10000
+                  hedgeRequests: false  # langsame Antworten ein zweites Mal anfragen, die schnellere gewinnt
+                  hedgePercentile: 95
+                  hedgeBudgetPercent: 5
+                  endpoints: []  # mehrere OpenAI-kompatible Backends, leer = baseUrl/apiKey/model von oben
+                  embeddingModel: "text-embedding-3-small"
+                  embeddingDimensions: 256
                   systemPrompt: |
                     Du bist Nebi, ein sympathischer, lustiger und cooler Discord-Bot.
                     Antworte knapp, locker und hilfsbereit. Verwende Humor, aber bleib freundlich.
@@ -215,18 +413,46 @@ public class Config {
 
                 database:
                   path: "data/nebi.db"
+                  poolSize: 4
+                  poolTimeoutMillis: 5000
+                  readerMmapSizeMb: 64
+                  writeBatchSize: 64
+                  writeBatchWindowMillis: 3
+                  writeQueueCapacity: 10000
+                  onlineMigrationRows: 500000
+
+                execution:
+                  virtualThreads: true
+                  workerThreads: 4  # nur ohne virtualThreads
+                  databaseConcurrency: 8
+                  discordConcurrency: 16
+                  acquireTimeoutMillis: 2000
 
                 ux:
                   cooldownSeconds: 15
                   cooldownReply: "Ich atme kurz durch. In ein paar Sekunden bin ich wieder da."
                   errorReply: "Uff, mein Kopf raucht gerade. Versuch es gleich nochmal."
+                  busyReply: "Hier ist gerade richtig viel los. Frag mich in einer Minute nochmal."
+                  busyReplyCooldownSeconds: 30  # höchstens eine busyReply pro Channel in dieser Zeit
                   typingIndicator: true
+                  streamReplies: true
+                  streamEditIntervalMillis: 1200  # Discord erlaubt ca. 5 Edits pro 5s und Channel
                   maxUserMessageLength: 1200
                   maxContextLength: 800
                   maxKnowledgeLength: 1500
                   maxKnowledgeEntries: 20
+                  maxKnowledgeTokens: 1200  # Anteil von openai.maxPromptTokens, 0 = unbegrenzt
+                  knowledgeMinScore: 0.5
+                  # bm25 oder semantic (Embeddings, braucht openai.embeddingModel)
+                  knowledgeRetrieval: "bm25"
+                  knowledgeMinSimilarity: 0.3
                   maxConversationMessages: 12
                   maxConversationMessageLength: 1000
+                  conversationCacheMb: 32
+                  conversationFlushMillis: 1000
+                  conversationSummaries: true  # ältere Nachrichten im Hintergrund zusammenfassen statt verwerfen
+                  summaryKeepMessages: 6
+                  maxSummaryTokens: 250
                 """;
     }
 
@@ -250,7 +476,34 @@ public class Config {
         public String model = "gpt-4o-mini";
         public double temperature = 0.7;
         public int maxTokens = 320;
+        public int maxPromptTokens = 4000;
         public int timeoutSeconds = 30;
+        public int maxInFlight = 16;
+        public int minInFlight = 2;
+        public boolean adaptiveConcurrency = true;
+        public int maxQueuedRequests = 200;
+        public int commandConcurrencyPercent = 50;
+        public int backgroundConcurrencyPercent = 25;
+        public long starvationMillis = 5000;
+        public long replyDeadlineMillis = 20000;
+        public long commandDeadlineMillis = 60000;
+        public int guildMaxInFlight = 8;
+        public List<GuildQuota> guildQuotas = new ArrayList<>();
+        public int maxRetries = 2;
+        public long retryBaseMillis = 500;
+        public long retryMaxMillis = 8000;
+        public int circuitFailureThreshold = 5;
+        public int circuitOpenSeconds = 30;
+        public int requestsPerMinute = 0;
+        public int tokensPerMinute = 0;
+        public int backgroundReservePercent = 20;
+        public long admissionMaxWaitMillis = 10000;
+        public boolean hedgeRequests = false;
+        public int hedgePercentile = 95;
+        public int hedgeBudgetPercent = 5;
+        public List<Endpoint> endpoints = new ArrayList<>();
+        public String embeddingModel = "text-embedding-3-small";
+        public int embeddingDimensions = 256;
         public String systemPrompt = """
                 Du bist Nebi, ein sympathischer, lustiger und cooler Discord-Bot.
                 Antworte knapp, locker und hilfsbereit. Verwende Humor, aber bleib freundlich.
@@ -259,20 +512,72 @@ public class Config {
                 """;
     }
 
+    /**
+     * Ein OpenAI-kompatibles Backend. Leere Felder übernehmen {@code apiKey}/{@code model} aus {@code openai},
+     * ein leerer {@code name} den Host. {@code maxInFlight} 0 = kein eigenes Limit.
+     */
+    public static class Endpoint {
+        public String name = "";
+        public String baseUrl;
+        public String apiKey = "";
+        public String model = "";
+        public int weight = 1;
+        public int maxInFlight = 0;
+        public boolean embeddings = true;
+    }
+
+    /**
+     * Anteil eines Servers an den Provider-Requests: bei Andrang startet er pro Runde {@code weight} Requests.
+     * {@code maxInFlight} 0 = {@code openai.guildMaxInFlight}.
+     */
+    public static class GuildQuota {
+        public long id;
+        public int weight = 1;
+        public int maxInFlight = 0;
+    }
+
     public static class Database {
         public String path = "data/nebi.db";
+        public int poolSize = 4;
+        public int poolTimeoutMillis = 5000;
+        public int readerMmapSizeMb = 64;
+        public int writeBatchSize = 64;
+        public int writeBatchWindowMillis = 3;
+        public int writeQueueCapacity = 10000;
+        public long onlineMigrationRows = 500000L;
+    }
+
+    public static class Execution {
+        public boolean virtualThreads = true;
+        public int workerThreads = 4;
+        public int databaseConcurrency = 8;
+        public int discordConcurrency = 16;
+        public long acquireTimeoutMillis = 2000;
     }
 
     public static class UX {
         public int cooldownSeconds = 15;
         public String cooldownReply = "Ich atme kurz durch. In ein paar Sekunden bin ich wieder da.";
         public String errorReply = "Uff, mein Kopf raucht gerade. Versuch es gleich nochmal.";
+        public String busyReply = "Hier ist gerade richtig viel los. Frag mich in einer Minute nochmal.";
+        public int busyReplyCooldownSeconds = 30;
         public boolean typingIndicator = true;
+        public boolean streamReplies = true;
+        public long streamEditIntervalMillis = 1200;
         public int maxUserMessageLength = 1200;
         public int maxContextLength = 800;
         public int maxKnowledgeLength = 1500;
         public int maxKnowledgeEntries = 20;
+        public int maxKnowledgeTokens = 1200;
+        public double knowledgeMinScore = 0.5;
+        public String knowledgeRetrieval = "bm25";
+        public double knowledgeMinSimilarity = 0.3;
         public int maxConversationMessages = 12;
         public int maxConversationMessageLength = 1000;
+        public int conversationCacheMb = 32;
+        public long conversationFlushMillis = 1000;
+        public boolean conversationSummaries = true;
+        public int summaryKeepMessages = 6;
+        public int maxSummaryTokens = 250;
     }
 }